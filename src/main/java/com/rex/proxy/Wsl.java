@@ -5,6 +5,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.FileInputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Properties;
 
 /**
@@ -112,6 +113,51 @@ public class Wsl {
             case "proxyPath":
                 serverConf.proxyPath = config.getProperty(name);
                 break;
+            case "transport":
+                serverConf.transport = config.getProperty(name);
+                break;
+            case "writeBufferLowWaterMark":
+                serverConf.writeBufferLowWaterMark = Integer.parseInt(config.getProperty(name));
+                break;
+            case "writeBufferHighWaterMark":
+                serverConf.writeBufferHighWaterMark = Integer.parseInt(config.getProperty(name));
+                break;
+            case "coalesceBytes":
+                serverConf.coalesceBytes = Integer.parseInt(config.getProperty(name));
+                break;
+            case "coalesceDelayMicros":
+                serverConf.coalesceDelayMicros = Long.parseLong(config.getProperty(name));
+                break;
+            case "maxFrameSize":
+                serverConf.maxFrameSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "dnsServers":
+                serverConf.dnsServers = config.getProperty(name);
+                break;
+            case "dnsCacheSize":
+                serverConf.dnsCacheSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "dnsNegativeTtl":
+                serverConf.dnsNegativeTtl = Integer.parseInt(config.getProperty(name));
+                break;
+            case "loopAffinity":
+                serverConf.loopAffinity = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "sslProvider":
+                serverConf.sslProvider = config.getProperty(name);
+                break;
+            case "sslHandshakeThreads":
+                serverConf.sslHandshakeThreads = Integer.parseInt(config.getProperty(name));
+                break;
+            case "sslMaxHandshakesPerLoop":
+                serverConf.sslMaxHandshakesPerLoop = Integer.parseInt(config.getProperty(name));
+                break;
+            case "sslDynamicRecord":
+                serverConf.sslDynamicRecord = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "sslReloadIntervalSeconds":
+                serverConf.sslReloadIntervalSeconds = Integer.parseInt(config.getProperty(name));
+                break;
             }
         }
         try {
@@ -148,12 +194,101 @@ public class Wsl {
             case "proxyUri":
                 localConf.proxyUri = URI.create(config.getProperty(name));
                 break;
+            case "proxyUris":
+                localConf.proxyUris = new ArrayList<>();
+                for (String uri : config.getProperty(name).split(",")) {
+                    if (!uri.trim().isEmpty()) {
+                        localConf.proxyUris.add(URI.create(uri.trim()));
+                    }
+                }
+                break;
             case "proxyUid":
                 localConf.proxyUid = config.getProperty(name);
                 break;
             case "proxyCertVerify":
                 localConf.proxyCertVerify = Boolean.parseBoolean(config.getProperty(name));
                 break;
+            case "transport":
+                localConf.transport = config.getProperty(name);
+                break;
+            case "splice":
+                localConf.splice = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "writeBufferLowWaterMark":
+                localConf.writeBufferLowWaterMark = Integer.parseInt(config.getProperty(name));
+                break;
+            case "writeBufferHighWaterMark":
+                localConf.writeBufferHighWaterMark = Integer.parseInt(config.getProperty(name));
+                break;
+            case "coalesceBytes":
+                localConf.coalesceBytes = Integer.parseInt(config.getProperty(name));
+                break;
+            case "coalesceDelayMicros":
+                localConf.coalesceDelayMicros = Long.parseLong(config.getProperty(name));
+                break;
+            case "maxFrameSize":
+                localConf.maxFrameSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "multiplex":
+                localConf.multiplex = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "optimistic":
+                localConf.optimistic = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "poolMaxConnections":
+                localConf.poolMaxConnections = Integer.parseInt(config.getProperty(name));
+                break;
+            case "poolMaxPendingAcquires":
+                localConf.poolMaxPendingAcquires = Integer.parseInt(config.getProperty(name));
+                break;
+            case "poolAcquireTimeoutMillis":
+                localConf.poolAcquireTimeoutMillis = Long.parseLong(config.getProperty(name));
+                break;
+            case "poolAcquirePolicy":
+                localConf.poolAcquirePolicy = config.getProperty(name);
+                break;
+            case "poolWarmMin":
+                localConf.poolWarmMin = Integer.parseInt(config.getProperty(name));
+                break;
+            case "poolWarmMax":
+                localConf.poolWarmMax = Integer.parseInt(config.getProperty(name));
+                break;
+            case "poolProbeIntervalMillis":
+                localConf.poolProbeIntervalMillis = Long.parseLong(config.getProperty(name));
+                break;
+            case "poolProbeTimeoutMillis":
+                localConf.poolProbeTimeoutMillis = Long.parseLong(config.getProperty(name));
+                break;
+            case "poolIdleTimeoutSeconds":
+                localConf.poolIdleTimeoutSeconds = Long.parseLong(config.getProperty(name));
+                break;
+            case "balancePolicy":
+                localConf.balancePolicy = config.getProperty(name);
+                break;
+            case "balanceHash":
+                localConf.balanceHash = Boolean.parseBoolean(config.getProperty(name));
+                break;
+            case "hedgePercentile":
+                localConf.hedgePercentile = Integer.parseInt(config.getProperty(name));
+                break;
+            case "fallbackDirect":
+                localConf.fallbackDirect = config.getProperty(name);
+                break;
+            case "dnsServers":
+                localConf.dnsServers = config.getProperty(name);
+                break;
+            case "dnsCacheSize":
+                localConf.dnsCacheSize = Integer.parseInt(config.getProperty(name));
+                break;
+            case "dnsNegativeTtl":
+                localConf.dnsNegativeTtl = Integer.parseInt(config.getProperty(name));
+                break;
+            case "sslProvider":
+                localConf.sslProvider = config.getProperty(name);
+                break;
+            case "sslDynamicRecord":
+                localConf.sslDynamicRecord = Boolean.parseBoolean(config.getProperty(name));
+                break;
             }
         }
         try {
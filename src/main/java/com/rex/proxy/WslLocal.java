@@ -1,21 +1,26 @@
 package com.rex.proxy;
 
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.http.HttpServerInitializer;
 import com.rex.proxy.socks.SocksServerInitializer;
+import com.rex.proxy.websocket.WebSocketChannelPoolManager;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.util.List;
 
 /**
  * Socks server
@@ -24,10 +29,13 @@ public class WslLocal {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WslLocal.class);
 
-    private final EventLoopGroup mBossGroup = new NioEventLoopGroup(1);
-    private final EventLoopGroup mWorkerGroup = new NioEventLoopGroup(); // Default use Runtime.getRuntime().availableProcessors() * 2
+    private Transport mTransport;
+    private EventLoopGroup mBossGroup;
+    private EventLoopGroup mWorkerGroup;
 
     private ChannelFuture mChannelFuture;
+    private WebSocketChannelPoolManager mPoolManager;
+    private AddressResolverGroup<InetSocketAddress> mResolver;
 
     // Used for vpn support, protect form loop route to tun interface
     public interface SocketCallback {
@@ -41,9 +49,37 @@ public class WslLocal {
         public String authUser;
         public String authPassword;
         public URI proxyUri;
+        public List<URI> proxyUris; // More WslServer with the same credential, balanced with proxyUri
         public String proxyUid;
         public Boolean proxyCertVerify; // Only works for WSS scheme
         public SocketCallback callback;
+        public String transport; // auto | epoll | nio, default auto
+        public Boolean splice; // Zero-copy relay for direct proxy, only works with epoll transport
+        public Integer writeBufferLowWaterMark; // Resume reading tunnel source when sink pending bytes below it
+        public Integer writeBufferHighWaterMark; // Stop reading tunnel source when sink pending bytes above it
+        public Integer coalesceBytes; // Coalesce small reads into one WebSocket frame up to the bytes, upstream direction
+        public Long coalesceDelayMicros; // Max delay for coalescing, 0 only coalesce reads in the same read loop
+        public Integer maxFrameSize; // Max WebSocket frame payload, negotiated with peer, default 65536
+        public Boolean multiplex; // Share one WebSocket among tunnels by subprotocol proxy3, fallback to pool if server not support
+        public Boolean optimistic; // Reply socks/http client before server connected the target, save one round trip
+        public Integer poolMaxConnections; // Max WebSocket connections per upstream, default unlimited
+        public Integer poolMaxPendingAcquires; // Max acquires waiting for a pooled connection, default 100
+        public Long poolAcquireTimeoutMillis; // Max time waiting for a pooled connection, default 10000
+        public String poolAcquirePolicy; // wait | fail, wait in queue or fail immediately when all connections leased, default wait
+        public Integer poolWarmMin; // Min idle authorized WebSocket connections kept in pool, default 0
+        public Integer poolWarmMax; // Max idle connections warmed by recent demand, default 0 disable warming
+        public Long poolProbeIntervalMillis; // Interval of WebSocket ping probing idle pooled connections, default 30000, 0 disable
+        public Long poolProbeTimeoutMillis; // Close idle pooled connection missed the pong in time, default 5000
+        public Long poolIdleTimeoutSeconds; // Close connection idle in pool for this long, default 900
+        public String balancePolicy; // least | rtt, pick upstream with least outstanding tunnels or lowest EWMA connect time, default least
+        public Boolean balanceHash; // Pick upstream by consistent hash of destination, fallback to policy if ejected
+        public Integer hedgePercentile; // Start a second connect if no response within this percentile of recent connect time, default disabled
+        public String fallbackDirect; // Comma separated domain suffixes or *, connect directly while all upstream circuits open
+        public String dnsServers; // Comma separated DNS servers as host[:port], default system ones
+        public Integer dnsCacheSize; // Max hosts in DNS cache, default 4096
+        public Integer dnsNegativeTtl; // Seconds to cache failed DNS lookups, default 10
+        public String sslProvider; // jdk | openssl, TLS engine, openssl fallback to jdk without native library, default jdk
+        public Boolean sslDynamicRecord; // Small TLS records at the start of each burst, grow after 1MB, default true
         public Configuration() {
         }
         public Configuration(int port) {
@@ -81,9 +117,37 @@ public class WslLocal {
         if (conf.authUser != null) mConfig.authUser = conf.authUser;
         if (conf.authPassword != null) mConfig.authPassword = conf.authPassword;
         if (conf.proxyUri != null) mConfig.proxyUri = conf.proxyUri;
+        if (conf.proxyUris != null) mConfig.proxyUris = conf.proxyUris;
         if (conf.proxyUid != null) mConfig.proxyUid = conf.proxyUid;
         if (conf.proxyCertVerify != null) mConfig.proxyCertVerify = conf.proxyCertVerify;
         if (conf.callback != null) mConfig.callback = conf.callback;
+        if (conf.transport != null) mConfig.transport = conf.transport;
+        if (conf.splice != null) mConfig.splice = conf.splice;
+        if (conf.writeBufferLowWaterMark != null) mConfig.writeBufferLowWaterMark = conf.writeBufferLowWaterMark;
+        if (conf.writeBufferHighWaterMark != null) mConfig.writeBufferHighWaterMark = conf.writeBufferHighWaterMark;
+        if (conf.coalesceBytes != null) mConfig.coalesceBytes = conf.coalesceBytes;
+        if (conf.coalesceDelayMicros != null) mConfig.coalesceDelayMicros = conf.coalesceDelayMicros;
+        if (conf.maxFrameSize != null) mConfig.maxFrameSize = conf.maxFrameSize;
+        if (conf.multiplex != null) mConfig.multiplex = conf.multiplex;
+        if (conf.optimistic != null) mConfig.optimistic = conf.optimistic;
+        if (conf.poolMaxConnections != null) mConfig.poolMaxConnections = conf.poolMaxConnections;
+        if (conf.poolMaxPendingAcquires != null) mConfig.poolMaxPendingAcquires = conf.poolMaxPendingAcquires;
+        if (conf.poolAcquireTimeoutMillis != null) mConfig.poolAcquireTimeoutMillis = conf.poolAcquireTimeoutMillis;
+        if (conf.poolAcquirePolicy != null) mConfig.poolAcquirePolicy = conf.poolAcquirePolicy;
+        if (conf.poolWarmMin != null) mConfig.poolWarmMin = conf.poolWarmMin;
+        if (conf.poolWarmMax != null) mConfig.poolWarmMax = conf.poolWarmMax;
+        if (conf.poolProbeIntervalMillis != null) mConfig.poolProbeIntervalMillis = conf.poolProbeIntervalMillis;
+        if (conf.poolProbeTimeoutMillis != null) mConfig.poolProbeTimeoutMillis = conf.poolProbeTimeoutMillis;
+        if (conf.poolIdleTimeoutSeconds != null) mConfig.poolIdleTimeoutSeconds = conf.poolIdleTimeoutSeconds;
+        if (conf.balancePolicy != null) mConfig.balancePolicy = conf.balancePolicy;
+        if (conf.balanceHash != null) mConfig.balanceHash = conf.balanceHash;
+        if (conf.hedgePercentile != null) mConfig.hedgePercentile = conf.hedgePercentile;
+        if (conf.fallbackDirect != null) mConfig.fallbackDirect = conf.fallbackDirect;
+        if (conf.dnsServers != null) mConfig.dnsServers = conf.dnsServers;
+        if (conf.dnsCacheSize != null) mConfig.dnsCacheSize = conf.dnsCacheSize;
+        if (conf.dnsNegativeTtl != null) mConfig.dnsNegativeTtl = conf.dnsNegativeTtl;
+        if (conf.sslProvider != null) mConfig.sslProvider = conf.sslProvider;
+        if (conf.sslDynamicRecord != null) mConfig.sslDynamicRecord = conf.sslDynamicRecord;
         return this;
     }
 
@@ -122,6 +186,16 @@ public class WslLocal {
             sLogger.trace("scheme:{} host:{} port:{}", scheme, host, port);
         }
 
+        if (mTransport == null) {
+            // SocketCallback need the java.net.Socket, only NIO channel can provide it
+            mTransport = (mConfig.callback != null && mConfig.transport == null) ?
+                    Transport.NIO :
+                    Transport.select(mConfig.transport);
+            mBossGroup = mTransport.newEventLoopGroup(1);
+            mWorkerGroup = mTransport.newEventLoopGroup(0); // Default use Runtime.getRuntime().availableProcessors() * 2
+            sLogger.info("Transport {}", mTransport);
+        }
+
         ChannelInitializer<SocketChannel> childHandler;
         if ("http".equalsIgnoreCase(mConfig.bindProtocol)) {
             sLogger.info("Bind HTTP proxy");
@@ -130,13 +204,27 @@ public class WslLocal {
             sLogger.info("Bind SOCKS proxy");
             childHandler = new SocksServerInitializer(mConfig);
         }
+        // DNS queries can not be protected by SocketCallback, keep the system resolver for VPN
+        mResolver = (mConfig.callback != null) ?
+                DefaultAddressResolverGroup.INSTANCE :
+                DnsResolver.newGroup(mTransport, mConfig.dnsServers, mConfig.dnsCacheSize, mConfig.dnsNegativeTtl);
+
+        // Pools created from this instance configuration, never shared with other instances
+        mPoolManager = new WebSocketChannelPoolManager(mResolver);
+        if (mConfig.proxyUri != null && mConfig.poolWarmMax != null && mConfig.poolWarmMax > 0) {
+            mPoolManager.prewarm(mConfig, mWorkerGroup);
+        }
+
         ServerBootstrap bootstrap = new ServerBootstrap()
                 .group(mBossGroup, mWorkerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(mTransport.serverSocketChannel())
                 .option(ChannelOption.SO_REUSEADDR, true)
                 //.handler(new LoggingHandler(LogLevel.INFO))
                 .childHandler(childHandler)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childAttr(WebSocketChannelPoolManager.ATTR_MANAGER, mPoolManager)
+                .childAttr(DnsResolver.ATTR_RESOLVER, mResolver)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
         mChannelFuture = bootstrap
                 .bind(new InetSocketAddress(mConfig.bindAddress, mConfig.bindPort))
                 .syncUninterruptibly();
@@ -158,6 +246,12 @@ public class WslLocal {
                 .close()
                 .syncUninterruptibly();
         mChannelFuture = null;
+        mPoolManager.shutdown();
+        mPoolManager = null;
+        if (mResolver != DefaultAddressResolverGroup.INSTANCE) {
+            mResolver.close();
+        }
+        mResolver = null;
         return this;
     }
 
@@ -1,28 +1,42 @@
 package com.rex.proxy;
 
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.TlsHandshakes;
+import com.rex.proxy.common.TlsProvider;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.websocket.WsServerInitializer;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
 import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLException;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 /**
  * WebSocket proxy server
@@ -31,10 +45,19 @@ public class WslServer {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WslServer.class);
 
-    private final EventLoopGroup mBossGroup = new NioEventLoopGroup(1);
-    private final EventLoopGroup mWorkerGroup = new NioEventLoopGroup(); // Default use Runtime.getRuntime().availableProcessors() * 2
+    private static final int SSL_RELOAD_INTERVAL_SECONDS = 60;
+
+    private Transport mTransport;
+    private EventLoopGroup mBossGroup;
+    private EventLoopGroup mWorkerGroup;
 
     private ChannelFuture mChannelFuture;
+    private AddressResolverGroup<InetSocketAddress> mResolver;
+    private volatile TlsHandshakes mHandshakes;
+    private volatile WsServerInitializer mInitializer;
+    private ScheduledFuture<?> mSslReloadTask;
+    private volatile long[] mSslModified; // Last modified time of sslCert and sslKey loaded
+    private long[] mSslChanged; // Seen by the reload task, reload once unchanged for an interval
 
     public static class Configuration {
         public String bindAddress;
@@ -45,6 +68,21 @@ public class WslServer {
         public String sslKeyPassword; // Leave it null if key not encrypted
         public String proxyUid; // Leave it null if you do not need auth
         public String proxyPath; // Leave it null if accept all http path upgrading
+        public String transport; // auto | epoll | nio, default auto
+        public Integer writeBufferLowWaterMark; // Resume reading tunnel source when sink pending bytes below it
+        public Integer writeBufferHighWaterMark; // Stop reading tunnel source when sink pending bytes above it
+        public Integer coalesceBytes; // Coalesce small reads into one WebSocket frame up to the bytes, downstream direction
+        public Long coalesceDelayMicros; // Max delay for coalescing, 0 only coalesce reads in the same read loop
+        public Integer maxFrameSize; // Max WebSocket frame payload, negotiated with peer, default 65536
+        public String dnsServers; // Comma separated DNS servers as host[:port], default system ones
+        public Integer dnsCacheSize; // Max hosts in DNS cache, default 4096
+        public Integer dnsNegativeTtl; // Seconds to cache failed DNS lookups, default 10
+        public Boolean loopAffinity; // Connect destination in the event loop of WebSocket, default true
+        public String sslProvider; // jdk | openssl, TLS engine, openssl fallback to jdk without native library, default jdk
+        public Integer sslHandshakeThreads; // Threads running TLS handshake tasks off the event loops, default processors, 0 run in event loop
+        public Integer sslMaxHandshakesPerLoop; // Max concurrent TLS handshakes per event loop, later connections wait, default unlimited
+        public Boolean sslDynamicRecord; // Small TLS records at the start of each burst, grow after 1MB, default true
+        public Integer sslReloadIntervalSeconds; // Check sslCert and sslKey for change and reload, default 60, 0 disable
         public Configuration() {
         }
         public Configuration(int port) {
@@ -77,6 +115,21 @@ public class WslServer {
             builder.append(" sslKeyPassword:").append(sslKeyPassword);
             builder.append(" proxyUid:").append(proxyUid);
             builder.append(" proxyPath:").append(proxyPath);
+            builder.append(" transport:").append(transport);
+            builder.append(" writeBufferLowWaterMark:").append(writeBufferLowWaterMark);
+            builder.append(" writeBufferHighWaterMark:").append(writeBufferHighWaterMark);
+            builder.append(" coalesceBytes:").append(coalesceBytes);
+            builder.append(" coalesceDelayMicros:").append(coalesceDelayMicros);
+            builder.append(" maxFrameSize:").append(maxFrameSize);
+            builder.append(" dnsServers:").append(dnsServers);
+            builder.append(" dnsCacheSize:").append(dnsCacheSize);
+            builder.append(" dnsNegativeTtl:").append(dnsNegativeTtl);
+            builder.append(" loopAffinity:").append(loopAffinity);
+            builder.append(" sslProvider:").append(sslProvider);
+            builder.append(" sslHandshakeThreads:").append(sslHandshakeThreads);
+            builder.append(" sslMaxHandshakesPerLoop:").append(sslMaxHandshakesPerLoop);
+            builder.append(" sslDynamicRecord:").append(sslDynamicRecord);
+            builder.append(" sslReloadIntervalSeconds:").append(sslReloadIntervalSeconds);
             builder.append(">");
             return builder.toString();
         }
@@ -99,6 +152,21 @@ public class WslServer {
         if (conf.sslKeyPassword != null) mConfig.sslKeyPassword = conf.sslKeyPassword;
         if (conf.proxyUid != null) mConfig.proxyUid = conf.proxyUid;
         if (conf.proxyPath != null) mConfig.proxyPath = conf.proxyPath;
+        if (conf.transport != null) mConfig.transport = conf.transport;
+        if (conf.writeBufferLowWaterMark != null) mConfig.writeBufferLowWaterMark = conf.writeBufferLowWaterMark;
+        if (conf.writeBufferHighWaterMark != null) mConfig.writeBufferHighWaterMark = conf.writeBufferHighWaterMark;
+        if (conf.coalesceBytes != null) mConfig.coalesceBytes = conf.coalesceBytes;
+        if (conf.coalesceDelayMicros != null) mConfig.coalesceDelayMicros = conf.coalesceDelayMicros;
+        if (conf.maxFrameSize != null) mConfig.maxFrameSize = conf.maxFrameSize;
+        if (conf.dnsServers != null) mConfig.dnsServers = conf.dnsServers;
+        if (conf.dnsCacheSize != null) mConfig.dnsCacheSize = conf.dnsCacheSize;
+        if (conf.dnsNegativeTtl != null) mConfig.dnsNegativeTtl = conf.dnsNegativeTtl;
+        if (conf.loopAffinity != null) mConfig.loopAffinity = conf.loopAffinity;
+        if (conf.sslProvider != null) mConfig.sslProvider = conf.sslProvider;
+        if (conf.sslHandshakeThreads != null) mConfig.sslHandshakeThreads = conf.sslHandshakeThreads;
+        if (conf.sslMaxHandshakesPerLoop != null) mConfig.sslMaxHandshakesPerLoop = conf.sslMaxHandshakesPerLoop;
+        if (conf.sslDynamicRecord != null) mConfig.sslDynamicRecord = conf.sslDynamicRecord;
+        if (conf.sslReloadIntervalSeconds != null) mConfig.sslReloadIntervalSeconds = conf.sslReloadIntervalSeconds;
         return this;
     }
 
@@ -113,30 +181,17 @@ public class WslServer {
 
         SslContext sslContext = null; // Make sure always update it
         if (Boolean.TRUE.equals(mConfig.ssl)) {
+            SslProvider sslProvider = TlsProvider.select(mConfig.sslProvider);
+            sLogger.info("SSL provider {}", sslProvider);
             if (mConfig.sslCert != null && mConfig.sslKey != null) {
-                try {
-                    FileInputStream is = new FileInputStream(mConfig.sslCert);
-                    Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(is);
-                    sLogger.info("Cert s:{}", ((X509Certificate) cert).getSubjectX500Principal().getName());
-                    sLogger.info("     i:{}", ((X509Certificate) cert).getIssuerX500Principal().getName());
-                } catch (FileNotFoundException | CertificateException e) {
-                    sLogger.warn("Failed to load certificate\n", e);
-                }
-
-                SslContextBuilder sslCtxBuilder = (mConfig.sslKeyPassword != null) ?
-                        SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey), mConfig.sslKeyPassword) :
-                        SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey));
-                try {
-                    sslContext = sslCtxBuilder.build();
-                } catch (SSLException ex) {
-                    sLogger.warn("Failed to init ssl\n", ex);
-                }
+                mSslModified = sslModified();
+                sslContext = loadSslContext(sslProvider);
             } else {
                 try {
                     SelfSignedCertificate ssc = new SelfSignedCertificate();
                     sLogger.info("Cert s:{}", ssc.cert().getSubjectX500Principal().getName());
                     sLogger.info("     i:{}", ssc.cert().getIssuerX500Principal().getName());
-                    sslContext = SslContextBuilder.forServer(ssc.key(), ssc.cert()).build();
+                    sslContext = SslContextBuilder.forServer(ssc.key(), ssc.cert()).sslProvider(sslProvider).build();
                 } catch (CertificateException ex) {
                     sLogger.warn("Failed to generate self-signed certificate\n", ex);
                 } catch (SSLException ex) {
@@ -145,23 +200,189 @@ public class WslServer {
             }
         }
 
+        if (mTransport == null) {
+            mTransport = Transport.select(mConfig.transport);
+            mBossGroup = mTransport.newEventLoopGroup(1);
+            mWorkerGroup = mTransport.newEventLoopGroup(0); // Default use Runtime.getRuntime().availableProcessors() * 2
+            sLogger.info("Transport {}", mTransport);
+        }
+
+        mResolver = DnsResolver.newGroup(mTransport, mConfig.dnsServers, mConfig.dnsCacheSize, mConfig.dnsNegativeTtl);
+        mHandshakes = new TlsHandshakes(mConfig.sslHandshakeThreads, mConfig.sslMaxHandshakesPerLoop);
+
+        mInitializer = new WsServerInitializer(mWorkerGroup, mConfig, sslContext, mHandshakes);
+
         SocketAddress address = new InetSocketAddress(mConfig.bindAddress, mConfig.bindPort);
         sLogger.trace("start address=<{}>", address);
 
         mChannelFuture = new ServerBootstrap()
                 .group(mBossGroup, mWorkerGroup)
-                .channel(NioServerSocketChannel.class)
+                .channel(mTransport.serverSocketChannel())
                 .option(ChannelOption.SO_REUSEADDR, true)
-                .childHandler(new WsServerInitializer(mWorkerGroup, mConfig, sslContext))
+                .childHandler(mInitializer)
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childAttr(DnsResolver.ATTR_RESOLVER, mResolver)
+                .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark))
                 .bind(address)
                 .syncUninterruptibly();
 
         SocketAddress sockAddr = mChannelFuture.channel().localAddress();
         sLogger.trace("started address=<{}>", sockAddr);
+
+        int reloadInterval = (mConfig.sslReloadIntervalSeconds != null) ? mConfig.sslReloadIntervalSeconds : SSL_RELOAD_INTERVAL_SECONDS;
+        if (sslContext != null && mConfig.sslCert != null && mConfig.sslKey != null && reloadInterval > 0) {
+            // Poll rather than watch, certificate renewal often replaces a symlink
+            // Files still being written, e.g. new cert with old key, wait for the next check
+            mSslChanged = null;
+            mSslReloadTask = mBossGroup.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long[] modified = sslModified();
+                        if (Arrays.equals(modified, mSslModified)) {
+                            mSslChanged = null;
+                        } else if (!Arrays.equals(modified, mSslChanged)) {
+                            sLogger.info("SSL files changed, reload once unchanged");
+                            mSslChanged = modified;
+                        } else if (!reloadSsl()) {
+                            mSslModified = modified; // Never retry the same broken files
+                        }
+                    } catch (Exception ex) { // Thrown out of the task cancels the later checks
+                        sLogger.warn("Failed to reload ssl\n", ex);
+                    }
+                }
+            }, reloadInterval, reloadInterval, TimeUnit.SECONDS);
+        }
         return this;
     }
 
+    /**
+     * Load the SslContext from sslCert and sslKey
+     *
+     * @return null if failed
+     */
+    private SslContext loadSslContext(SslProvider sslProvider) {
+        try (FileInputStream is = new FileInputStream(mConfig.sslCert)) {
+            Certificate cert = CertificateFactory.getInstance("X.509").generateCertificate(is);
+            sLogger.info("Cert s:{}", ((X509Certificate) cert).getSubjectX500Principal().getName());
+            sLogger.info("     i:{}", ((X509Certificate) cert).getIssuerX500Principal().getName());
+            sLogger.info("     until:{}", ((X509Certificate) cert).getNotAfter());
+        } catch (IOException | CertificateException e) {
+            sLogger.warn("Failed to load certificate\n", e);
+        }
+
+        SslContext sslContext;
+        try {
+            SslContextBuilder sslCtxBuilder = (mConfig.sslKeyPassword != null) ?
+                    SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey), mConfig.sslKeyPassword) :
+                    SslContextBuilder.forServer(new File(mConfig.sslCert), new File(mConfig.sslKey));
+            sslContext = sslCtxBuilder.sslProvider(sslProvider).build();
+        } catch (SSLException | IllegalArgumentException ex) { // Bad key file fails with IllegalArgumentException
+            sLogger.warn("Failed to init ssl\n", ex);
+            return null;
+        }
+        // Providers accept a certificate with the key of another one, then every handshake fails
+        if (!handshake(sslContext)) {
+            sLogger.warn("Failed to init ssl, certificate and key not match");
+            return null;
+        }
+        return sslContext;
+    }
+
+    /**
+     * Handshake with the server context in memory
+     *
+     * @return false if failed, e.g. the private key not match the certificate
+     */
+    private static boolean handshake(SslContext serverContext) {
+        SSLEngine client = null;
+        SSLEngine server = null;
+        try {
+            client = SslContextBuilder.forClient()
+                    .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                    .build()
+                    .newEngine(ByteBufAllocator.DEFAULT);
+            server = serverContext.newEngine(ByteBufAllocator.DEFAULT);
+            client.beginHandshake();
+            server.beginHandshake();
+            ByteBuffer toServer = ByteBuffer.allocate(client.getSession().getPacketBufferSize() * 4);
+            ByteBuffer toClient = ByteBuffer.allocate(server.getSession().getPacketBufferSize() * 4);
+            ByteBuffer app = ByteBuffer.allocate(Math.max(client.getSession().getApplicationBufferSize(),
+                    server.getSession().getApplicationBufferSize()));
+            for (int i = 0; i < 100; i++) {
+                if (isHandshaked(client) && isHandshaked(server)) {
+                    return true;
+                }
+                handshake(client, toClient, toServer, app);
+                handshake(server, toServer, toClient, app);
+            }
+            sLogger.warn("Handshake not completed");
+            return false;
+        } catch (SSLException ex) {
+            sLogger.warn("Handshake failed - {}", ex.toString());
+            return false;
+        } finally {
+            ReferenceCountUtil.release(client); // OpenSSL engine is reference counted
+            ReferenceCountUtil.release(server);
+        }
+    }
+
+    // One step of an engine, read the records from peer and write its own
+    private static void handshake(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app) throws SSLException {
+        in.flip();
+        SSLEngineResult result;
+        do {
+            result = engine.unwrap(in, app);
+            runDelegatedTasks(engine);
+            app.clear();
+        } while (result.getStatus() == SSLEngineResult.Status.OK && result.bytesConsumed() > 0 && in.hasRemaining());
+        in.compact();
+        do {
+            result = engine.wrap(ByteBuffer.allocate(0), out);
+            runDelegatedTasks(engine);
+        } while (result.getStatus() == SSLEngineResult.Status.OK && result.bytesProduced() > 0);
+    }
+
+    private static void runDelegatedTasks(SSLEngine engine) {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static boolean isHandshaked(SSLEngine engine) {
+        return engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING && !engine.isOutboundDone();
+    }
+
+    // Last modified time of sslCert and sslKey
+    private long[] sslModified() {
+        return new long[] { new File(mConfig.sslCert).lastModified(), new File(mConfig.sslKey).lastModified() };
+    }
+
+    /**
+     * Reload sslCert and sslKey, new connections use the new certificate, established connections are not affected
+     *
+     * @return false if not started with certificate files, failed to load, or the key not match the certificate,
+     *         the current certificate is kept
+     */
+    public boolean reloadSsl() {
+        // Not synchronized, the reload task runs in boss loop and stop() waits the loop closing the server channel
+        WsServerInitializer initializer = mInitializer;
+        if (initializer == null || mConfig.sslCert == null || mConfig.sslKey == null || !Boolean.TRUE.equals(mConfig.ssl)) {
+            sLogger.warn("Not started with certificate files");
+            return false;
+        }
+        long[] modified = sslModified();
+        SslContext sslContext = loadSslContext(TlsProvider.select(mConfig.sslProvider));
+        if (sslContext == null) {
+            return false;
+        }
+        mSslModified = modified;
+        initializer.sslContext(sslContext);
+        sLogger.info("SSL reloaded");
+        return true;
+    }
+
     /**
      * Stop the proxy server
      */
@@ -182,9 +403,27 @@ public class WslServer {
         sLogger.trace("close future sync");
 
         mChannelFuture = null;
+        mInitializer = null;
+        if (mSslReloadTask != null) {
+            mSslReloadTask.cancel(false);
+            mSslReloadTask = null;
+        }
+        mResolver.close();
+        mResolver = null;
+        sLogger.info("TLS handshakes {}", mHandshakes.gauge());
+        mHandshakes.shutdown();
+        mHandshakes = null;
         return this;
     }
 
+    /**
+     * Statistics of the TLS handshakes, null if not started
+     */
+    public TlsHandshakes.HandshakeGauge handshakeGauge() {
+        TlsHandshakes handshakes = mHandshakes;
+        return (handshakes != null) ? handshakes.gauge() : null;
+    }
+
     public int port() {
         try {
             return ((InetSocketAddress) mChannelFuture.channel().localAddress()).getPort();
@@ -0,0 +1,99 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.Channel;
+import io.netty.channel.WriteBufferWaterMark;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backpressure between the two channels of a tunnel
+ *
+ * When the sink channel outbound buffer over the high water mark, stop auto read the source channel,
+ * resume it after the sink drained below the low water mark.
+ * The relay handler on the source channel call {@link #throttle(Channel, Channel)} after write,
+ * the relay handler on the sink channel call {@link #resume(Channel, Channel)} when writability changed.
+ */
+public final class Backpressure {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(Backpressure.class);
+
+    private static final AtomicLong sThrottleCount = new AtomicLong();
+    private static final AtomicLong sResumeCount = new AtomicLong();
+
+    private Backpressure() {
+    }
+
+    /**
+     * Build the water mark for relay channels, null will use netty default 32KB - 64KB
+     * Low mark is clamped to the high mark, e.g. only a small high mark configured
+     */
+    public static WriteBufferWaterMark waterMark(Integer low, Integer high) {
+        int lowMark = (low != null) ? low : WriteBufferWaterMark.DEFAULT.low();
+        int highMark = (high != null) ? high : Math.max(lowMark, WriteBufferWaterMark.DEFAULT.high());
+        return new WriteBufferWaterMark(Math.min(lowMark, highMark), highMark);
+    }
+
+    /**
+     * Stop reading source if sink not writable
+     */
+    public static void throttle(Channel source, Channel sink) {
+        if (sink.isWritable() || !source.config().isAutoRead()) {
+            return;
+        }
+        source.config().setAutoRead(false);
+        sThrottleCount.incrementAndGet();
+        sLogger.trace("Throttle {} sink {} not writable", source, sink);
+
+        // Sink may drained before auto read disabled, and will never fire writability changed again
+        if (sink.isWritable()) {
+            resume(sink, source);
+        }
+    }
+
+    /**
+     * Resume reading source if sink writable again
+     */
+    public static void resume(Channel sink, Channel source) {
+        if (!sink.isWritable() || source.config().isAutoRead()) {
+            return;
+        }
+        source.config().setAutoRead(true);
+        sResumeCount.incrementAndGet();
+        sLogger.trace("Resume {} sink {} writable", source, sink);
+    }
+
+    /**
+     * Restore reading source when tunnel finished, e.g. pooled channel return to pool
+     */
+    public static void release(Channel source) {
+        if (source.config().isAutoRead()) {
+            return;
+        }
+        source.config().setAutoRead(true);
+        sResumeCount.incrementAndGet();
+        sLogger.trace("Release {}", source);
+    }
+
+    /**
+     * Times of tunnel source stop reading because sink not writable
+     */
+    public static long throttleCount() {
+        return sThrottleCount.get();
+    }
+
+    /**
+     * Times of tunnel source resume reading
+     */
+    public static long resumeCount() {
+        return sResumeCount.get();
+    }
+
+    /**
+     * Tunnel sources currently stop reading, closed tunnels may still count in
+     */
+    public static long throttledNow() {
+        return sThrottleCount.get() - sResumeCount.get();
+    }
+}
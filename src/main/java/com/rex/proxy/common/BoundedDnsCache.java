@@ -0,0 +1,90 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.dns.DnsRecord;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsCacheEntry;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Limit the hosts of a DNS cache, the least recently used host is cleared when full
+ * Expiration by TTL is still done by the wrapped cache.
+ */
+class BoundedDnsCache implements DnsCache {
+
+    private final DnsCache mCache;
+    private final int mMaxHosts;
+    private final LinkedHashMap<String, Boolean> mHosts = new LinkedHashMap<>(16, 0.75f, true); // Access order
+
+    BoundedDnsCache(DnsCache cache, int maxHosts) {
+        mCache = cache;
+        mMaxHosts = maxHosts;
+    }
+
+    @Override // DnsCache
+    public void clear() {
+        synchronized (mHosts) {
+            mHosts.clear();
+        }
+        mCache.clear();
+    }
+
+    @Override // DnsCache
+    public boolean clear(String hostname) {
+        synchronized (mHosts) {
+            mHosts.remove(hostname);
+        }
+        return mCache.clear(hostname);
+    }
+
+    @Override // DnsCache
+    public List<? extends DnsCacheEntry> get(String hostname, DnsRecord[] additionals) {
+        List<? extends DnsCacheEntry> entries = mCache.get(hostname, additionals);
+        if (entries != null) {
+            synchronized (mHosts) {
+                mHosts.get(hostname);
+            }
+        }
+        return entries;
+    }
+
+    @Override // DnsCache
+    public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, InetAddress address, long originalTtl, EventLoop loop) {
+        DnsCacheEntry entry = mCache.cache(hostname, additionals, address, originalTtl, loop);
+        track(hostname);
+        return entry;
+    }
+
+    @Override // DnsCache
+    public DnsCacheEntry cache(String hostname, DnsRecord[] additionals, Throwable cause, EventLoop loop) {
+        DnsCacheEntry entry = mCache.cache(hostname, additionals, cause, loop);
+        track(hostname);
+        return entry;
+    }
+
+    int size() {
+        synchronized (mHosts) {
+            return mHosts.size();
+        }
+    }
+
+    private void track(String hostname) {
+        String eldest = null;
+        synchronized (mHosts) {
+            mHosts.put(hostname, Boolean.TRUE);
+            if (mHosts.size() > mMaxHosts) {
+                Iterator<Map.Entry<String, Boolean>> it = mHosts.entrySet().iterator();
+                eldest = it.next().getKey();
+                it.remove();
+            }
+        }
+        if (eldest != null) {
+            mCache.clear(eldest);
+        }
+    }
+}
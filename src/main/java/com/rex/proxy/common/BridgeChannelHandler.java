@@ -11,12 +11,14 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Bridge all data to target channel
+ * Write each read message, flush once when the read loop completed
  */
 public final class BridgeChannelHandler extends ChannelInboundHandlerAdapter {
 
     private static final Logger sLogger = LoggerFactory.getLogger(BridgeChannelHandler.class);
 
     private final Channel mOutput;
+    private boolean mPendingFlush;
 
     public BridgeChannelHandler(Channel ch) {
         sLogger.trace("<init> ch=<{}>", ch);
@@ -26,12 +28,34 @@ public final class BridgeChannelHandler extends ChannelInboundHandlerAdapter {
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) {
         //sLogger.trace("ctx={} msg={}", ctx, msg);
-        ReferenceCountUtil.retain(msg);
         if (mOutput.isActive()) {
-            mOutput.writeAndFlush(msg);
+            // Pass the reference to output, will release after written
+            mOutput.write(msg, mOutput.voidPromise());
+            mPendingFlush = true;
+            Backpressure.throttle(ctx.channel(), mOutput);
+        } else {
+            ReferenceCountUtil.release(msg);
         }
     }
 
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        Backpressure.resume(ctx.channel(), mOutput);
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        super.handlerRemoved(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         // ctx: [id: 0x0182c0ea, L:/127.0.0.1:1080 - R:/127.0.0.1:54536]
@@ -42,4 +66,11 @@ public final class BridgeChannelHandler extends ChannelInboundHandlerAdapter {
                     .addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    private void flushIfNeeded() {
+        if (mPendingFlush) {
+            mPendingFlush = false;
+            mOutput.flush();
+        }
+    }
 }
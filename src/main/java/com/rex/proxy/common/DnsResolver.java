@@ -0,0 +1,218 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.EventLoop;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.resolver.NameResolver;
+import io.netty.resolver.SimpleNameResolver;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DefaultDnsCnameCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProvider;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Asynchronous DNS resolver shared by the outbound bootstraps
+ *
+ * Netty default resolver calls blocking InetAddress lookup in the event loop, one slow DNS server stalls every
+ * channel of the loop. This one queries the name servers without blocking, caches answers by their TTL and failures
+ * by the negative TTL, in a cache shared by all event loops and bounded in host count.
+ * Concurrent lookups of the same host share one query. Hosts file is still honoured.
+ */
+public class DnsResolver {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(DnsResolver.class);
+
+    public static final AttributeKey<AddressResolverGroup<InetSocketAddress>> ATTR_RESOLVER = AttributeKey.valueOf("dns.resolver");
+
+    private static final int CACHE_SIZE = 4096;
+    private static final int NEGATIVE_TTL_SECONDS = 10;
+    private static final long QUERY_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Resolver of the WslLocal or WslServer accepted the channel, or the default blocking one
+     */
+    public static AddressResolverGroup<InetSocketAddress> of(Channel channel) {
+        AddressResolverGroup<InetSocketAddress> resolver = channel.attr(ATTR_RESOLVER).get();
+        if (resolver == null && channel.parent() != null) {
+            resolver = channel.parent().attr(ATTR_RESOLVER).get();
+        }
+        return (resolver != null) ? resolver : DefaultAddressResolverGroup.INSTANCE;
+    }
+
+    /**
+     * @param transport Transport of the event loops using the resolver
+     * @param servers Comma separated name servers as host[:port], null to use the system ones
+     * @param cacheSize Max hosts in cache, null to use default
+     * @param negativeTtl Seconds to cache failed lookups, null to use default
+     */
+    public static AddressResolverGroup<InetSocketAddress> newGroup(Transport transport, String servers, Integer cacheSize, Integer negativeTtl) {
+        sLogger.trace("newGroup transport={} servers={} cacheSize={} negativeTtl={}", transport, servers, cacheSize, negativeTtl);
+        int ttl = (negativeTtl != null) ? negativeTtl : NEGATIVE_TTL_SECONDS;
+        int size = (cacheSize != null) ? cacheSize : CACHE_SIZE;
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .datagramChannelType(transport.datagramChannel())
+                .socketChannelType(transport.socketChannel()) // Retry truncated answers over TCP
+                .nameServerProvider(nameServers(servers))
+                .queryTimeoutMillis(QUERY_TIMEOUT_MILLIS)
+                // Shared by the resolvers of every event loop
+                .resolveCache(new BoundedDnsCache(new DefaultDnsCache(0, Integer.MAX_VALUE, ttl), size))
+                .cnameCache(new DefaultDnsCnameCache());
+        // Group coalesces the in flight lookups of the same host
+        return new Group(builder, ttl, size);
+    }
+
+    static DnsServerAddressStreamProvider nameServers(String servers) {
+        if (servers == null || servers.trim().isEmpty()) {
+            return DnsServerAddressStreamProviders.platformDefault();
+        }
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String server : servers.split(",")) {
+            server = server.trim();
+            if (server.isEmpty()) {
+                continue;
+            }
+            int colon = server.lastIndexOf(':');
+            // IPv6 literal in brackets or bare, e.g. [::1]:53 or ::1
+            if ((colon > 0 && server.indexOf(':') == colon) || (server.startsWith("[") && colon > server.indexOf(']'))) {
+                addresses.add(new InetSocketAddress(strip(server.substring(0, colon)), Integer.parseInt(server.substring(colon + 1))));
+            } else {
+                addresses.add(new InetSocketAddress(strip(server), 53));
+            }
+        }
+        sLogger.info("DNS servers {}", addresses);
+        return new SequentialDnsServerAddressStreamProvider(addresses);
+    }
+
+    private static String strip(String host) {
+        return (host.startsWith("[") && host.endsWith("]")) ? host.substring(1, host.length() - 1) : host;
+    }
+
+    /**
+     * Netty caches a failed lookup only if no query error attached, e.g. NXDOMAIN may still be queried every time,
+     * the group remembers the failed hosts by itself, shared by all event loops.
+     */
+    private static final class Group extends DnsAddressResolverGroup {
+
+        private final Map<String, Long> mFailed = new ConcurrentHashMap<>(); // Host to expire time in nanos
+        private final long mNegativeTtlNanos;
+        private final int mMaxHosts;
+
+        Group(DnsNameResolverBuilder builder, int negativeTtl, int maxHosts) {
+            super(builder);
+            mNegativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtl);
+            mMaxHosts = maxHosts;
+        }
+
+        @Override // DnsAddressResolverGroup
+        protected NameResolver<InetAddress> newNameResolver(EventLoop eventLoop,
+                                                            ChannelFactory<? extends DatagramChannel> channelFactory,
+                                                            DnsServerAddressStreamProvider nameServerProvider) throws Exception {
+            NameResolver<InetAddress> resolver = super.newNameResolver(eventLoop, channelFactory, nameServerProvider);
+            return (mNegativeTtlNanos > 0) ? new NegativeCacheResolver(eventLoop, resolver) : resolver;
+        }
+
+        private boolean isFailed(String host) {
+            Long expire = mFailed.get(host);
+            if (expire == null) {
+                return false;
+            }
+            if (expire - System.nanoTime() > 0) {
+                return true;
+            }
+            mFailed.remove(host, expire);
+            return false;
+        }
+
+        private void failed(String host, Throwable cause) {
+            if (!(cause instanceof UnknownHostException)) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (mFailed.size() >= mMaxHosts) {
+                mFailed.values().removeIf(expire -> expire - now <= 0);
+                if (mFailed.size() >= mMaxHosts) {
+                    return;
+                }
+            }
+            mFailed.put(host, now + mNegativeTtlNanos);
+        }
+
+        private final class NegativeCacheResolver extends SimpleNameResolver<InetAddress> {
+
+            private final NameResolver<InetAddress> mResolver;
+
+            NegativeCacheResolver(EventExecutor executor, NameResolver<InetAddress> resolver) {
+                super(executor);
+                mResolver = resolver;
+            }
+
+            @Override // SimpleNameResolver
+            protected void doResolve(final String inetHost, final Promise<InetAddress> promise) throws Exception {
+                final String host = inetHost.toLowerCase(Locale.ROOT);
+                if (isFailed(host)) {
+                    promise.tryFailure(new UnknownHostException("Failed to resolve '" + inetHost + "', cached"));
+                    return;
+                }
+                mResolver.resolve(inetHost).addListener(new FutureListener<InetAddress>() {
+                    @Override
+                    public void operationComplete(Future<InetAddress> future) throws Exception {
+                        if (future.isSuccess()) {
+                            promise.trySuccess(future.getNow());
+                        } else {
+                            failed(host, future.cause());
+                            promise.tryFailure(future.cause());
+                        }
+                    }
+                });
+            }
+
+            @Override // SimpleNameResolver
+            protected void doResolveAll(final String inetHost, final Promise<List<InetAddress>> promise) throws Exception {
+                final String host = inetHost.toLowerCase(Locale.ROOT);
+                if (isFailed(host)) {
+                    promise.tryFailure(new UnknownHostException("Failed to resolve '" + inetHost + "', cached"));
+                    return;
+                }
+                mResolver.resolveAll(inetHost).addListener(new FutureListener<List<InetAddress>>() {
+                    @Override
+                    public void operationComplete(Future<List<InetAddress>> future) throws Exception {
+                        if (future.isSuccess()) {
+                            promise.trySuccess(future.getNow());
+                        } else {
+                            failed(host, future.cause());
+                            promise.tryFailure(future.cause());
+                        }
+                    }
+                });
+            }
+
+            @Override // SimpleNameResolver
+            public void close() {
+                mResolver.close();
+            }
+        }
+    }
+}
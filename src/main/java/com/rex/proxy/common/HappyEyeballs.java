@@ -0,0 +1,241 @@
+package com.rex.proxy.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoop;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connect to a host of several addresses in parallel, RFC 8305 style
+ *
+ * All the addresses are resolved first and interleaved by family, starting with the family of the first answer.
+ * Attempts start one by one, the next after the attempt delay or as soon as the previous failed,
+ * the first connected wins and the others are closed. A blackholed address costs the delay
+ * instead of the whole connect timeout.
+ *
+ * The handler is added to the winner only, its channelActive is held until then.
+ */
+public class HappyEyeballs {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(HappyEyeballs.class);
+
+    static final long ATTEMPT_DELAY_MILLIS = 250; // Recommended Connection Attempt Delay of RFC 8305
+
+    /**
+     * @param bootstrap Configured with group and options, its handler is replaced
+     * @param resolver Resolve all the addresses of host
+     * @param handler Added to the connected channel
+     * @return Completed with the connected channel in the event loop of bootstrap
+     */
+    public static Future<Channel> connect(Bootstrap bootstrap, AddressResolverGroup<InetSocketAddress> resolver,
+                                          String host, int port, final ChannelHandler handler) {
+        final EventLoop loop = bootstrap.config().group().next();
+        final Promise<Channel> promise = loop.newPromise();
+        final Bootstrap attempt = bootstrap.clone(loop)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) throws Exception {
+                        ch.pipeline().addLast(new Gate());
+                    }
+                });
+
+        AddressResolver<InetSocketAddress> addressResolver = resolver.getResolver(loop);
+        addressResolver.resolveAll(InetSocketAddress.createUnresolved(host, port))
+                .addListener(new FutureListener<List<InetSocketAddress>>() {
+                    @Override
+                    public void operationComplete(Future<List<InetSocketAddress>> future) throws Exception {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                            return;
+                        }
+                        List<InetSocketAddress> addresses = interleave(future.getNow());
+                        sLogger.trace("Connect {} in order {}", host, addresses);
+                        new Race(loop, attempt, addresses, handler, promise).next();
+                    }
+                });
+        return promise;
+    }
+
+    /**
+     * Adapt a plain connect, e.g. the handler must see the socket before connecting
+     */
+    public static Future<Channel> of(ChannelFuture future) {
+        final Promise<Channel> promise = future.channel().eventLoop().newPromise();
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture f) throws Exception {
+                if (f.isSuccess()) {
+                    promise.trySuccess(f.channel());
+                } else {
+                    promise.tryFailure(f.cause());
+                }
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * Alternate the address families, keep the order within each family
+     */
+    static List<InetSocketAddress> interleave(List<InetSocketAddress> addresses) {
+        if (addresses.size() < 2) {
+            return addresses;
+        }
+        Class<?> family = addresses.get(0).getAddress().getClass();
+        List<InetSocketAddress> first = new ArrayList<>();
+        List<InetSocketAddress> second = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            (family.equals(address.getAddress().getClass()) ? first : second).add(address);
+        }
+        List<InetSocketAddress> sorted = new ArrayList<>(addresses.size());
+        for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+            if (i < first.size()) {
+                sorted.add(first.get(i));
+            }
+            if (i < second.size()) {
+                sorted.add(second.get(i));
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * Attempts of one connect, all run in the same event loop
+     */
+    private static final class Race implements Runnable, ChannelFutureListener {
+
+        private final EventLoop mLoop;
+        private final Bootstrap mBootstrap;
+        private final List<InetSocketAddress> mAddresses;
+        private final ChannelHandler mHandler;
+        private final Promise<Channel> mPromise;
+        private final List<Channel> mAttempts = new ArrayList<>();
+        private int mNext;
+        private int mRunning;
+        private ScheduledFuture<?> mTimer;
+
+        Race(EventLoop loop, Bootstrap bootstrap, List<InetSocketAddress> addresses, ChannelHandler handler, Promise<Channel> promise) {
+            mLoop = loop;
+            mBootstrap = bootstrap;
+            mAddresses = addresses;
+            mHandler = handler;
+            mPromise = promise;
+        }
+
+        @Override // Runnable
+        public void run() {
+            mTimer = null;
+            next();
+        }
+
+        void next() {
+            if (mTimer != null) {
+                mTimer.cancel(false);
+                mTimer = null;
+            }
+            if (mPromise.isDone() || mNext >= mAddresses.size()) {
+                return;
+            }
+            InetSocketAddress address = mAddresses.get(mNext++);
+            if (mNext > 1) {
+                sLogger.debug("Connect {} attempt {}", address, mNext);
+            }
+            mRunning++;
+            ChannelFuture future = mBootstrap.connect(address);
+            mAttempts.add(future.channel());
+            future.addListener(this);
+            if (mNext < mAddresses.size() && !future.isDone()) {
+                mTimer = mLoop.schedule(this, ATTEMPT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @Override // ChannelFutureListener
+        public void operationComplete(ChannelFuture future) throws Exception {
+            mRunning--;
+            if (future.isSuccess()) {
+                if (mPromise.isDone()) {
+                    future.channel().close();
+                } else {
+                    won(future.channel());
+                }
+                return;
+            }
+            if (mPromise.isDone()) {
+                return;
+            }
+            sLogger.debug("Connect {} failed - {}", future.channel(), future.cause().toString());
+            if (mNext < mAddresses.size()) {
+                next();
+            } else if (mRunning == 0) {
+                mPromise.tryFailure(future.cause());
+            }
+        }
+
+        private void won(Channel winner) {
+            if (mTimer != null) {
+                mTimer.cancel(false);
+                mTimer = null;
+            }
+            for (Channel ch : mAttempts) {
+                if (ch != winner) {
+                    ch.close();
+                }
+            }
+            mAttempts.clear();
+
+            Gate gate = winner.pipeline().get(Gate.class);
+            winner.pipeline().addLast(mHandler);
+            // Listeners see the channel before its handlers become active
+            if (!mPromise.trySuccess(winner)) {
+                winner.close();
+            }
+            if (gate != null) {
+                gate.open();
+            }
+        }
+    }
+
+    /**
+     * Hold channelActive of an attempt until it won
+     */
+    private static final class Gate extends ChannelInboundHandlerAdapter {
+
+        private ChannelHandlerContext mContext;
+        private boolean mActive;
+
+        @Override // ChannelInboundHandlerAdapter
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            mContext = ctx;
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            mActive = true;
+        }
+
+        void open() {
+            if (mActive) {
+                mContext.fireChannelActive();
+            }
+            mContext.pipeline().remove(this);
+        }
+    }
+}
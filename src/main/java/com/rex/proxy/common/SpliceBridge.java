@@ -0,0 +1,91 @@
+package com.rex.proxy.common;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.epoll.AbstractEpollStreamChannel;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.handler.timeout.IdleStateHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Zero-copy bridge between two epoll socket channels
+ * Bytes move from socket to socket through a kernel pipe by splice(2), never copied into ByteBuf
+ *
+ * Only works when both channels are epoll channels registered on the same event loop,
+ * otherwise keep relay with BridgeChannelHandler.
+ */
+public final class SpliceBridge {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(SpliceBridge.class);
+
+    private static final int SPLICE_FOREVER = Integer.MAX_VALUE; // Special length, splice until channel closed
+
+    private SpliceBridge() {
+    }
+
+    /**
+     * Start splice in both directions
+     * Data already read into pipeline will still forward by BridgeChannelHandler
+     *
+     * @param local Accepted socks or http client
+     * @param remote Connected target host
+     * @return false if splice not available
+     */
+    public static boolean splice(Channel local, Channel remote) {
+        if (!(local instanceof AbstractEpollStreamChannel) || !(remote instanceof AbstractEpollStreamChannel)) {
+            sLogger.trace("Splice not available, {} - {} not epoll channels", local, remote);
+            return false;
+        }
+        if (local.eventLoop() != remote.eventLoop()) {
+            sLogger.trace("Splice not available, {} - {} not in the same event loop", local, remote);
+            return false;
+        }
+
+        AbstractEpollStreamChannel in = (AbstractEpollStreamChannel) local;
+        AbstractEpollStreamChannel out = (AbstractEpollStreamChannel) remote;
+
+        // splice(2) only supported in level-triggered mode
+        in.config().setEpollMode(EpollMode.LEVEL_TRIGGERED);
+        out.config().setEpollMode(EpollMode.LEVEL_TRIGGERED);
+
+        // Spliced data bypass the pipeline, idle handler will never see the traffic
+        // Rely on SO_KEEPALIVE to detect dead peer instead
+        if (in.pipeline().get(IdleStateHandler.class) != null) {
+            in.pipeline().remove(IdleStateHandler.class);
+        }
+        if (out.pipeline().get(IdleStateHandler.class) != null) {
+            out.pipeline().remove(IdleStateHandler.class);
+        }
+
+        sLogger.debug("Splice {} with {}", local, remote);
+        in.spliceTo(out, SPLICE_FOREVER).addListener(new CloseListener(out));
+        out.spliceTo(in, SPLICE_FOREVER).addListener(new CloseListener(in));
+        return true;
+    }
+
+    // Splice forever only complete with failure, e.g. source closed or splice(2) error
+    // Make sure both side closed, flush the pending spliced data before close output
+    private static final class CloseListener implements ChannelFutureListener {
+
+        private final Channel mOutput;
+
+        CloseListener(Channel output) {
+            mOutput = output;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            sLogger.debug("Splice {} finished - {}", future.channel(), future.isSuccess() ? "success" : future.cause().getMessage());
+            if (future.channel().isActive()) {
+                future.channel().close();
+            }
+            if (mOutput.isActive()) {
+                mOutput.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
+}
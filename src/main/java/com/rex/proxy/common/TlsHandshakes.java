@@ -0,0 +1,225 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoop;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslHandshakeCompletionEvent;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server TLS handshakes kept off the relaying event loops
+ *
+ * The SSLEngine delegated tasks, the key exchange and signature of a handshake, run on a bounded executor
+ * instead of the event loop, a storm of new clients no longer stalls the tunnels sharing the loop.
+ * The executor runs a task in the caller once its queue is full, the storm then slows down its own loop only.
+ *
+ * Optionally at most maxPerLoop handshakes run at a time in each event loop, later connections stop reading
+ * and wait in the queue of their loop until a running handshake completes.
+ */
+public class TlsHandshakes {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TlsHandshakes.class);
+
+    private static final int TASK_QUEUE_SIZE = 1024;
+
+    private final ThreadPoolExecutor mExecutor; // Null to run the tasks in event loop
+    private final int mMaxPerLoop;
+    private final Map<EventLoop, Slots> mSlots = new ConcurrentHashMap<>();
+
+    private final AtomicInteger mRunning = new AtomicInteger();
+    private final AtomicInteger mWaiting = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * @param taskThreads Threads running the delegated tasks, null use available processors, 0 run in event loop
+     * @param maxPerLoop Max concurrent handshakes per event loop, null or 0 unlimited
+     */
+    public TlsHandshakes(Integer taskThreads, Integer maxPerLoop) {
+        sLogger.trace("<init> taskThreads={} maxPerLoop={}", taskThreads, maxPerLoop);
+        int threads = (taskThreads != null) ? Math.max(0, taskThreads) : Runtime.getRuntime().availableProcessors();
+        if (threads > 0) {
+            mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(TASK_QUEUE_SIZE),
+                    new DefaultThreadFactory("tls-handshake", true),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            mExecutor.allowCoreThreadTimeOut(true);
+        } else {
+            mExecutor = null;
+        }
+        mMaxPerLoop = (maxPerLoop != null && maxPerLoop > 0) ? maxPerLoop : Integer.MAX_VALUE;
+    }
+
+    /**
+     * Add the SslHandler of a new server channel, followed by the handler tracking its handshake
+     */
+    public void addLast(Channel ch, SslContext context) {
+        SslHandler handler = (mExecutor != null) ?
+                context.newHandler(ch.alloc(), (Executor) mExecutor) :
+                context.newHandler(ch.alloc());
+        ch.pipeline()
+                .addLast(handler)
+                .addLast(new Gate());
+    }
+
+    public HandshakeGauge gauge() {
+        long completed = mCompleted.get();
+        return new HandshakeGauge(mRunning.get(), mWaiting.get(),
+                (mExecutor != null) ? mExecutor.getQueue().size() : 0,
+                completed, mFailed.get(),
+                (completed > 0) ? TimeUnit.NANOSECONDS.toMicros(mTotalNanos.get() / completed) : 0,
+                TimeUnit.NANOSECONDS.toMicros(mMaxNanos.get()));
+    }
+
+    public void shutdown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        mSlots.clear();
+    }
+
+    /**
+     * Handshakes of one event loop, only accessed in the loop
+     */
+    private static final class Slots {
+        int mRunning;
+        final Queue<Gate> mWaiting = new ArrayDeque<>();
+    }
+
+    /**
+     * Hold reading of a new channel until its loop has a free slot, count the handshake
+     */
+    private final class Gate extends ChannelInboundHandlerAdapter {
+
+        private ChannelHandlerContext mContext;
+        private Slots mLoopSlots;
+        private long mStart;
+        private boolean mRunningSlot;
+        private boolean mQueued;
+
+        @Override // ChannelInboundHandlerAdapter
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            mContext = ctx;
+            mStart = System.nanoTime();
+            mLoopSlots = mSlots.computeIfAbsent(ctx.channel().eventLoop(), key -> new Slots());
+            if (mLoopSlots.mRunning < mMaxPerLoop) {
+                start();
+            } else {
+                // Nothing read before the slot, pipeline reads after channelActive only if auto read
+                ctx.channel().config().setAutoRead(false);
+                mLoopSlots.mWaiting.add(this);
+                mWaiting.incrementAndGet();
+                mQueued = true;
+                sLogger.debug("Handshake {} waiting, {} in queue", ctx.channel(), mLoopSlots.mWaiting.size());
+            }
+            super.channelActive(ctx);
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt instanceof SslHandshakeCompletionEvent) {
+                finish(((SslHandshakeCompletionEvent) evt).isSuccess());
+                ctx.pipeline().remove(this);
+            }
+            super.userEventTriggered(ctx, evt);
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            finish(false);
+            super.channelInactive(ctx);
+        }
+
+        private void start() {
+            mLoopSlots.mRunning++;
+            mRunning.incrementAndGet();
+            mRunningSlot = true;
+        }
+
+        private void finish(boolean success) {
+            if (mQueued) {
+                mQueued = false;
+                mLoopSlots.mWaiting.remove(this);
+                mWaiting.decrementAndGet();
+                return;
+            }
+            if (!mRunningSlot) {
+                return;
+            }
+            mRunningSlot = false;
+            mLoopSlots.mRunning--;
+            mRunning.decrementAndGet();
+            long elapsed = System.nanoTime() - mStart;
+            if (success) {
+                mCompleted.incrementAndGet();
+                mTotalNanos.addAndGet(elapsed);
+                long max;
+                while (elapsed > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, elapsed)) {
+                    // Retry
+                }
+            } else {
+                mFailed.incrementAndGet();
+            }
+            next();
+        }
+
+        // Start the next waiting handshake of the loop
+        private void next() {
+            Gate gate = mLoopSlots.mWaiting.poll();
+            if (gate != null) {
+                mWaiting.decrementAndGet();
+                gate.mQueued = false;
+                gate.start();
+                gate.mContext.channel().config().setAutoRead(true); // Issues a read
+            }
+        }
+    }
+
+    /**
+     * Statistics of the server handshakes
+     */
+    public static final class HandshakeGauge {
+
+        public final int running; // Handshakes holding a slot
+        public final int waiting; // Connections waiting for a slot
+        public final int tasks; // Delegated tasks waiting for the executor
+        public final long completed; // Succeeded handshakes since started
+        public final long failed; // Failed or closed before completed
+        public final long avgMicros; // Average from accepted to completed, including the wait
+        public final long maxMicros;
+
+        HandshakeGauge(int running, int waiting, int tasks, long completed, long failed, long avgMicros, long maxMicros) {
+            this.running = running;
+            this.waiting = waiting;
+            this.tasks = tasks;
+            this.completed = completed;
+            this.failed = failed;
+            this.avgMicros = avgMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        @Override
+        public String toString() {
+            return "running:" + running + " waiting:" + waiting + " tasks:" + tasks + " completed:" + completed +
+                    " failed:" + failed + " avg:" + avgMicros + "us max:" + maxMicros + "us";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.rex.proxy.common;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TLS engine used by the SslContext of WslServer and WslLocal
+ *
+ * JDK is the portable engine. OPENSSL binds OpenSSL or BoringSSL from netty-tcnative, much faster for AES-GCM
+ * on older JDK, and only available when the native library is on the classpath.
+ */
+public final class TlsProvider {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TlsProvider.class);
+
+    private TlsProvider() {
+    }
+
+    /**
+     * Select provider by config name, null use JDK
+     * Request 'openssl' without native library will fallback to JDK
+     *
+     * @param name jdk | openssl
+     */
+    public static SslProvider select(String name) {
+        if (name == null || "jdk".equalsIgnoreCase(name)) {
+            return SslProvider.JDK;
+        }
+        if ("openssl".equalsIgnoreCase(name)) {
+            if (OpenSsl.isAvailable()) {
+                return SslProvider.OPENSSL;
+            }
+            sLogger.warn("OpenSSL not available, fallback to jdk - {}", String.valueOf(OpenSsl.unavailabilityCause()));
+            return SslProvider.JDK;
+        }
+        sLogger.warn("Unknown ssl provider <{}>, fallback to jdk", name);
+        return SslProvider.JDK;
+    }
+}
@@ -0,0 +1,61 @@
+package com.rex.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dynamic TLS record size, add after the SslHandler
+ *
+ * A full 16KB record can not be decrypted before its last TCP segment arrives, the first bytes of a response wait
+ * for the whole record. Each burst starts with records fitting one TCP segment for fast time to first byte,
+ * and grows to the max record size after the threshold bytes, a bulk transfer pays little record overhead.
+ * Idle longer than the timeout starts a new burst.
+ */
+public class TlsRecordSizer extends ChannelOutboundHandlerAdapter {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TlsRecordSizer.class);
+
+    static final int SMALL_RECORD = 1369; // MSS 1460 without TCP timestamps and TLS record overhead
+    static final int LARGE_RECORD = 16 * 1024; // Max plaintext of a record
+    static final long THRESHOLD_BYTES = 1024 * 1024;
+    static final long IDLE_TIMEOUT_NANOS = 1000_000_000L; // 1 second
+
+    private final SslHandler mSslHandler;
+    private long mBurstBytes;
+    private long mLastWrite;
+    private boolean mLarge = true; // Force the first write to size the records
+
+    public TlsRecordSizer(SslHandler sslHandler) {
+        mSslHandler = sslHandler;
+    }
+
+    @Override // ChannelOutboundHandlerAdapter
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        int bytes = (msg instanceof ByteBuf) ? ((ByteBuf) msg).readableBytes() :
+                (msg instanceof ByteBufHolder) ? ((ByteBufHolder) msg).content().readableBytes() : 0;
+        if (bytes > 0) {
+            long now = System.nanoTime();
+            if (now - mLastWrite > IDLE_TIMEOUT_NANOS) {
+                mBurstBytes = 0;
+            }
+            mLastWrite = now;
+            mBurstBytes += bytes;
+            resize(mBurstBytes > THRESHOLD_BYTES);
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    private void resize(boolean large) {
+        if (large != mLarge) {
+            mLarge = large;
+            mSslHandler.setWrapDataSize(large ? LARGE_RECORD : SMALL_RECORD);
+            sLogger.trace("TLS record size {}", large ? LARGE_RECORD : SMALL_RECORD);
+        }
+    }
+}
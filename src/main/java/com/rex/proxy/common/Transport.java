@@ -0,0 +1,119 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Socket transport used by all the bootstraps
+ *
+ * EPOLL is the native transport on Linux, NIO is the portable JDK transport.
+ * Outbound bootstraps must use the same transport as the event loop they are bound to,
+ * use {@link #of(EventLoopGroup)} to pick the channel classes matching an existing group.
+ */
+public enum Transport {
+
+    NIO {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new NioEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannel() {
+            return NioDatagramChannel.class;
+        }
+    },
+
+    EPOLL {
+        @Override
+        public EventLoopGroup newEventLoopGroup(int nThreads) {
+            return new EpollEventLoopGroup(nThreads);
+        }
+
+        @Override
+        public Class<? extends ServerSocketChannel> serverSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends SocketChannel> socketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override
+        public Class<? extends DatagramChannel> datagramChannel() {
+            return EpollDatagramChannel.class;
+        }
+    };
+
+    private static final Logger sLogger = LoggerFactory.getLogger(Transport.class);
+
+    /**
+     * @param nThreads Thread count, 0 will use Runtime.getRuntime().availableProcessors() * 2
+     */
+    public abstract EventLoopGroup newEventLoopGroup(int nThreads);
+
+    public abstract Class<? extends ServerSocketChannel> serverSocketChannel();
+
+    public abstract Class<? extends SocketChannel> socketChannel();
+
+    public abstract Class<? extends DatagramChannel> datagramChannel();
+
+    /**
+     * Select transport by config name, 'auto' (or null) prefer EPOLL and fallback to NIO
+     * Request 'epoll' on platform without native library will also fallback to NIO
+     *
+     * @param name auto | epoll | nio
+     */
+    public static Transport select(String name) {
+        if (name == null || "auto".equalsIgnoreCase(name)) {
+            return Epoll.isAvailable() ? EPOLL : NIO;
+        }
+        if ("epoll".equalsIgnoreCase(name)) {
+            if (Epoll.isAvailable()) {
+                return EPOLL;
+            }
+            sLogger.warn("Epoll not available, fallback to nio - {}", String.valueOf(Epoll.unavailabilityCause()));
+            return NIO;
+        }
+        if (!"nio".equalsIgnoreCase(name)) {
+            sLogger.warn("Unknown transport <{}>, fallback to nio", name);
+        }
+        return NIO;
+    }
+
+    /**
+     * Get the transport of an existing event loop group
+     * Unknown group (e.g. EmbeddedEventLoop in test) will use NIO
+     */
+    public static Transport of(EventLoopGroup group) {
+        if (group instanceof EventLoop && ((EventLoop) group).parent() != null) {
+            group = ((EventLoop) group).parent();
+        }
+        return (group instanceof EpollEventLoopGroup) ? EPOLL : NIO;
+    }
+}
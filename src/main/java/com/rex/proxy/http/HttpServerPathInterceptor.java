@@ -1,12 +1,19 @@
 package com.rex.proxy.http;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
 import com.rex.proxy.common.BridgeChannelInitializer;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.HappyEyeballs;
+import com.rex.proxy.common.SpliceBridge;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.websocket.PooledWebSocketConnector;
+import com.rex.proxy.websocket.mux.MuxConnector;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -119,6 +126,9 @@ public class HttpServerPathInterceptor extends SimpleChannelInboundHandler<FullH
                         }
                         ctx.pipeline().remove(HttpServerPathInterceptor.this);
                         remoteCtx.pipeline().remove(this);
+                        if (mConfig.proxyUri == null && Boolean.TRUE.equals(mConfig.splice)) {
+                            sLogger.debug("Splice {}", SpliceBridge.splice(ctx.channel(), remoteCtx.channel()) ? "enabled" : "not available");
+                        }
                         //sLogger.trace("FINAL Local ch:{} pipeline:{}", ctx.channel(), ctx.pipeline());
                         //sLogger.trace("FINAL Remote ch:{} pipeline:{}", remoteCtx.channel(), remoteCtx.pipeline());
                         break;
@@ -132,7 +142,10 @@ public class HttpServerPathInterceptor extends SimpleChannelInboundHandler<FullH
                 }
             };
 
-            if (mConfig.proxyUri != null) {
+            if (mConfig.proxyUri != null && Boolean.TRUE.equals(mConfig.multiplex)) {
+                // Open as a stream of the shared WebSocket
+                MuxConnector.connect(addr, port, ctx, mConfig, handler);
+            } else if (mConfig.proxyUri != null) {
                 // Use connection pool for WebSocket connections
                 PooledWebSocketConnector.connect(addr, port, ctx, mConfig, handler
                 );
@@ -142,29 +155,33 @@ public class HttpServerPathInterceptor extends SimpleChannelInboundHandler<FullH
                 if (eventLoop == null) {
                     sLogger.error("No event loop available");
                 }
-                new Bootstrap()
+                Bootstrap bootstrap = new Bootstrap()
                         .group(eventLoop)
-                        .channel(NioSocketChannel.class)
+                        .channel(Transport.of(eventLoop).socketChannel())
+                        .resolver(DnsResolver.of(ctx.channel()))
                         .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
                         .option(ChannelOption.SO_KEEPALIVE, true)
-                        .handler(new BridgeChannelInitializer(mConfig, ctx))
-                        .connect(address)
-                        .addListener(new ChannelFutureListener() {
-                            @Override
-                            public void operationComplete(ChannelFuture future) throws Exception {
-                                sLogger.trace("future:{}", future);
-                                if (future.isSuccess()) {
-                                    sLogger.debug("Connect success {}", future.channel());
-                                    future.channel()
-                                            .pipeline()
-                                            .addLast(handler);
-                                } else {
-                                    sLogger.warn("Connect failed {}, reason:\n", future.channel(), future.cause());
-                                    ctx.writeAndFlush(new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_ACCEPTABLE))
-                                            .addListener(ChannelFutureListener.CLOSE);
-                                }
-                            }
-                        });
+                        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
+                // VPN callback must protect the socket before connecting, no race
+                Future<Channel> connectFuture = (mConfig.callback != null) ?
+                        HappyEyeballs.of(bootstrap.handler(new BridgeChannelInitializer(mConfig, ctx)).connect(address)) :
+                        HappyEyeballs.connect(bootstrap, DnsResolver.of(ctx.channel()), addr, port, new BridgeChannelInitializer(mConfig, ctx));
+                connectFuture.addListener(new FutureListener<Channel>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        sLogger.trace("future:{}", future);
+                        if (future.isSuccess()) {
+                            sLogger.debug("Connect success {}", future.getNow());
+                            future.getNow()
+                                    .pipeline()
+                                    .addLast(handler);
+                        } else {
+                            sLogger.warn("Connect {} failed, reason:\n", address, future.cause());
+                            ctx.writeAndFlush(new DefaultFullHttpResponse(request.protocolVersion(), HttpResponseStatus.NOT_ACCEPTABLE))
+                                    .addListener(ChannelFutureListener.CLOSE);
+                        }
+                    }
+                });
             }
             request.retain(); // Increase reference count, avoid recycle before bootstrap connect completed
         } catch (Exception ex) {
@@ -1,17 +1,23 @@
 package com.rex.proxy.socks.v5;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
 import com.rex.proxy.common.BridgeChannelInitializer;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.HappyEyeballs;
+import com.rex.proxy.common.SpliceBridge;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.socks.SocksBindInitializer;
 import com.rex.proxy.websocket.PooledWebSocketConnector;
+import com.rex.proxy.websocket.mux.MuxConnector;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
-import io.netty.channel.socket.nio.NioDatagramChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.handler.codec.socksx.v5.*;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,13 +61,16 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
         final EventLoop loop = (mEventLoop != null)
                 ? mEventLoop
                 : ctx.channel().eventLoop();
+        final Transport transport = Transport.of(loop);
 
         if (Socks5CommandType.CONNECT.equals(request.type())) {
             Bootstrap bootstrap = new Bootstrap()
                     .group(loop)
-                    .channel(NioSocketChannel.class)
+                    .channel(transport.socketChannel())
+                    .resolver(DnsResolver.of(ctx.channel()))
                     .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
-                    .option(ChannelOption.SO_KEEPALIVE, true);
+                    .option(ChannelOption.SO_KEEPALIVE, true)
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
 
             if (mConfig.proxyUri != null) {
                 String dstAddr = mConfig.proxyUri.getHost();
@@ -99,31 +108,43 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
                     }
                 };
 
-                // Use connection pool for WebSocket connections
-                PooledWebSocketConnector.connect(request.dstAddr(), request.dstPort(), ctx, mConfig, handler
-                );
+                if (Boolean.TRUE.equals(mConfig.multiplex)) {
+                    // Open as a stream of the shared WebSocket
+                    MuxConnector.connect(request.dstAddr(), request.dstPort(), ctx, mConfig, handler);
+                } else {
+                    // Use connection pool for WebSocket connections
+                    PooledWebSocketConnector.connect(request.dstAddr(), request.dstPort(), ctx, mConfig, handler
+                    );
+                }
             } else {
                 sLogger.debug("Proxy direct to {}:{}", request.dstAddr(), request.dstPort());
-                bootstrap.handler(new BridgeChannelInitializer(mConfig, ctx))
-                        .connect(request.dstAddr(), request.dstPort())
-                        .addListener(new ChannelFutureListener() {
-                            @Override
-                            public void operationComplete(ChannelFuture future) throws Exception {
-                                if (future.isSuccess()) {
-                                    sLogger.debug("Connect success {}", future.channel());
-                                    ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.SUCCESS, Socks5AddressType.IPv4));
-
-                                    sLogger.trace("Remove socks5 server encoder");
-                                    ctx.pipeline().remove(Socks5ServerEncoder.class);
-
-                                    sLogger.trace("FINAL pipeline:{}", ctx.pipeline());
-                                } else {
-                                    sLogger.debug("Connect failed {} reason:\n", future.channel(), future.cause());
-                                    ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
-                                            .addListener(ChannelFutureListener.CLOSE);
-                                }
+                // VPN callback must protect the socket before connecting, no race
+                Future<Channel> connectFuture = (mConfig.callback != null) ?
+                        HappyEyeballs.of(bootstrap.handler(new BridgeChannelInitializer(mConfig, ctx))
+                                .connect(request.dstAddr(), request.dstPort())) :
+                        HappyEyeballs.connect(bootstrap, DnsResolver.of(ctx.channel()), request.dstAddr(), request.dstPort(),
+                                new BridgeChannelInitializer(mConfig, ctx));
+                connectFuture.addListener(new FutureListener<Channel>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        if (future.isSuccess()) {
+                            sLogger.debug("Connect success {}", future.getNow());
+                            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.SUCCESS, Socks5AddressType.IPv4));
+
+                            sLogger.trace("Remove socks5 server encoder");
+                            ctx.pipeline().remove(Socks5ServerEncoder.class);
+
+                            if (Boolean.TRUE.equals(mConfig.splice)) {
+                                sLogger.debug("Splice {}", SpliceBridge.splice(ctx.channel(), future.getNow()) ? "enabled" : "not available");
                             }
-                        });
+                            sLogger.trace("FINAL pipeline:{}", ctx.pipeline());
+                        } else {
+                            sLogger.debug("Connect {}:{} failed reason:\n", request.dstAddr(), request.dstPort(), future.cause());
+                            ctx.writeAndFlush(new DefaultSocks5CommandResponse(Socks5CommandStatus.FAILURE, Socks5AddressType.IPv4))
+                                    .addListener(ChannelFutureListener.CLOSE);
+                        }
+                    }
+                });
             }
         } else if (Socks5CommandType.BIND.equals(request.type())) {
             //sLogger.debug("Socks5 command BIND");
@@ -133,10 +154,11 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
             // 4th, Relay traffics
             final ServerBootstrap bootstrap = new ServerBootstrap()
                     .group(loop)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.serverSocketChannel())
                     .option(ChannelOption.SO_REUSEADDR, true)
                     .childHandler(new SocksBindInitializer(mConfig, ctx))
-                    .childOption(ChannelOption.SO_KEEPALIVE, true);
+                    .childOption(ChannelOption.SO_KEEPALIVE, true)
+                    .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
 
             final InetSocketAddress addr = new InetSocketAddress(0);
             final ChannelFuture future = bootstrap.bind(addr);
@@ -180,10 +202,10 @@ public final class Socks5CommandRequestHandler extends SimpleChannelInboundHandl
             // Currently do not support FRAG mode
             final Bootstrap bootstrap = new Bootstrap()
                     .group(loop)
-                    .channel(NioDatagramChannel.class)
-                    .handler(new ChannelInitializer<NioDatagramChannel>() {
+                    .channel(transport.datagramChannel())
+                    .handler(new ChannelInitializer<DatagramChannel>() {
                         @Override
-                        protected void initChannel(NioDatagramChannel ch) throws Exception {
+                        protected void initChannel(DatagramChannel ch) throws Exception {
                             sLogger.trace("+");
                             ch.pipeline()
                                     .addLast(new Socks5UdpRelayMessageEncoder())
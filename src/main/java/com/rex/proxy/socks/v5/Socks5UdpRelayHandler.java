@@ -1,10 +1,11 @@
 package com.rex.proxy.socks.v5;
 
+import com.rex.proxy.common.Transport;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.util.ReferenceCountUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -25,10 +26,10 @@ public final class Socks5UdpRelayHandler extends SimpleChannelInboundHandler<Soc
         sLogger.trace("UdpRelay init with loop {}", loop);
         mBootstrap = new Bootstrap()
                 .group(loop)
-                .channel(NioDatagramChannel.class)
-                .handler(new ChannelInitializer<NioDatagramChannel>() {
+                .channel(Transport.of(loop).datagramChannel())
+                .handler(new ChannelInitializer<DatagramChannel>() {
                     @Override
-                    protected void initChannel(NioDatagramChannel ch) throws Exception {
+                    protected void initChannel(DatagramChannel ch) throws Exception {
                         sLogger.trace("UdpRelay init with channel {}", ch);
                         ch.pipeline().addLast(new SimpleChannelInboundHandler<DatagramPacket>() {
                             @Override
@@ -0,0 +1,180 @@
+package com.rex.proxy.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Probe the pooled WebSocket connection by ping/pong while it is idle in the pool
+ *
+ * Connection missed the pong in time, idle too long, or much slower than the others of the pool is closed,
+ * the pool never hands out a half-dead socket expired by NAT. Pong is consumed before WebSocketClientProtocolHandler,
+ * which drops pong frames. Probing stops when the connection is leased by a tunnel.
+ */
+class PoolProbeHandler extends ChannelInboundHandlerAdapter implements Runnable {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(PoolProbeHandler.class);
+
+    private static final double RTT_WEIGHT = 0.5;
+    private static final int SLOW_FACTOR = 4; // Slower than 4 times of pool average is an outlier
+    private static final long SLOW_FLOOR_NANOS = TimeUnit.MILLISECONDS.toNanos(20); // Never evict fast enough connection
+
+    private final UpstreamChannelPool mPool;
+    private final long mIntervalMillis;
+    private final long mTimeoutMillis;
+    private final long mIdleNanos;
+    private ChannelHandlerContext mContext;
+    private ScheduledFuture<?> mTask;
+    private long mIdleSince;
+    private long mPingNanos; // Send time of outstanding ping, 0 if none
+    private long mRttNanos; // EWMA of round trip time, 0 before the first pong
+
+    PoolProbeHandler(UpstreamChannelPool pool, long intervalMillis, long timeoutMillis, long idleMillis) {
+        sLogger.trace("<init> intervalMillis={} timeoutMillis={} idleMillis={}", intervalMillis, timeoutMillis, idleMillis);
+        mPool = pool;
+        mIntervalMillis = intervalMillis;
+        mTimeoutMillis = timeoutMillis;
+        mIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    /**
+     * Install before the WebSocket protocol handler, return null if not a WebSocket pipeline
+     */
+    static PoolProbeHandler install(Channel ch, PoolProbeHandler probe) {
+        ChannelHandlerContext protocol = ch.pipeline().context(WebSocketClientProtocolHandler.class);
+        if (protocol == null) {
+            return null;
+        }
+        ch.pipeline().addBefore(protocol.name(), "poolProbe", probe);
+        return probe;
+    }
+
+    static PoolProbeHandler of(Channel ch) {
+        return ch.pipeline().get(PoolProbeHandler.class);
+    }
+
+    /**
+     * Connection returned to pool, start probing, must call in event loop
+     */
+    void pooled() {
+        stop();
+        mIdleSince = System.nanoTime();
+        mTask = mContext.executor().scheduleAtFixedRate(this, mIntervalMillis, mIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connection leased by tunnel, stop probing, must call in event loop
+     */
+    void leased() {
+        stop();
+    }
+
+    /**
+     * Check before the pool hands out the connection
+     */
+    boolean isHealthy() {
+        if (mPingNanos != 0 && System.nanoTime() - mPingNanos > TimeUnit.MILLISECONDS.toNanos(mTimeoutMillis)) {
+            return false;
+        }
+        if (mIdleSince != 0 && System.nanoTime() - mIdleSince >= mIdleNanos) {
+            return false;
+        }
+        return !isSlow();
+    }
+
+    long rttNanos() {
+        return mRttNanos;
+    }
+
+    private boolean isSlow() {
+        long poolRtt = mPool.rttNanos();
+        return poolRtt > 0 && mRttNanos > SLOW_FLOOR_NANOS && mRttNanos > SLOW_FACTOR * poolRtt;
+    }
+
+    private void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        mIdleSince = 0;
+        mPingNanos = 0;
+    }
+
+    @Override // Runnable
+    public void run() {
+        Channel ch = mContext.channel();
+        if (!ch.isActive()) {
+            stop();
+            return;
+        }
+        if (System.nanoTime() - mIdleSince >= mIdleNanos) {
+            sLogger.info("Pooled connection {} idle timeout, closing", ch);
+            ch.close();
+            return;
+        }
+        if (mPingNanos != 0) {
+            // Still waiting, the timeout check will decide
+            return;
+        }
+        WebSocketClientProtocolHandler protocol = ch.pipeline().get(WebSocketClientProtocolHandler.class);
+        if (protocol != null && !protocol.handshaker().isHandshakeComplete()) {
+            return;
+        }
+
+        final long ping = System.nanoTime();
+        mPingNanos = ping;
+        mContext.writeAndFlush(new PingWebSocketFrame());
+        mContext.executor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mPingNanos == ping && mContext.channel().isActive()) {
+                    sLogger.info("Pooled connection {} missed probe, closing", mContext.channel());
+                    mContext.channel().close();
+                }
+            }
+        }, mTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mContext = ctx;
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof PongWebSocketFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ReferenceCountUtil.release(msg);
+        if (mPingNanos == 0) {
+            return;
+        }
+        long rtt = System.nanoTime() - mPingNanos;
+        mPingNanos = 0;
+        mRttNanos = (mRttNanos == 0) ? rtt : (long) (mRttNanos + RTT_WEIGHT * (rtt - mRttNanos));
+        mPool.recordRtt(rtt);
+        sLogger.trace("Probe {} rtt {}us average {}us", ctx.channel(), rtt / 1000, mRttNanos / 1000);
+
+        if (isSlow()) {
+            sLogger.info("Pooled connection {} rtt {}us much slower than pool {}us, closing",
+                    ctx.channel(), mRttNanos / 1000, mPool.rttNanos() / 1000);
+            ctx.close();
+        }
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        stop();
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,222 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.websocket.control.ControlAuthBuilder;
+import com.rex.proxy.websocket.control.ControlMessage;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keep idle authorized connections in the pool ahead of demand
+ *
+ * Demand is the number of concurrent leases, it follows a burst immediately and decays slowly by EWMA.
+ * Each tick tops up the idle connections to the demand clamped in [min, max],
+ * or closes one idle connection if demand dropped, so the pool shrinks gradually.
+ * Must run in the event loop of the pool.
+ */
+class PoolWarmer implements Runnable {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(PoolWarmer.class);
+
+    private static final long INTERVAL_MILLIS = 1000;
+    private static final double DECAY = 0.05; // Forget a burst in about 20 ticks
+
+    private final UpstreamChannelPool mPool;
+    private final String mSecret;
+    private volatile int mMin;
+    private volatile int mMax;
+    private final List<Channel> mHeld = new ArrayList<>();
+    private double mDemand;
+    private int mWarming; // Connections in handshake, acquired from pool
+    private boolean mTicking;
+    private ScheduledFuture<?> mTask;
+
+    PoolWarmer(UpstreamChannelPool pool, String secret, int min, int max) {
+        sLogger.trace("<init> min={} max={}", min, max);
+        mPool = pool;
+        mSecret = secret;
+        mMin = min;
+        mMax = max;
+    }
+
+    /**
+     * Change the limits, a lower target closes the extra idle connections gradually
+     */
+    void limits(int min, int max) {
+        sLogger.trace("limits min={} max={}", min, max);
+        mMin = min;
+        mMax = max;
+    }
+
+    void start(EventLoop loop) {
+        mTask = loop.scheduleAtFixedRate(this, 0, INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (mTask != null) {
+            mTask.cancel(false);
+        }
+    }
+
+    /**
+     * Number of idle connections the pool should keep
+     */
+    int target() {
+        return Math.max(mMin, Math.min(mMax, (int) Math.ceil(mDemand)));
+    }
+
+    @Override // Runnable
+    public void run() {
+        int leased = mPool.leased() - mWarming;
+        if (leased >= mDemand) {
+            mDemand = leased;
+        } else {
+            mDemand += DECAY * (leased - mDemand);
+        }
+
+        int target = target();
+        int idle = mPool.idle();
+        if (idle + mWarming < target) {
+            int count = Math.min(target - mWarming, mPool.maxConnections() - mPool.leased());
+            sLogger.trace("Warm {} connections, idle:{} warming:{} target:{}", count, idle, mWarming, target);
+            // Idle connections acquired in this tick are held until the end, so the next acquire creates new one
+            mTicking = true;
+            for (int i = 0; i < count; i++) {
+                warm();
+            }
+            mTicking = false;
+            for (Channel ch : mHeld) {
+                mPool.release(ch);
+            }
+            mHeld.clear();
+        } else if (idle > target && mWarming == 0) {
+            shrink();
+        }
+    }
+
+    private void warm() {
+        mWarming++;
+        mPool.acquireDirect().addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    mWarming--;
+                    return;
+                }
+                final Channel ch = future.getNow();
+                if (!UpstreamChannelPool.isFresh(ch)) {
+                    mWarming--;
+                    if (mTicking) {
+                        mHeld.add(ch);
+                    } else {
+                        mPool.release(ch);
+                    }
+                    return;
+                }
+
+                Promise<Channel> ready = ch.eventLoop().newPromise();
+                ready.addListener(new FutureListener<Channel>() {
+                    @Override
+                    public void operationComplete(Future<Channel> f) throws Exception {
+                        sLogger.debug("Warm connection {} {}", ch, f.isSuccess() ? "ready" : "failed");
+                        mWarming--;
+                        if (!f.isSuccess()) {
+                            ch.close();
+                        }
+                        mPool.release(ch);
+                    }
+                });
+                if (ch.pipeline().get(WsProxyControlCodec.class) == null) {
+                    ch.pipeline().addLast("controlCodec", new WsProxyControlCodec());
+                }
+                ch.pipeline().addLast(new WarmupHandler(mSecret, ready));
+            }
+        });
+    }
+
+    private void shrink() {
+        mPool.acquireDirect().addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    return;
+                }
+                Channel ch = future.getNow();
+                if (!UpstreamChannelPool.isFresh(ch)) {
+                    sLogger.debug("Close idle connection {}, demand dropped", ch);
+                    ch.close();
+                }
+                mPool.release(ch);
+            }
+        });
+    }
+
+    /**
+     * Complete the hello and authorization of a fresh connection, then it is ready for tunnels
+     */
+    private static class WarmupHandler extends SimpleChannelInboundHandler<ControlMessage> {
+
+        private final String mSecret;
+        private final Promise<Channel> mReady;
+
+        WarmupHandler(String secret, Promise<Channel> ready) {
+            mSecret = secret;
+            mReady = ready;
+        }
+
+        @Override // SimpleChannelInboundHandler
+        protected void channelRead0(ChannelHandlerContext ctx, ControlMessage msg) throws Exception {
+            sLogger.trace("read msg:{}", msg);
+            if ("hello".equalsIgnoreCase(msg.type)) {
+                if (mSecret == null) {
+                    ready(ctx);
+                    return;
+                }
+                ControlMessage authMsg = new ControlMessage();
+                authMsg.type = "authorization";
+                authMsg.token = new ControlAuthBuilder()
+                        .setSecret(mSecret)
+                        .setNonce((msg.token != null) ? Base64.getDecoder().decode(msg.token) : null)
+                        .build();
+                ctx.writeAndFlush(authMsg);
+            } else if ("authorized".equalsIgnoreCase(msg.type)) {
+                ready(ctx);
+            } else {
+                sLogger.warn("Warm up failed with message:{}", msg);
+                mReady.tryFailure(new IllegalStateException("Unexpected message " + msg.type));
+            }
+        }
+
+        @Override // SimpleChannelInboundHandler
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            mReady.tryFailure(new ClosedChannelException());
+            super.channelInactive(ctx);
+        }
+
+        @Override // SimpleChannelInboundHandler
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            sLogger.warn("Warm up {} - {}", ctx.channel(), cause.toString());
+            mReady.tryFailure(cause);
+        }
+
+        private void ready(ChannelHandlerContext ctx) {
+            UpstreamChannelPool.markUsed(ctx.channel());
+            ctx.pipeline().remove(this);
+            mReady.trySuccess(ctx.channel());
+        }
+    }
+}
@@ -1,18 +1,36 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.BridgeChannelInitializer;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.HappyEyeballs;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * Helper class to manage pooled WebSocket connections.
  * Handles acquiring a connection from the pool, sending connect request,
  * and setting up data forwarding handlers.
+ *
+ * If hedgePercentile configured, a connect without response after the percentile of recent connect time
+ * starts a second attempt on another pooled connection or upstream, the first success wins and the other closed.
+ *
+ * While the circuit breakers of all upstreams are open, destinations matching fallbackDirect connect directly,
+ * others fail fast.
  */
 public class PooledWebSocketConnector {
 
@@ -37,8 +55,22 @@ public class PooledWebSocketConnector {
         sLogger.debug("Connect to {}:{} using pooled WebSocket", dstAddr, dstPort);
 
         // Acquire a WebSocket channel from the pool
-        Future<Channel> acquireFuture = WebSocketChannelPoolManager.getInstance()
-                .acquire(dstAddr, dstPort, localCtx, config);
+        final WebSocketChannelPoolManager poolManager = WebSocketChannelPoolManager.of(localCtx.channel());
+
+        if (isFallback(config.fallbackDirect, dstAddr) && !poolManager.isAvailable(config)) {
+            direct(dstAddr, dstPort, localCtx, config, stateHandler);
+            return;
+        }
+
+        // Optimistic relays before the response, can not hedge
+        long hedgeDelay = (config.hedgePercentile != null && config.hedgePercentile > 0 && !Boolean.TRUE.equals(config.optimistic)) ?
+                poolManager.connectLatencyNanos(config.hedgePercentile) : 0;
+        if (hedgeDelay > 0) {
+            new HedgedTunnel(dstAddr, dstPort, localCtx, config, stateHandler, poolManager).start(hedgeDelay);
+            return;
+        }
+
+        Future<Channel> acquireFuture = poolManager.acquire(dstAddr, dstPort, localCtx, config);
 
         acquireFuture.addListener(new GenericFutureListener<Future<Channel>>() {
             @Override
@@ -46,7 +78,7 @@ public class PooledWebSocketConnector {
                 if (!future.isSuccess()) {
                     sLogger.warn("Failed to acquire WebSocket channel: {}", future.cause().toString());
                     // Notify failure
-                    localCtx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+                    fail(localCtx, stateHandler);
                     return;
                 }
 
@@ -54,41 +86,317 @@ public class PooledWebSocketConnector {
                 sLogger.debug("Acquired WebSocket channel {}", wsChannel);
 
                 // Add codec and state event handler to WebSocket pipeline
-                wsChannel.pipeline()
-                        .addLast("controlCodec", new WsProxyControlCodec())
-                        .addLast("stateHandler", stateHandler);
+                // Codec kept in pipeline after released, reused channel already has it
+                if (wsChannel.pipeline().get(WsProxyControlCodec.class) == null) {
+                    wsChannel.pipeline().addLast("controlCodec", new WsProxyControlCodec());
+                }
+                wsChannel.pipeline().addLast("stateHandler", stateHandler);
+                ChannelHandler tracker = poolManager.newTracker(wsChannel);
+                if (tracker != null) {
+                    wsChannel.pipeline().addLast("upstreamTracker", tracker);
+                }
 
                 // Send connect request to WslServer
                 // The WsClientHandler will handle the protocol handshake
                 // Pass isPooled=true to indicate this is a pooled connection
-                WsClientHandler clientHandler = new WsClientHandler(localCtx.channel(), dstAddr, dstPort, config.proxyUid, true);
+                // Optimistic only on a WebSocket never carried a tunnel, a reused one has no clean boundary
+                WsClientHandler clientHandler = new WsClientHandler(localCtx.channel(), dstAddr, dstPort, config.proxyUid, true)
+                        .coalesce(config.coalesceBytes, config.coalesceDelayMicros)
+                        .optimistic(Boolean.TRUE.equals(config.optimistic) && !UpstreamChannelPool.hasTunneled(wsChannel));
                 wsChannel.pipeline().addLast("wsClientHandler", clientHandler);
 
+                // Set up cleanup when WebSocket closes unexpectedly
+                final ChannelFutureListener wsCloseListener = new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        sLogger.warn("WebSocket connection lost {}", future.channel().remoteAddress());
+                        // Close local socket if it's still active
+                        if (localCtx.channel().isActive()) {
+                            localCtx.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                                    .addListener(ChannelFutureListener.CLOSE);
+                        }
+                    }
+                };
+                wsChannel.closeFuture().addListener(wsCloseListener);
+
                 // Set up cleanup when local socket closes
                 localCtx.channel().closeFuture().addListener(new ChannelFutureListener() {
                     @Override
                     public void operationComplete(ChannelFuture future) throws Exception {
                         sLogger.debug("Local socket closed, returning WebSocket to pool");
 
+                        // Lease ends, the pooled WebSocket must not keep the listener of every lease
+                        wsChannel.closeFuture().removeListener(wsCloseListener);
+
+                        // Write out the coalesced data before WebSocket reused by others
+                        WsProxyRawToWs relay = localCtx.pipeline().get(WsProxyRawToWs.class);
+                        if (relay != null) {
+                            relay.flushCoalesced();
+                        }
+
                         // Return the WebSocket channel to pool
                         // This will clean up handlers and keep the connection alive
-                        WebSocketChannelPoolManager.getInstance().release(wsChannel, dstAddr, dstPort);
+                        poolManager.release(wsChannel);
                     }
                 });
+            }
+        });
+    }
 
-                // Set up cleanup when WebSocket closes unexpectedly
-                wsChannel.closeFuture().addListener(new ChannelFutureListener() {
+    // Deliver the failure to the socks or http handler, which replies the client and closes
+    private static void fail(ChannelHandlerContext localCtx, SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> stateHandler) {
+        localCtx.pipeline().addLast("stateHandler", stateHandler);
+        localCtx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+    }
+
+    // Destination matches any of the comma separated domain suffixes, or *
+    private static boolean isFallback(String patterns, String dstAddr) {
+        if (patterns == null || dstAddr == null) {
+            return false;
+        }
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+            if ("*".equals(pattern) ||
+                    dstAddr.equalsIgnoreCase(pattern) ||
+                    dstAddr.toLowerCase().endsWith("." + pattern.toLowerCase())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Bridge to destination without tunnel, same as standalone proxy
+    private static void direct(String dstAddr, int dstPort, final ChannelHandlerContext localCtx, WslLocal.Configuration config,
+                               final SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> stateHandler) {
+        sLogger.info("Upstream unavailable, connect {}:{} directly", dstAddr, dstPort);
+        EventLoop loop = localCtx.channel().eventLoop();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(loop)
+                .channel(Transport.of(loop).socketChannel())
+                .resolver(DnsResolver.of(localCtx.channel()))
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(config.writeBufferLowWaterMark, config.writeBufferHighWaterMark));
+        // VPN callback must protect the socket before connecting, no race
+        Future<Channel> connectFuture = (config.callback != null) ?
+                HappyEyeballs.of(bootstrap.handler(new BridgeChannelInitializer(config, localCtx)).connect(dstAddr, dstPort)) :
+                HappyEyeballs.connect(bootstrap, DnsResolver.of(localCtx.channel()), dstAddr, dstPort, new BridgeChannelInitializer(config, localCtx));
+        connectFuture.addListener(new GenericFutureListener<Future<Channel>>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    // Added before channel active, which fires REMOTE_READY
+                    future.getNow().pipeline().addLast("stateHandler", stateHandler);
+                } else {
+                    sLogger.warn("Direct connect failed {}", future.cause().toString());
+                    fail(localCtx, stateHandler);
+                }
+            }
+        });
+    }
+
+    /**
+     * Race of hedged connect attempts for one tunnel
+     * Attempt events come from the event loops of WebSocket channels, the counters are guarded by this
+     */
+    private static final class HedgedTunnel {
+
+        private final String mDstAddr;
+        private final int mDstPort;
+        private final ChannelHandlerContext mLocalCtx;
+        private final WslLocal.Configuration mConfig;
+        private final SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> mStateHandler;
+        private final WebSocketChannelPoolManager mPoolManager;
+        private final AtomicBoolean mWon = new AtomicBoolean(); // Gate of WsClientHandler
+        private final List<Attempt> mAttempts = new ArrayList<>();
+        private Attempt mWinner;
+        private int mFailures;
+        private boolean mHedged; // No more attempt will start
+        private ScheduledFuture<?> mTimer;
+
+        HedgedTunnel(String dstAddr, int dstPort, ChannelHandlerContext localCtx, WslLocal.Configuration config,
+                     SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> stateHandler,
+                     WebSocketChannelPoolManager poolManager) {
+            mDstAddr = dstAddr;
+            mDstPort = dstPort;
+            mLocalCtx = localCtx;
+            mConfig = config;
+            mStateHandler = stateHandler;
+            mPoolManager = poolManager;
+        }
+
+        void start(long hedgeDelayNanos) {
+            sLogger.trace("Hedge {}:{} after {}us", mDstAddr, mDstPort, hedgeDelayNanos / 1000);
+            synchronized (this) {
+                mTimer = mLocalCtx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (HedgedTunnel.this) {
+                            if (mHedged || mWon.get()) {
+                                return;
+                            }
+                            mHedged = true;
+                        }
+                        sLogger.debug("Connect {}:{} slow, start hedged attempt", mDstAddr, mDstPort);
+                        attempt();
+                    }
+                }, hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            }
+            attempt();
+        }
+
+        private void attempt() {
+            final Attempt attempt = new Attempt();
+            synchronized (this) {
+                mAttempts.add(attempt);
+            }
+            mPoolManager.acquire(mDstAddr, mDstPort, mLocalCtx, mConfig).addListener(new GenericFutureListener<Future<Channel>>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    if (!future.isSuccess()) {
+                        sLogger.warn("Failed to acquire WebSocket channel: {}", future.cause().toString());
+                        if (failed(attempt)) {
+                            fail(mLocalCtx, mStateHandler);
+                        }
+                        return;
+                    }
+                    attempt.acquired(future.getNow());
+                }
+            });
+        }
+
+        // Return true if it is the last failure, the tunnel failed
+        private synchronized boolean failed(Attempt attempt) {
+            if (attempt.mSettled) {
+                return false;
+            }
+            attempt.mSettled = true;
+            if (mWon.get() || ++mFailures < mAttempts.size()) {
+                return false;
+            }
+            // All started attempts failed, no need to hedge any more
+            mHedged = true;
+            mTimer.cancel(false);
+            return true;
+        }
+
+        private synchronized void won(Attempt winner) {
+            winner.mSettled = true;
+            mWinner = winner;
+            mHedged = true;
+            mTimer.cancel(false);
+            for (Attempt attempt : mAttempts) {
+                if (attempt != winner && attempt.mChannel != null) {
+                    sLogger.debug("Cancel hedged attempt {}", attempt.mChannel);
+                    UpstreamBalancer.Tracker.cancel(attempt.mChannel); // Not fault of the upstream
+                    attempt.mChannel.close();
+                }
+            }
+        }
+
+        private final class Attempt extends ChannelInboundHandlerAdapter {
+
+            private final AtomicBoolean mReleased = new AtomicBoolean();
+            private Channel mChannel;
+            private volatile ChannelFutureListener mCloseListener; // Removed from the pooled WebSocket on release
+            private boolean mSettled; // Guarded by HedgedTunnel.this
+
+            void acquired(final Channel wsChannel) {
+                if (mWon.get()) {
+                    // Connect request not sent yet, the channel is clean for others
+                    synchronized (HedgedTunnel.this) {
+                        mSettled = true;
+                    }
+                    release(wsChannel);
+                    return;
+                }
+                synchronized (HedgedTunnel.this) {
+                    mChannel = wsChannel;
+                }
+
+                if (wsChannel.pipeline().get(WsProxyControlCodec.class) == null) {
+                    wsChannel.pipeline().addLast("controlCodec", new WsProxyControlCodec());
+                }
+                wsChannel.pipeline().addLast("hedgeAttempt", this);
+                ChannelHandler tracker = mPoolManager.newTracker(wsChannel);
+                if (tracker != null) {
+                    wsChannel.pipeline().addLast("upstreamTracker", tracker);
+                }
+                wsChannel.pipeline().addLast("wsClientHandler", new WsClientHandler(mLocalCtx.channel(), mDstAddr, mDstPort, mConfig.proxyUid, true)
+                        .coalesce(mConfig.coalesceBytes, mConfig.coalesceDelayMicros)
+                        .gate(mWon));
+
+                mCloseListener = new ChannelFutureListener() {
                     @Override
                     public void operationComplete(ChannelFuture future) throws Exception {
-                        sLogger.warn("WebSocket connection lost {}", future.channel().remoteAddress());
-                        // Close local socket if it's still active
-                        if (localCtx.channel().isActive()) {
-                            localCtx.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                        boolean winner;
+                        synchronized (HedgedTunnel.this) {
+                            winner = (mWinner == Attempt.this);
+                        }
+                        if (winner) {
+                            sLogger.warn("WebSocket connection lost {}", future.channel().remoteAddress());
+                            if (mLocalCtx.channel().isActive()) {
+                                mLocalCtx.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                                        .addListener(ChannelFutureListener.CLOSE);
+                            }
+                            return;
+                        }
+                        // Lost or failed attempt returns its lease without waiting the local socket
+                        release(wsChannel);
+                        if (failed(Attempt.this)) {
+                            mLocalCtx.writeAndFlush(Unpooled.EMPTY_BUFFER)
                                     .addListener(ChannelFutureListener.CLOSE);
                         }
                     }
+                };
+                wsChannel.closeFuture().addListener(mCloseListener);
+                mLocalCtx.channel().closeFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        WsProxyRawToWs relay = mLocalCtx.pipeline().get(WsProxyRawToWs.class);
+                        if (relay != null && wsChannel.isActive()) {
+                            relay.flushCoalesced();
+                        }
+                        release(wsChannel);
+                    }
                 });
             }
-        });
+
+            private void release(Channel wsChannel) {
+                if (mReleased.compareAndSet(false, true)) {
+                    if (mCloseListener != null) {
+                        wsChannel.closeFuture().removeListener(mCloseListener);
+                    }
+                    mPoolManager.release(wsChannel);
+                }
+            }
+
+            @Override // ChannelInboundHandlerAdapter
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+                if (evt == WslLocal.RemoteStateEvent.REMOTE_READY) {
+                    // Only the attempt passed the gate relays and fires ready
+                    won(this);
+                    deliver(ctx, evt);
+                } else if (evt == WslLocal.RemoteStateEvent.REMOTE_FAILED) {
+                    if (failed(this)) {
+                        deliver(ctx, evt);
+                    }
+                } else {
+                    ctx.fireUserEventTriggered(evt);
+                }
+            }
+
+            // Hand the final state to the socks or http handler, as if it was in the pipeline from the start
+            private void deliver(ChannelHandlerContext ctx, Object evt) {
+                ctx.pipeline().addAfter(ctx.name(), "stateHandler", mStateHandler);
+                ctx.fireUserEventTriggered(evt);
+                if (ctx.pipeline().get("hedgeAttempt") == this) {
+                    ctx.pipeline().remove(this);
+                }
+            }
+        }
     }
 }
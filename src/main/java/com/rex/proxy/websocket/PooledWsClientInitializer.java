@@ -1,23 +1,23 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.TlsRecordSizer;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.SimpleUserEventChannelHandler;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLException;
+import java.net.URI;
 
 /**
  * Initialize WebSocket client channel for connection pooling.
@@ -29,41 +29,48 @@ public class PooledWsClientInitializer extends ChannelInitializer<SocketChannel>
 
     private static final Logger sLogger = LoggerFactory.getLogger(PooledWsClientInitializer.class);
 
-    private static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
+    // Prefer binary control messages, old server will select proxy2
+    private static final String WS_SUBPROTOCOL = WsProxyControlCodec.SUBPROTOCOL_BINARY + ",com.rex.websocket.protocol.proxy2";
 
     private final WslLocal.Configuration mConfig;
-    private SslContext mSslContext;
+    private final URI mUri;
+    private final WsClientSsl mSsl;
 
     public PooledWsClientInitializer(WslLocal.Configuration config) {
-        sLogger.trace("<init>");
+        this(config, config.proxyUri);
+    }
+
+    /**
+     * Initializer of the upstream selected from proxyUri and proxyUris
+     */
+    public PooledWsClientInitializer(WslLocal.Configuration config, URI uri) {
+        sLogger.trace("<init> uri={}", uri);
         mConfig = config;
+        mUri = uri;
 
-        if ("wss".equalsIgnoreCase(mConfig.proxyUri.getScheme())) {
-            try {
-                SslContextBuilder builder = SslContextBuilder.forClient();
-                if (!mConfig.proxyCertVerify) {
-                    builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
-                }
-                mSslContext = builder.build();
-            } catch (SSLException ex) {
-                sLogger.warn("Failed to init ssl\n", ex);
-            }
-        }
+        // Shared by the connections to the same upstream, reconnects resume the TLS session
+        mSsl = WsClientSsl.of(mUri, mConfig.proxyCertVerify, mConfig.sslProvider);
     }
 
     @Override // ChannelInitializer
     protected void initChannel(SocketChannel ch) throws Exception {
         sLogger.trace("Initialize pooled WebSocket channel: {}", ch);
 
-        if (mSslContext != null) {
-            // TLS-SNI: https://www.cloudflare.com/learning/ssl/what-is-sni/
-            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc(), mConfig.proxyUri.getHost(), mConfig.proxyUri.getPort()));
+        if (mSsl != null) {
+            SslHandler sslHandler = mSsl.newHandler(ch);
+            ch.pipeline().addLast(sslHandler);
+            if (!Boolean.FALSE.equals(mConfig.sslDynamicRecord)) {
+                ch.pipeline().addLast(new TlsRecordSizer(sslHandler));
+            }
         }
 
+        int maxFrameSize = WsFrameSize.limit(mConfig.maxFrameSize);
         ch.pipeline()
                 .addLast(new HttpClientCodec())
                 .addLast(new HttpObjectAggregator(1 << 16)) // 65536
-                .addLast(new WebSocketClientProtocolHandler(mConfig.proxyUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false, null, 65535))
+                .addLast(new WsFrameSize.ClientHandler(maxFrameSize))
+                .addLast(new WebSocketClientProtocolHandler(mUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false,
+                        new DefaultHttpHeaders().set(WsFrameSize.HEADER, maxFrameSize), maxFrameSize))
                 .addLast(new HandshakeCompleteHandler());
 
         sLogger.trace("Pooled channel pipeline initialized: {}", ch.pipeline().names());
@@ -82,10 +89,15 @@ public class PooledWsClientInitializer extends ChannelInitializer<SocketChannel>
             sLogger.info("Pooled channel handshake event: {} for channel: {}", evt, ctx.channel());
 
             if (WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE.equals(evt)) {
+                WebSocketClientProtocolHandler protocolHandler = ctx.pipeline().get(WebSocketClientProtocolHandler.class);
+                WsProxyControlCodec.select(ctx.channel(), protocolHandler.handshaker().actualSubprotocol());
+
                 // Handshake complete - add control codec for message conversion
-                ctx.pipeline()
-                        .addLast(new WsProxyControlCodec())
-                        .remove(this);
+                // Connector may already added the codec when acquired before handshake completed
+                if (ctx.pipeline().get(WsProxyControlCodec.class) == null) {
+                    ctx.pipeline().addLast(new WsProxyControlCodec());
+                }
+                ctx.pipeline().remove(this);
                 sLogger.info("Pooled WebSocket handshake completed, codec added: {}", ctx.channel());
             }
         }
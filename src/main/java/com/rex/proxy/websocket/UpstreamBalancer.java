@@ -0,0 +1,411 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pick one of the upstream WslServers for each tunnel
+ *
+ * Policy least picks the upstream with least outstanding tunnels, policy rtt picks the lowest EWMA round trip
+ * weighted by the outstanding tunnels, so one fast node never takes all the load. The round trip is measured by
+ * the ping/pong probes of the pooled connections, the connect time includes the DNS and target connect of the server.
+ * With consistent hashing, the same destination goes to the same upstream as long as it is available.
+ * Upstream failed consecutively is ejected by its circuit breaker, re-probed by a trial tunnel after backoff.
+ * If all the upstreams are ejected, select fails fast instead of waiting for connect timeout.
+ */
+class UpstreamBalancer {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(UpstreamBalancer.class);
+
+    private static final int BREAKER_FAILURES = 3;
+    private static final long BACKOFF_MIN_MILLIS = 5000;
+    private static final long BACKOFF_MAX_MILLIS = 300000; // 5 minutes
+    private static final long CONNECT_TIMEOUT_MIN_MILLIS = 2000; // Leave room for a SYN retransmission
+    private static final int CONNECT_TIMEOUT_FACTOR = 3;
+    private static final double RTT_WEIGHT = 0.3;
+    private static final int VIRTUAL_NODES = 100; // Points of each upstream on the hash ring
+    private static final int LATENCY_SAMPLES = 256;
+    private static final int LATENCY_MIN_SAMPLES = 20; // Percentile of too few samples is noise
+
+    private final ConcurrentHashMap<WebSocketChannelPoolManager.UpstreamKey, Upstream> mUpstreams = new ConcurrentHashMap<>();
+    private final AtomicInteger mNext = new AtomicInteger(); // Rotate the start, spread the ties
+    private final long[] mLatency = new long[LATENCY_SAMPLES]; // Recent connect round trips of all upstreams
+    private int mLatencyCount;
+    private volatile Ring mRing;
+
+    /**
+     * All the configured upstreams, proxyUri first
+     */
+    List<Upstream> upstreams(WslLocal.Configuration config) {
+        List<Upstream> upstreams = new ArrayList<>();
+        upstreams.add(upstream(config.proxyUri, config.proxyUid));
+        if (config.proxyUris != null) {
+            for (URI uri : config.proxyUris) {
+                Upstream upstream = upstream(uri, config.proxyUid);
+                if (!upstreams.contains(upstream)) {
+                    upstreams.add(upstream);
+                }
+            }
+        }
+        return upstreams;
+    }
+
+    Upstream get(WebSocketChannelPoolManager.UpstreamKey key) {
+        return mUpstreams.get(key);
+    }
+
+    /**
+     * Forget the state of all upstreams
+     */
+    void clear() {
+        mUpstreams.clear();
+        mRing = null;
+    }
+
+    Tracker newTracker(Upstream upstream) {
+        return new Tracker(this, upstream);
+    }
+
+    /**
+     * Percentile of recent connect round trips, 0 if not enough samples
+     */
+    synchronized long connectLatency(int percentile) {
+        int count = Math.min(mLatencyCount, LATENCY_SAMPLES);
+        if (count < LATENCY_MIN_SAMPLES) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(mLatency, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(count * Math.max(1, Math.min(100, percentile)) / 100.0) - 1;
+        return sorted[Math.max(0, index)];
+    }
+
+    private synchronized void recordLatency(long nanos) {
+        mLatency[mLatencyCount++ % LATENCY_SAMPLES] = nanos;
+        if (mLatencyCount == 2 * LATENCY_SAMPLES) {
+            mLatencyCount = LATENCY_SAMPLES; // Keep the ring position, never overflow
+        }
+    }
+
+    /**
+     * Whether any configured upstream is taking tunnels
+     */
+    boolean isAvailable(WslLocal.Configuration config) {
+        long now = System.currentTimeMillis();
+        for (Upstream upstream : upstreams(config)) {
+            if (upstream.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select the upstream for a tunnel to destination, null if all breakers open
+     */
+    Upstream select(WslLocal.Configuration config, String dstAddr) {
+        List<Upstream> upstreams = upstreams(config);
+        long now = System.currentTimeMillis();
+        if (upstreams.size() == 1) {
+            Upstream upstream = upstreams.get(0);
+            return upstream.admit(now) ? upstream : null;
+        }
+
+        if (Boolean.TRUE.equals(config.balanceHash) && dstAddr != null) {
+            Ring ring = mRing;
+            if (ring == null || !ring.mMembers.equals(upstreams)) {
+                mRing = ring = new Ring(upstreams);
+            }
+            Upstream upstream = ring.lookup(dstAddr, now);
+            if (upstream != null && upstream.admit(now)) {
+                return upstream;
+            }
+        }
+
+        boolean rtt = "rtt".equalsIgnoreCase(config.balancePolicy);
+        int start = mNext.getAndIncrement();
+        Upstream best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (int i = 0; i < upstreams.size(); i++) {
+            Upstream upstream = upstreams.get(Math.floorMod(start + i, upstreams.size()));
+            if (!upstream.isAvailable(now)) {
+                continue;
+            }
+            // Unknown rtt scores best, the upstream gets measured soon
+            double score = rtt ? (double) (upstream.mRttNanos + 1) * (upstream.outstanding() + 1) : upstream.outstanding();
+            if (score < bestScore) {
+                best = upstream;
+                bestScore = score;
+            }
+        }
+        if (best == null || !best.admit(now)) {
+            sLogger.debug("No upstream available for {}, fail fast", dstAddr);
+            return null;
+        }
+        sLogger.trace("Select upstream {} for {}", best, dstAddr);
+        return best;
+    }
+
+    private Upstream upstream(URI uri, String uid) {
+        final WebSocketChannelPoolManager.UpstreamKey key = new WebSocketChannelPoolManager.UpstreamKey(uri, uid);
+        return mUpstreams.computeIfAbsent(key, k -> new Upstream(k));
+    }
+
+    // FNV-1a, spread the short strings well enough for the ring
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * State of one upstream shared by all its pool shards, with a circuit breaker
+     *
+     * Breaker opens after consecutive failures, tunnels fail fast while open.
+     * After the backoff with jitter it is half open, one trial tunnel passes, success closes the breaker,
+     * failure opens it again with doubled backoff.
+     */
+    static final class Upstream {
+
+        final WebSocketChannelPoolManager.UpstreamKey mKey;
+        private final AtomicInteger mOutstanding = new AtomicInteger();
+        private volatile long mRttNanos; // EWMA of probe round trip, 0 before the first pong
+        private volatile long mRttVarNanos; // EWMA of the deviation
+        private volatile boolean mOpen;
+        private volatile long mOpenUntil;
+        private volatile boolean mTrial; // Half open trial tunnel in flight
+        private int mFailures;
+        private long mBackoffMillis;
+
+        Upstream(WebSocketChannelPoolManager.UpstreamKey key) {
+            mKey = key;
+        }
+
+        int outstanding() {
+            return mOutstanding.get();
+        }
+
+        long rttNanos() {
+            return mRttNanos;
+        }
+
+        /**
+         * TCP connect timeout adapted to the probe round trip, like TCP RTO, max if never measured
+         * The connect request round trip is not used, it includes the DNS and target connect of the server.
+         */
+        long connectTimeoutMillis(long maxMillis) {
+            if (mRttNanos == 0) {
+                return maxMillis;
+            }
+            long rto = TimeUnit.NANOSECONDS.toMillis(mRttNanos + 4 * mRttVarNanos);
+            return Math.max(CONNECT_TIMEOUT_MIN_MILLIS, Math.min(maxMillis, CONNECT_TIMEOUT_FACTOR * rto));
+        }
+
+        boolean isOpen() {
+            return mOpen;
+        }
+
+        /**
+         * Closed breaker, or half open without trial in flight
+         */
+        boolean isAvailable(long nowMillis) {
+            return !mOpen || (nowMillis >= mOpenUntil && !mTrial);
+        }
+
+        /**
+         * Admit a tunnel, the first one after backoff becomes the trial
+         */
+        synchronized boolean admit(long nowMillis) {
+            if (!mOpen) {
+                return true;
+            }
+            if (nowMillis < mOpenUntil || mTrial) {
+                return false;
+            }
+            sLogger.info("Upstream {} half open, trial tunnel", mKey);
+            mTrial = true;
+            return true;
+        }
+
+        void started() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void finished() {
+            mOutstanding.decrementAndGet();
+        }
+
+        synchronized void succeeded() {
+            if (mOpen) {
+                sLogger.info("Upstream {} recovered, close breaker", mKey);
+            }
+            mFailures = 0;
+            mBackoffMillis = 0;
+            mOpen = false;
+            mTrial = false;
+        }
+
+        /**
+         * Round trip to the upstream itself, measured by the probe of any pool shard
+         */
+        synchronized void recordRtt(long rttNanos) {
+            long rtt = mRttNanos;
+            if (rtt == 0) {
+                mRttNanos = rttNanos;
+                mRttVarNanos = rttNanos / 2;
+            } else {
+                mRttVarNanos = (long) (mRttVarNanos + RTT_WEIGHT * (Math.abs(rttNanos - rtt) - mRttVarNanos));
+                mRttNanos = (long) (rtt + RTT_WEIGHT * (rttNanos - rtt));
+            }
+        }
+
+        synchronized void failed() {
+            if (++mFailures >= BREAKER_FAILURES || mTrial) {
+                mBackoffMillis = (mBackoffMillis == 0) ? BACKOFF_MIN_MILLIS : Math.min(BACKOFF_MAX_MILLIS, mBackoffMillis * 2);
+                // Equal jitter, spread the trials of many clients
+                long backoff = mBackoffMillis / 2 + ThreadLocalRandom.current().nextLong(mBackoffMillis / 2 + 1);
+                mOpen = true;
+                mOpenUntil = System.currentTimeMillis() + backoff;
+                mTrial = false;
+                sLogger.warn("Upstream {} failed {} times, open breaker for {}ms", mKey, mFailures, backoff);
+            }
+        }
+
+        /**
+         * Tunnel ended without telling the health of upstream, let another one be the trial
+         */
+        synchronized void abandoned() {
+            mTrial = false;
+        }
+
+        @Override
+        public String toString() {
+            return mKey.toString();
+        }
+    }
+
+    /**
+     * Consistent hash ring, a destination keeps its upstream when others join or leave
+     */
+    private static final class Ring {
+
+        private final List<Upstream> mMembers;
+        private final TreeMap<Long, Upstream> mPoints = new TreeMap<>();
+
+        Ring(List<Upstream> members) {
+            mMembers = members;
+            for (Upstream upstream : members) {
+                for (int i = 0; i < VIRTUAL_NODES; i++) {
+                    mPoints.put(hash(upstream.mKey + "#" + i), upstream);
+                }
+            }
+        }
+
+        // First available upstream clockwise from the destination
+        Upstream lookup(String dstAddr, long nowMillis) {
+            long hash = hash(dstAddr);
+            for (Upstream upstream : mPoints.tailMap(hash).values()) {
+                if (upstream.isAvailable(nowMillis)) {
+                    return upstream;
+                }
+            }
+            for (Map.Entry<Long, Upstream> entry : mPoints.headMap(hash).entrySet()) {
+                if (entry.getValue().isAvailable(nowMillis)) {
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Measure the connect request round trip of a tunnel for hedging, the upstream failed if WebSocket closed before response
+     * Must add before WsClientHandler, removed once the response arrived
+     */
+    static class Tracker extends ChannelInboundHandlerAdapter {
+
+        private final UpstreamBalancer mBalancer;
+        private final Upstream mUpstream;
+        private long mStart;
+        private boolean mDone; // Health of upstream reported
+        private volatile boolean mCancelled;
+
+        Tracker(UpstreamBalancer balancer, Upstream upstream) {
+            mBalancer = balancer;
+            mUpstream = upstream;
+        }
+
+        /**
+         * Tunnel abandoned by local side, the WebSocket closing is not a failure
+         */
+        static void cancel(Channel ch) {
+            Tracker tracker = ch.pipeline().get(Tracker.class);
+            if (tracker != null) {
+                tracker.mCancelled = true;
+            }
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            mStart = System.nanoTime();
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof ControlMessage && "response".equalsIgnoreCase(((ControlMessage) msg).type)) {
+                String action = ((ControlMessage) msg).action;
+                mDone = true;
+                if ("success".equalsIgnoreCase(action)) {
+                    mUpstream.succeeded();
+                    mBalancer.recordLatency(System.nanoTime() - mStart);
+                } else if ("failure".equalsIgnoreCase(action)) {
+                    // Target unreachable is not fault of the upstream, neither a proof of its health
+                    mUpstream.abandoned();
+                } else {
+                    // Rejected, e.g. credential not accepted, the upstream takes no tunnel
+                    mUpstream.failed();
+                }
+                ctx.pipeline().remove(this);
+            }
+            ctx.fireChannelRead(msg);
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            mDone = true;
+            if (mCancelled) {
+                mUpstream.abandoned();
+            } else {
+                mUpstream.failed();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override // ChannelInboundHandlerAdapter
+        public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+            if (!mDone) {
+                mUpstream.abandoned();
+            }
+        }
+    }
+}
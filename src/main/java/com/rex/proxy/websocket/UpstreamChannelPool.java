@@ -0,0 +1,270 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.channel.pool.ChannelPoolHandler;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded connection pool of one upstream server
+ * Wrap FixedChannelPool with max connections, max pending acquires and acquire timeout,
+ * if fail fast, acquire fails immediately when all the connections leased instead of waiting in queue.
+ * Without a share of the pending acquires, the pool fails fast too.
+ * Optional PoolWarmer keeps idle authorized connections ahead of demand.
+ * Optional PoolProbeHandler pings the idle connections, evicts the dead, idle too long or slow ones.
+ */
+class UpstreamChannelPool {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(UpstreamChannelPool.class);
+
+    private static final double RTT_WEIGHT = 0.2;
+
+    // Created but never passed hello, neither used by tunnel nor warmed
+    private static final AttributeKey<Boolean> ATTR_FRESH = AttributeKey.valueOf("ws.poolFresh");
+    // Carried a tunnel, frames of that tunnel may still be on the way
+    private static final AttributeKey<Boolean> ATTR_TUNNELED = AttributeKey.valueOf("ws.poolTunneled");
+
+    private final WebSocketChannelPoolManager.UpstreamKey mKey;
+    private final FixedChannelPool mPool;
+    private final int mMaxConnections;
+    private final int mMaxPendingAcquires;
+    private final boolean mFailFast;
+    private final AtomicBoolean mActive = new AtomicBoolean();
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final AtomicInteger mAlive = new AtomicInteger();
+    private final AtomicLong mCreated = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private PoolWarmer mWarmer;
+    private long mProbeIntervalMillis; // 0 disable probing
+    private long mProbeTimeoutMillis;
+    private long mIdleTimeoutMillis;
+    private volatile long mRttNanos; // EWMA of all probes, updated in event loop of the pool
+    private volatile UpstreamBalancer.Upstream mUpstream; // Fed with the probes, null if not balanced
+
+    UpstreamChannelPool(WebSocketChannelPoolManager.UpstreamKey key,
+                        Bootstrap bootstrap,
+                        final ChannelPoolHandler handler,
+                        final ChannelHealthChecker healthChecker,
+                        int maxConnections,
+                        int maxPendingAcquires,
+                        long acquireTimeoutMillis,
+                        boolean failFast) {
+        sLogger.trace("<init> key={} maxConnections={} maxPendingAcquires={} acquireTimeoutMillis={} failFast={}",
+                key, maxConnections, maxPendingAcquires, acquireTimeoutMillis, failFast);
+        mKey = key;
+        mMaxConnections = maxConnections;
+        mMaxPendingAcquires = maxPendingAcquires;
+        mFailFast = failFast;
+        mPool = new FixedChannelPool(bootstrap, new ChannelPoolHandler() {
+            @Override
+            public void channelReleased(Channel ch) throws Exception {
+                handler.channelReleased(ch);
+                PoolProbeHandler probe = PoolProbeHandler.of(ch);
+                if (probe != null) {
+                    probe.pooled();
+                }
+            }
+
+            @Override
+            public void channelAcquired(Channel ch) throws Exception {
+                PoolProbeHandler probe = PoolProbeHandler.of(ch);
+                if (probe != null) {
+                    probe.leased();
+                }
+                handler.channelAcquired(ch);
+            }
+
+            @Override
+            public void channelCreated(Channel ch) throws Exception {
+                mCreated.incrementAndGet();
+                mAlive.incrementAndGet();
+                ch.attr(ATTR_FRESH).set(Boolean.TRUE);
+                ch.closeFuture().addListener(mCloseListener);
+                handler.channelCreated(ch);
+                if (mProbeIntervalMillis > 0) {
+                    PoolProbeHandler.install(ch, new PoolProbeHandler(UpstreamChannelPool.this,
+                            mProbeIntervalMillis, mProbeTimeoutMillis, mIdleTimeoutMillis));
+                }
+            }
+        }, new ChannelHealthChecker() {
+            @Override
+            public Future<Boolean> isHealthy(Channel ch) {
+                PoolProbeHandler probe = PoolProbeHandler.of(ch);
+                if (probe != null && !probe.isHealthy()) {
+                    sLogger.debug("Channel {} failed probe, evict", ch);
+                    return ch.eventLoop().newSucceededFuture(Boolean.FALSE);
+                }
+                return healthChecker.isHealthy(ch);
+            }
+        }, FixedChannelPool.AcquireTimeoutAction.FAIL, acquireTimeoutMillis,
+                maxConnections, Math.max(1, maxPendingAcquires), true, true);
+    }
+
+    static boolean isFresh(Channel ch) {
+        return Boolean.TRUE.equals(ch.attr(ATTR_FRESH).get());
+    }
+
+    static void markUsed(Channel ch) {
+        ch.attr(ATTR_FRESH).set(null);
+    }
+
+    static boolean hasTunneled(Channel ch) {
+        return Boolean.TRUE.equals(ch.attr(ATTR_TUNNELED).get());
+    }
+
+    static void markTunneled(Channel ch) {
+        ch.attr(ATTR_TUNNELED).set(Boolean.TRUE);
+    }
+
+    /**
+     * Keep idle authorized connections, run in the event loop of the pool
+     * Called again to change the limits of the running warmer.
+     */
+    synchronized void warm(EventLoop loop, String secret, int min, int max) {
+        if (mWarmer != null) {
+            mWarmer.limits(min, max);
+        } else if (max > 0) {
+            mWarmer = new PoolWarmer(this, secret, min, max);
+            mWarmer.start(loop);
+        }
+    }
+
+    /**
+     * Mark the pool used by local channels of its event loop
+     *
+     * @return true on the first call
+     */
+    boolean activate() {
+        return mActive.compareAndSet(false, true);
+    }
+
+    boolean isActive() {
+        return mActive.get();
+    }
+
+    /**
+     * Probe the idle connections by WebSocket ping, must call before the first acquire
+     */
+    void probe(long intervalMillis, long timeoutMillis, long idleTimeoutMillis) {
+        mProbeIntervalMillis = intervalMillis;
+        mProbeTimeoutMillis = timeoutMillis;
+        mIdleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Report the probe round trips to the balancer state of the upstream
+     */
+    void balance(UpstreamBalancer.Upstream upstream) {
+        mUpstream = upstream;
+    }
+
+    /**
+     * Record a probe round trip time of any connection
+     */
+    void recordRtt(long rttNanos) {
+        long rtt = mRttNanos;
+        mRttNanos = (rtt == 0) ? rttNanos : (long) (rtt + RTT_WEIGHT * (rttNanos - rtt));
+        UpstreamBalancer.Upstream upstream = mUpstream;
+        if (upstream != null) {
+            upstream.recordRtt(rttNanos);
+        }
+    }
+
+    long rttNanos() {
+        return mRttNanos;
+    }
+
+    /**
+     * Acquire a leased channel, the failed future of fail fast is created by the executor
+     */
+    Future<Channel> acquire(EventExecutor executor) {
+        if ((mFailFast || mMaxPendingAcquires == 0) && mPool.acquiredChannelCount() >= mMaxConnections) {
+            mFailed.incrementAndGet();
+            sLogger.debug("Pool {} exhausted, fail fast", mKey);
+            return executor.newFailedFuture(new IllegalStateException("Too many connections to " + mKey));
+        }
+        mPending.incrementAndGet();
+        return mPool.acquire().addListener(mAcquireListener);
+    }
+
+    /**
+     * Acquire for the pool itself, not counted in the gauges
+     */
+    Future<Channel> acquireDirect() {
+        return mPool.acquire();
+    }
+
+    int leased() {
+        return mPool.acquiredChannelCount();
+    }
+
+    int idle() {
+        return Math.max(0, mAlive.get() - mPool.acquiredChannelCount());
+    }
+
+    /**
+     * Connections not leased nor promised to a pending acquire, negative if acquires wait in queue
+     */
+    int room() {
+        return mMaxConnections - mPool.acquiredChannelCount() - mPending.get();
+    }
+
+    int maxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Return the channel to pool, inactive channel is dropped, must release every acquired channel
+     */
+    void release(Channel channel) {
+        mPool.release(channel);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (mWarmer != null) {
+                mWarmer.stop();
+            }
+        }
+        mPool.close();
+    }
+
+    WebSocketChannelPoolManager.PoolGauge gauge() {
+        return new WebSocketChannelPoolManager.PoolGauge(mKey.toString(),
+                mPool.acquiredChannelCount(), idle(), mPending.get(), mCreated.get(), mFailed.get(), mRttNanos / 1000);
+    }
+
+    private final FutureListener<Channel> mAcquireListener = new FutureListener<Channel>() {
+        @Override
+        public void operationComplete(Future<Channel> future) throws Exception {
+            mPending.decrementAndGet();
+            if (!future.isSuccess()) {
+                // Pending queue full, acquire timeout or connect failure
+                mFailed.incrementAndGet();
+            } else {
+                markUsed(future.getNow());
+            }
+        }
+    };
+
+    private final ChannelFutureListener mCloseListener = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            mAlive.decrementAndGet();
+        }
+    };
+}
@@ -1,23 +1,50 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.Transport;
+import com.rex.proxy.websocket.mux.MuxConnector;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
 import io.netty.channel.pool.AbstractChannelPoolHandler;
 import io.netty.channel.pool.ChannelHealthChecker;
-import io.netty.channel.pool.SimpleChannelPool;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.DefaultAddressResolverGroup;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Manages WebSocket connection pools for different target addresses.
- * Each target address (host:port) has its own connection pool.
+ * Manages WebSocket connection pools for different upstream servers.
+ * Each upstream (scheme, host, port, uid) has its own connection pool, shared by tunnels to any destination.
  * Connections are reused to avoid the overhead of TLS and WebSocket handshakes.
+ *
+ * Each WslLocal owns a manager, attached to the accepted local channels by {@link #ATTR_MANAGER}.
+ * The multiplexed WebSocket sessions of the WslLocal are kept by the manager too, closed with the pools.
+ * Pools are bounded by max connections and max pending acquires, protect the server from handshake storms.
+ *
+ * Each upstream pool is sharded by event loop, local channel acquires the WebSocket living on its own event loop,
+ * so the relayed data never cross threads. Idle connection of other shard is stolen only when own shard is empty.
+ * The limits of an upstream are shared out among the shards, the shares add up exactly to the configured limits.
+ * With fewer connections than event loops, the loops without a share, or with a full shard, take the shard with most room.
+ * Warm connections are shared among the shards used by local channels, the first shard warms all before any tunnel.
+ *
+ * With more upstreams in proxyUris, UpstreamBalancer selects the upstream of each tunnel.
+ * Acquire fails fast while the circuit breakers of all upstreams are open.
  */
 public class WebSocketChannelPoolManager {
 
@@ -26,20 +53,45 @@ public class WebSocketChannelPoolManager {
     // Pool configuration
     private static final int MAX_PENDING_ACQUIRES = 100;
     private static final long ACQUIRE_TIMEOUT_MILLIS = 10000; // 10 seconds
+    private static final long CONNECT_TIMEOUT_MILLIS = 15000; // Max, adapted to round trip once measured
     private static final long IDLE_TIMEOUT_SECONDS = 900; // 15 minutes
+    private static final long PROBE_INTERVAL_MILLIS = 30000; // Shorter than common NAT mapping timeout
+    private static final long PROBE_TIMEOUT_MILLIS = 5000;
 
-    // Singleton instance
+    public static final AttributeKey<WebSocketChannelPoolManager> ATTR_MANAGER = AttributeKey.valueOf("ws.poolManager");
+    private static final AttributeKey<UpstreamKey> ATTR_UPSTREAM = AttributeKey.valueOf("ws.poolUpstream");
+
+    // Default instance for local channels not accepted by WslLocal
     private static volatile WebSocketChannelPoolManager sInstance;
 
-    // Map from "host:port" to connection pool
-    private final ConcurrentHashMap<String, SimpleChannelPool> mPoolMap = new ConcurrentHashMap<>();
+    // Map from upstream to connection pool shards of each event loop
+    private final ConcurrentHashMap<UpstreamKey, ConcurrentHashMap<EventLoop, UpstreamChannelPool>> mPoolMap = new ConcurrentHashMap<>();
+    private final UpstreamBalancer mBalancer = new UpstreamBalancer();
+    private final MuxConnector mMuxConnector = new MuxConnector();
+    private final AddressResolverGroup<InetSocketAddress> mResolver;
+
+    public WebSocketChannelPoolManager() {
+        this(DefaultAddressResolverGroup.INSTANCE);
+    }
+
+    /**
+     * @param resolver Resolve the upstream server address
+     */
+    public WebSocketChannelPoolManager(AddressResolverGroup<InetSocketAddress> resolver) {
+        sLogger.trace("<init> resolver={}", resolver);
+        mResolver = resolver;
+    }
 
-    private WebSocketChannelPoolManager() {
-        sLogger.trace("<init>");
+    /**
+     * Manager of the WslLocal accepted the local channel, or the default instance
+     */
+    public static WebSocketChannelPoolManager of(Channel localChannel) {
+        WebSocketChannelPoolManager manager = localChannel.attr(ATTR_MANAGER).get();
+        return (manager != null) ? manager : getInstance();
     }
 
     /**
-     * Get singleton instance
+     * Get default instance
      */
     public static WebSocketChannelPoolManager getInstance() {
         if (sInstance == null) {
@@ -56,18 +108,90 @@ public class WebSocketChannelPoolManager {
      * Acquire a WebSocket channel from the pool.
      * If no idle connection exists, a new one will be created.
      *
-     * @param dstAddr Destination address for logging
+     * @param dstAddr Destination address, select the upstream if consistent hashing
      * @param dstPort Destination port for logging
      * @param localCtx The local socket context (SOCKS or HTTP)
-     * @param config WslLocal configuration
+     * @param config WslLocal configuration, the upstream server and credential select the pool
      * @return Future that will be notified when a channel is acquired
      */
     public Future<Channel> acquire(String dstAddr, int dstPort, ChannelHandlerContext localCtx, WslLocal.Configuration config) {
-        String poolKey = getPoolKey(dstAddr, dstPort);
+        final UpstreamBalancer.Upstream upstream = mBalancer.select(config, dstAddr);
+        if (upstream == null) {
+            return localCtx.executor().newFailedFuture(new ConnectException("Upstream circuit open"));
+        }
+        UpstreamKey poolKey = upstream.mKey;
         sLogger.debug("Acquire channel for {} from pool {}", dstAddr + ":" + dstPort, poolKey);
 
-        SimpleChannelPool pool = mPoolMap.computeIfAbsent(poolKey, key -> createPool(config, localCtx));
-        return pool.acquire();
+        ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards = mPoolMap.computeIfAbsent(poolKey, key -> new ConcurrentHashMap<>());
+        EventLoop loop = localCtx.channel().eventLoop();
+        UpstreamChannelPool pool = shard(shards, poolKey, config, loop);
+        if (pool != null && pool.activate()) {
+            rewarm(shards, poolKey, config, loop);
+        }
+        if (pool == null || pool.idle() == 0) {
+            pool = route(shards, poolKey, config, loop, pool);
+        }
+
+        // Outstanding until released, or acquire failed
+        upstream.started();
+        return pool.acquire(localCtx.executor()).addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (!future.isSuccess()) {
+                    upstream.finished();
+                    // Exhausted pool or timeout in queue is not fault of the upstream
+                    Throwable cause = future.cause();
+                    if (!(cause instanceof IllegalStateException) && !(cause instanceof TimeoutException)) {
+                        upstream.failed();
+                    } else {
+                        upstream.abandoned();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether any configured upstream is taking tunnels, false if all circuit breakers open
+     */
+    public boolean isAvailable(WslLocal.Configuration config) {
+        return mBalancer.isAvailable(config);
+    }
+
+    /**
+     * Handler measures the connect request of the tunnel, add before WsClientHandler
+     *
+     * @return null if channel not acquired from this manager
+     */
+    public ChannelHandler newTracker(Channel channel) {
+        UpstreamKey poolKey = channel.attr(ATTR_UPSTREAM).get();
+        UpstreamBalancer.Upstream upstream = (poolKey != null) ? mBalancer.get(poolKey) : null;
+        return (upstream != null) ? mBalancer.newTracker(upstream) : null;
+    }
+
+    /**
+     * Percentile of recent connect request round trips among all upstreams, 0 if not enough samples
+     * Includes the DNS and target connect of the server, for hedging only, the balancer uses the probe round trip.
+     */
+    public long connectLatencyNanos(int percentile) {
+        return mBalancer.connectLatency(percentile);
+    }
+
+    /**
+     * Create the pool shards of configured upstream ahead of the first tunnel, start warming if enabled
+     */
+    public void prewarm(WslLocal.Configuration config, EventLoopGroup group) {
+        for (UpstreamBalancer.Upstream upstream : mBalancer.upstreams(config)) {
+            ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards = mPoolMap.computeIfAbsent(upstream.mKey, key -> new ConcurrentHashMap<>());
+            EventLoop first = null;
+            for (EventExecutor executor : group) {
+                shard(shards, upstream.mKey, config, (EventLoop) executor);
+                first = (first != null) ? first : (EventLoop) executor;
+            }
+            if (first != null) {
+                rewarm(shards, upstream.mKey, config, first);
+            }
+        }
     }
 
     /**
@@ -75,22 +199,31 @@ public class WebSocketChannelPoolManager {
      * The channel will be cleaned up and kept alive for reuse.
      *
      * @param channel The WebSocket channel to release
-     * @param dstAddr Destination address for pool lookup
-     * @param dstPort Destination port for pool lookup
      */
-    public void release(Channel channel, String dstAddr, int dstPort) {
-        String poolKey = getPoolKey(dstAddr, dstPort);
-        SimpleChannelPool pool = mPoolMap.get(poolKey);
+    public void release(Channel channel) {
+        UpstreamKey poolKey = (channel != null) ? channel.attr(ATTR_UPSTREAM).get() : null;
+        ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards = (poolKey != null) ? mPoolMap.get(poolKey) : null;
+        UpstreamChannelPool pool = (shards != null) ? shards.get(channel.eventLoop()) : null;
 
-        if (pool != null && channel != null && channel.isActive()) {
+        if (pool != null) {
             sLogger.debug("Release channel {} to pool {}", channel, poolKey);
+            UpstreamBalancer.Upstream upstream = mBalancer.get(poolKey);
+            if (upstream != null) {
+                upstream.finished();
+            }
+
+            // Next tunnel on it must wait for the response, see WsClientHandler.optimistic
+            UpstreamChannelPool.markTunneled(channel);
 
             // Clean up business handlers before returning to pool
-            cleanupChannel(channel);
+            if (channel.isActive()) {
+                cleanupChannel(channel);
+            }
 
+            // Inactive channel must release too, the pool counts the leased channels
             pool.release(channel);
         } else {
-            sLogger.warn("No pool found for {} or channel inactive, closing channel", poolKey);
+            sLogger.warn("No pool found for {}, closing channel", poolKey);
             if (channel != null && channel.isActive()) {
                 channel.close();
             }
@@ -98,30 +231,179 @@ public class WebSocketChannelPoolManager {
     }
 
     /**
-     * Create a new connection pool for a specific target address
+     * Multiplexed WebSocket sessions of this manager
+     */
+    public MuxConnector muxConnector() {
+        return mMuxConnector;
+    }
+
+    /**
+     * Number of upstream pools
      */
-    private SimpleChannelPool createPool(WslLocal.Configuration config, ChannelHandlerContext ctx) {
-        sLogger.info("Create new connection pool");
+    public int poolCount() {
+        return mPoolMap.size();
+    }
 
-        // Determine actual connection address
-        String wsHost = config.proxyUri.getHost();
-        int wsPort = config.proxyUri.getPort();
-        if (wsPort == -1) {
-            if ("wss".equalsIgnoreCase(config.proxyUri.getScheme())) {
-                wsPort = 443;
-            } else {
-                wsPort = 80;
+    /**
+     * Snapshot of all the upstream pools, sum of the shards
+     */
+    public List<PoolGauge> gauges() {
+        List<PoolGauge> gauges = new ArrayList<>(mPoolMap.size());
+        for (Map.Entry<UpstreamKey, ConcurrentHashMap<EventLoop, UpstreamChannelPool>> entry : mPoolMap.entrySet()) {
+            int leased = 0, idle = 0, pending = 0, probed = 0;
+            long created = 0, failed = 0, rtt = 0;
+            for (UpstreamChannelPool pool : entry.getValue().values()) {
+                PoolGauge gauge = pool.gauge();
+                leased += gauge.leased;
+                idle += gauge.idle;
+                pending += gauge.pending;
+                created += gauge.created;
+                failed += gauge.failed;
+                if (gauge.rttMicros > 0) {
+                    rtt += gauge.rttMicros;
+                    probed++;
+                }
+            }
+            gauges.add(new PoolGauge(entry.getKey().toString(), leased, idle, pending, created, failed,
+                    (probed > 0) ? rtt / probed : 0));
+        }
+        return gauges;
+    }
+
+    /**
+     * Shard of the event loop, null if the loop has no share of the connections
+     */
+    private UpstreamChannelPool shard(ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards,
+                                      UpstreamKey upstream, WslLocal.Configuration config, EventLoop loop) {
+        UpstreamChannelPool pool = shards.get(loop);
+        if (pool == null && maxConnections(config, loop) > 0) {
+            pool = shards.computeIfAbsent(loop, key -> createPool(upstream, config, key));
+        }
+        return pool;
+    }
+
+    /**
+     * Own shard has no idle connection, prefer the idle connection of other shard rather than handshake a new one,
+     * then own shard if it has room, otherwise the shard with most room
+     */
+    private UpstreamChannelPool route(ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards,
+                                      UpstreamKey upstream, WslLocal.Configuration config, EventLoop loop, UpstreamChannelPool own) {
+        for (UpstreamChannelPool other : shards.values()) {
+            if (other != own && other.idle() > 0) {
+                sLogger.trace("Steal idle channel from shard {}", other);
+                return other;
+            }
+        }
+        if (own != null && own.room() > 0) {
+            return own;
+        }
+        // Waiting acquires count against the room, so the queues spread and any release serves one
+        UpstreamChannelPool best = own;
+        for (EventLoop other : loops(loop)) {
+            UpstreamChannelPool pool = shard(shards, upstream, config, other);
+            if (pool != null && (best == null || pool.room() > best.room())) {
+                best = pool;
+            }
+        }
+        sLogger.trace("Route to shard {} with most room", best);
+        return best;
+    }
+
+    /**
+     * Share out the warm limits among the shards used by local channels, or to the first shard before any tunnel.
+     * The other shards close their warm connections gradually.
+     */
+    private void rewarm(ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards,
+                        UpstreamKey upstream, WslLocal.Configuration config, EventLoop loop) {
+        if (config.poolWarmMax == null || config.poolWarmMax <= 0) {
+            return;
+        }
+        int warmMax = config.poolWarmMax;
+        int warmMin = (config.poolWarmMin != null) ? Math.max(0, Math.min(config.poolWarmMin, warmMax)) : 0;
+        synchronized (shards) {
+            List<EventLoop> owners = new ArrayList<>();
+            List<EventLoop> active = new ArrayList<>();
+            for (EventLoop other : loops(loop)) {
+                UpstreamChannelPool pool = shards.get(other);
+                if (pool != null) {
+                    owners.add(other);
+                    if (pool.isActive()) {
+                        active.add(other);
+                    }
+                }
+            }
+            List<EventLoop> warmed = !active.isEmpty() ? active : owners.subList(0, Math.min(1, owners.size()));
+            for (EventLoop other : owners) {
+                int index = warmed.indexOf(other);
+                int min = (index >= 0) ? share(warmMin, warmed.size(), index) : 0;
+                int max = (index >= 0) ? share(warmMax, warmed.size(), index) : 0;
+                shards.get(other).warm(other, config.proxyUid, min, max);
+            }
+        }
+    }
+
+    /**
+     * Number of event loop shards of the configured upstream
+     */
+    int shardCount(WslLocal.Configuration config) {
+        Map<EventLoop, UpstreamChannelPool> shards = mPoolMap.get(new UpstreamKey(config.proxyUri, config.proxyUid));
+        return (shards != null) ? shards.size() : 0;
+    }
+
+    // Event loops an upstream may have shards on, the loops in the group in order
+    private static List<EventLoop> loops(EventLoop loop) {
+        List<EventLoop> loops = new ArrayList<>();
+        if (loop.parent() != null) {
+            for (EventExecutor executor : loop.parent()) {
+                loops.add((EventLoop) executor);
             }
         }
+        if (!loops.contains(loop)) {
+            loops.add(loop);
+        }
+        return loops;
+    }
+
+    // Share of the shard at index, the first shards take the remainder so the shares add up to the limit
+    static int share(int limit, int shards, int index) {
+        return limit / shards + ((index < limit % shards) ? 1 : 0);
+    }
+
+    private static int maxConnections(WslLocal.Configuration config, EventLoop loop) {
+        if (config.poolMaxConnections == null) {
+            return Integer.MAX_VALUE;
+        }
+        List<EventLoop> loops = loops(loop);
+        return share(Math.max(1, config.poolMaxConnections), loops.size(), loops.indexOf(loop));
+    }
+
+    // Shared out among the shards with connections only
+    private static int maxPendingAcquires(WslLocal.Configuration config, EventLoop loop) {
+        int limit = (config.poolMaxPendingAcquires != null) ? Math.max(1, config.poolMaxPendingAcquires) : MAX_PENDING_ACQUIRES;
+        List<EventLoop> loops = loops(loop);
+        int shards = (config.poolMaxConnections != null) ? Math.min(loops.size(), Math.max(1, config.poolMaxConnections)) : loops.size();
+        return share(limit, shards, loops.indexOf(loop));
+    }
+
+    /**
+     * Create a new connection pool for a specific upstream server
+     */
+    private UpstreamChannelPool createPool(final UpstreamKey upstream, WslLocal.Configuration config, EventLoop eventLoop) {
+        sLogger.info("Create new connection pool for {} on {}", upstream, eventLoop);
 
-        InetSocketAddress serverAddress = InetSocketAddress.createUnresolved(wsHost, wsPort);
-        EventLoop eventLoop = ctx.channel().eventLoop();
+        final long idleTimeoutSeconds = (config.poolIdleTimeoutSeconds != null) ? Math.max(1, config.poolIdleTimeoutSeconds) : IDLE_TIMEOUT_SECONDS;
+
+        InetSocketAddress serverAddress = InetSocketAddress.createUnresolved(upstream.mHost, upstream.mPort);
+        // One initializer per pool, its TLS context is shared by every channel of the upstream
+        final PooledWsClientInitializer initializer = new PooledWsClientInitializer(config, upstream.mUri);
 
         Bootstrap bootstrap = new Bootstrap()
                 .group(eventLoop)
-                .channel(NioSocketChannel.class)
-                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
+                .channel(Transport.of(eventLoop).socketChannel())
+                .resolver(mResolver)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) CONNECT_TIMEOUT_MILLIS)
                 .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(config.writeBufferLowWaterMark, config.writeBufferHighWaterMark))
                 .remoteAddress(serverAddress);
 
         // Pool handler - manages channel initialization and cleanup
@@ -129,18 +411,29 @@ public class WebSocketChannelPoolManager {
             @Override
             public void channelCreated(Channel ch) throws Exception {
                 sLogger.debug("Create new WebSocket channel {}", ch);
+                ch.attr(ATTR_UPSTREAM).set(upstream);
+
+                // Fail a dead upstream in a few round trips instead of the fixed timeout
+                UpstreamBalancer.Upstream balanced = mBalancer.get(upstream);
+                if (balanced != null) {
+                    ch.config().setConnectTimeoutMillis((int) balanced.connectTimeoutMillis(CONNECT_TIMEOUT_MILLIS));
+                }
 
                 // Initialize the WebSocket connection using pooled initializer
-                PooledWsClientInitializer initializer = new PooledWsClientInitializer(config);
                 initializer.initChannel((io.netty.channel.socket.SocketChannel) ch);
 
-                // Add idle timeout handler (15 minutes)
-                ch.pipeline().addFirst("idleHandler", new IdleWebSocketHandler(IDLE_TIMEOUT_SECONDS));
+                // Add idle timeout handler (15 minutes by default)
+                ch.pipeline().addFirst("idleHandler", new IdleWebSocketHandler(idleTimeoutSeconds));
             }
 
             @Override
             public void channelAcquired(Channel ch) throws Exception {
                 sLogger.debug("Acquired channel {} from pool", ch);
+
+                // Removed on release, the probe evicts idle channel while in pool
+                if (ch.pipeline().get(IdleWebSocketHandler.class) == null) {
+                    ch.pipeline().addFirst("idleHandler", new IdleWebSocketHandler(idleTimeoutSeconds));
+                }
             }
 
             @Override
@@ -156,7 +449,19 @@ public class WebSocketChannelPoolManager {
             return channel.eventLoop().newSucceededFuture(healthy);
         };
 
-        return new SimpleChannelPool(bootstrap, poolHandler, healthChecker);
+        UpstreamChannelPool pool = new UpstreamChannelPool(upstream, bootstrap, poolHandler, healthChecker,
+                maxConnections(config, eventLoop),
+                maxPendingAcquires(config, eventLoop),
+                (config.poolAcquireTimeoutMillis != null) ? Math.max(0, config.poolAcquireTimeoutMillis) : ACQUIRE_TIMEOUT_MILLIS,
+                "fail".equalsIgnoreCase(config.poolAcquirePolicy));
+        pool.balance(mBalancer.get(upstream));
+        long probeInterval = (config.poolProbeIntervalMillis != null) ? Math.max(0, config.poolProbeIntervalMillis) : PROBE_INTERVAL_MILLIS;
+        if (probeInterval > 0) {
+            pool.probe(probeInterval,
+                    (config.poolProbeTimeoutMillis != null) ? Math.max(1, config.poolProbeTimeoutMillis) : PROBE_TIMEOUT_MILLIS,
+                    TimeUnit.SECONDS.toMillis(idleTimeoutSeconds));
+        }
+        return pool;
     }
 
     /**
@@ -177,6 +482,13 @@ public class WebSocketChannelPoolManager {
             pipeline.remove(WsProxyRawToWs.class);
         }
 
+        if (pipeline.get("hedgeAttempt") != null) {
+            pipeline.remove("hedgeAttempt");
+        }
+        if (pipeline.get("upstreamTracker") != null) {
+            pipeline.remove("upstreamTracker");
+        }
+
         // Remove WsClientHandler if present
         if (pipeline.get("wsClientHandler") != null) {
             sLogger.trace("Remove WsClientHandler from pipeline");
@@ -198,12 +510,6 @@ public class WebSocketChannelPoolManager {
         sLogger.trace("Channel cleaned, pipeline: {}", pipeline.names());
     }
 
-    /**
-     * Generate pool key from destination address
-     */
-    private String getPoolKey(String host, int port) {
-        return host + ":" + port;
-    }
 
     /**
      * Close all pools and release resources.
@@ -211,9 +517,91 @@ public class WebSocketChannelPoolManager {
      */
     public void shutdown() {
         sLogger.info("Shutting down all connection pools");
-        for (SimpleChannelPool pool : mPoolMap.values()) {
-            pool.close();
+        for (WsClientSsl.SessionGauge gauge : WsClientSsl.gauges()) {
+            sLogger.info("TLS sessions {}", gauge);
+        }
+        for (ConcurrentHashMap<EventLoop, UpstreamChannelPool> shards : mPoolMap.values()) {
+            for (UpstreamChannelPool pool : shards.values()) {
+                pool.close();
+            }
         }
         mPoolMap.clear();
+        mBalancer.clear();
+        mMuxConnector.shutdown();
+    }
+
+    /**
+     * Statistics of one upstream pool
+     */
+    public static final class PoolGauge {
+
+        public final String upstream;
+        public final int leased; // Channels acquired and not released
+        public final int idle; // Channels kept in pool
+        public final int pending; // Acquires waiting in queue or connecting
+        public final long created; // Channels created since pool created
+        public final long failed; // Acquires failed by fail fast, full queue, timeout or connect failure
+        public final long rttMicros; // Average probe round trip time, 0 if not probed
+
+        PoolGauge(String upstream, int leased, int idle, int pending, long created, long failed, long rttMicros) {
+            this.upstream = upstream;
+            this.leased = leased;
+            this.idle = idle;
+            this.pending = pending;
+            this.created = created;
+            this.failed = failed;
+            this.rttMicros = rttMicros;
+        }
+
+        @Override
+        public String toString() {
+            return upstream + " leased:" + leased + " idle:" + idle + " pending:" + pending + " created:" + created + " failed:" + failed + " rtt:" + rttMicros + "us";
+        }
+    }
+
+    /**
+     * Pool key, tunnels to the same server with the same credential share one pool whatever the destination
+     */
+    static final class UpstreamKey {
+
+        final String mScheme;
+        final String mHost;
+        final int mPort;
+        final String mUid;
+        final URI mUri; // To handshake, not part of the key
+
+        UpstreamKey(URI uri, String uid) {
+            mUri = uri;
+            mScheme = (uri.getScheme() != null) ? uri.getScheme().toLowerCase() : "ws";
+            mHost = uri.getHost();
+            if (uri.getPort() != -1) {
+                mPort = uri.getPort();
+            } else {
+                mPort = "wss".equals(mScheme) ? 443 : 80;
+            }
+            mUid = uid;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof UpstreamKey)) {
+                return false;
+            }
+            UpstreamKey other = (UpstreamKey) obj;
+            return mPort == other.mPort &&
+                    mScheme.equals(other.mScheme) &&
+                    Objects.equals(mHost, other.mHost) &&
+                    Objects.equals(mUid, other.mUid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mScheme, mHost, mPort, mUid);
+        }
+
+        @Override
+        public String toString() {
+            return mScheme + "://" + mHost + ":" + mPort; // Never log the uid
+        }
     }
 }
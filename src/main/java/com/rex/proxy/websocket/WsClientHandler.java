@@ -3,6 +3,7 @@ package com.rex.proxy.websocket;
 import com.rex.proxy.WslLocal;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
 import com.rex.proxy.websocket.control.ControlMessage;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFutureListener;
@@ -12,6 +13,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Handle control messages from WebSocket server.
@@ -27,6 +29,11 @@ public class WsClientHandler extends SimpleChannelInboundHandler<ControlMessage>
     private final String mSecret;
     private byte[] mNonce;
     private boolean mIsPooled; // Whether this is a pooled connection
+    private int mCoalesceBytes;
+    private long mCoalesceDelayMicros;
+    private boolean mOptimistic;
+    private boolean mRelayed; // Relay handlers added before server response in optimistic mode
+    private AtomicBoolean mGate; // Shared by hedged attempts, only the first success relays
 
     public WsClientHandler(Channel channel, String dstAddr, int dstPort, String secret) {
         this(channel, dstAddr, dstPort, secret, false);
@@ -41,6 +48,34 @@ public class WsClientHandler extends SimpleChannelInboundHandler<ControlMessage>
         mIsPooled = isPooled;
     }
 
+    /**
+     * Coalesce small reads from socks client before write to WebSocket, see WsProxyRawToWs
+     */
+    public WsClientHandler coalesce(Integer bytes, Long delayMicros) {
+        mCoalesceBytes = (bytes != null) ? bytes : 0;
+        mCoalesceDelayMicros = (delayMicros != null) ? delayMicros : 0;
+        return this;
+    }
+
+    /**
+     * Start relay without waiting for the connect response, early data will send right after connect request
+     * Only works with server support proxy2b, older server will drop the early data
+     * Only for a WebSocket never carried a tunnel, frames of the previous tunnel on a reused one would go into this
+     */
+    public WsClientHandler optimistic(Boolean optimistic) {
+        mOptimistic = Boolean.TRUE.equals(optimistic);
+        return this;
+    }
+
+    /**
+     * Race with other hedged attempts of the same tunnel, the attempt succeeded later closes its WebSocket
+     * Not compatible with optimistic, which relays before the response
+     */
+    public WsClientHandler gate(AtomicBoolean gate) {
+        mGate = gate;
+        return this;
+    }
+
     @Override // ChannelInboundHandler
     public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
         super.handlerAdded(ctx);
@@ -60,24 +95,31 @@ public class WsClientHandler extends SimpleChannelInboundHandler<ControlMessage>
 
         if ("response".equalsIgnoreCase(response.type)) {
             if ("success".equalsIgnoreCase(response.action)) {
-                // Success
-                sLogger.debug("Relay {} with {}", mSocksChannel, ctx.channel());
-                //ctx.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print relayed data
-                ctx.pipeline().addLast(new WsProxyWsToRaw(mSocksChannel));
-                mSocksChannel.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
-
-                //sLogger.trace("Remote channel:{} pipeline:{}", ctx.channel(), ctx.pipeline());
-                //sLogger.trace("Local channel:{} pipeline:{}", mSocksChannel, mSocksChannel.pipeline());
+                if (mGate != null && !mRelayed && !mGate.compareAndSet(false, true)) {
+                    sLogger.debug("Lost the hedged connect, close {}", ctx.channel());
+                    ctx.close();
+                    return;
+                }
 
-                // XXX: Fire event on pipeline, make sure deliver to all the handlers
-                ctx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_READY);
+                // Success
+                if (!mRelayed) {
+                    relay(ctx);
+                }
 
                 // Remove this handler after successful connection setup
                 ctx.pipeline().remove(this);
             } else {
                 // Failure
                 sLogger.warn("WsClient got response {}", response.action);
-                ctx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+                if (mRelayed) {
+                    // Client already told success, close the tunnel instead
+                    if (mSocksChannel.isActive()) {
+                        mSocksChannel.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                                .addListener(ChannelFutureListener.CLOSE);
+                    }
+                } else {
+                    ctx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+                }
 
                 // Close the socket immediately, avoid server left in TIME_WAIT state
                 ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
@@ -140,6 +182,26 @@ public class WsClientHandler extends SimpleChannelInboundHandler<ControlMessage>
 
         sLogger.trace("Send connect request: address={} port={} hasToken={}", mDstAddress, mDstPort, request.token != null);
         ctx.writeAndFlush(request);
+
+        // Server support proxy2b will buffer the early data until target connected
+        if (mOptimistic && !mRelayed && WsProxyControlCodec.isBinary(ctx.channel())) {
+            sLogger.debug("Optimistic relay before connect response");
+            relay(ctx);
+        }
+    }
+
+    private void relay(ChannelHandlerContext ctx) {
+        mRelayed = true;
+        sLogger.debug("Relay {} with {}", mSocksChannel, ctx.channel());
+        //ctx.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print relayed data
+        ctx.pipeline().addLast(new WsProxyWsToRaw(mSocksChannel));
+        mSocksChannel.pipeline().addLast(new WsProxyRawToWs(ctx.channel(), mCoalesceBytes, mCoalesceDelayMicros));
+
+        //sLogger.trace("Remote channel:{} pipeline:{}", ctx.channel(), ctx.pipeline());
+        //sLogger.trace("Local channel:{} pipeline:{}", mSocksChannel, mSocksChannel.pipeline());
+
+        // XXX: Fire event on pipeline, make sure deliver to all the handlers
+        ctx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_READY);
     }
 
     @Override // SimpleChannelInboundHandler
@@ -1,22 +1,20 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.TlsRecordSizer;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
 import io.netty.handler.codec.http.HttpClientCodec;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
 import io.netty.handler.codec.http.websocketx.WebSocketVersion;
-import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.SslHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.SSLException;
-
 /**
  * Initialize the client channel pipeline
  * WsProxyLocal (Socks Server) will use this initializer to handshake with WsProxyServer (WebSocket Server)
@@ -25,13 +23,14 @@ public class WsClientInitializer extends ChannelInitializer<SocketChannel> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsClientInitializer.class);
 
-    private static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
+    // Prefer binary control messages, old server will select proxy2
+    private static final String WS_SUBPROTOCOL = WsProxyControlCodec.SUBPROTOCOL_BINARY + ",com.rex.websocket.protocol.proxy2";
 
     private final WslLocal.Configuration mConfig;
     private final ChannelHandlerContext mContext; // Socks connection
     private final String mDstAddress;
     private final int mDstPort;
-    private SslContext mSslContext;
+    private final WsClientSsl mSsl;
 
     public WsClientInitializer(final WslLocal.Configuration config, final ChannelHandlerContext ctx, String dstAddr, int dstPort) {
         sLogger.trace("<init> dstAddr:{} dstPort:{}", dstAddr, dstPort);
@@ -40,40 +39,41 @@ public class WsClientInitializer extends ChannelInitializer<SocketChannel> {
         mDstAddress = dstAddr;
         mDstPort = dstPort;
 
-        if ("wss".equalsIgnoreCase(mConfig.proxyUri.getScheme())) {
-            try {
-                SslContextBuilder builder = SslContextBuilder.forClient();
-                if (!mConfig.proxyCertVerify) {
-                    builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
-                }
-                mSslContext = builder.build();
-            } catch (SSLException ex) {
-                sLogger.warn("Failed to init ssl\n", ex);
-            }
-        }
+        // Shared by the connections to the same upstream, reconnects resume the TLS session
+        mSsl = WsClientSsl.of(mConfig.proxyUri, mConfig.proxyCertVerify, mConfig.sslProvider);
     }
 
     @Override // ChannelInitializer
     protected void initChannel(SocketChannel ch) throws Exception {
         sLogger.trace("ch:{}", ch);
-        if (mSslContext != null) {
-            // TLS-SNI: https://www.cloudflare.com/learning/ssl/what-is-sni/
+        if (mSsl != null) {
             //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print TLS encrypted data
-            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc(), mConfig.proxyUri.getHost(), mConfig.proxyUri.getPort()));
+            SslHandler sslHandler = mSsl.newHandler(ch);
+            ch.pipeline().addLast(sslHandler);
+            if (!Boolean.FALSE.equals(mConfig.sslDynamicRecord)) {
+                ch.pipeline().addLast(new TlsRecordSizer(sslHandler));
+            }
         }
         //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
+        int maxFrameSize = WsFrameSize.limit(mConfig.maxFrameSize);
         ch.pipeline()
                 .addLast(new HttpClientCodec())
                 .addLast(new HttpObjectAggregator(1 << 16)) // 65536
-                .addLast(new WebSocketClientProtocolHandler(mConfig.proxyUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false, null, 65535))
+                .addLast(new WsFrameSize.ClientHandler(maxFrameSize))
+                .addLast(new WebSocketClientProtocolHandler(mConfig.proxyUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false,
+                        new DefaultHttpHeaders().set(WsFrameSize.HEADER, maxFrameSize), maxFrameSize))
                 .addLast(new SimpleUserEventChannelHandler<WebSocketClientProtocolHandler.ClientHandshakeStateEvent>() {
                     @Override
                     protected void eventReceived(ChannelHandlerContext ctx, WebSocketClientProtocolHandler.ClientHandshakeStateEvent evt) throws Exception {
                         sLogger.info("channel:{} event:{}", ctx.channel(), evt);
                         if (WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE.equals(evt)) {
+                            WebSocketClientProtocolHandler protocolHandler = ctx.pipeline().get(WebSocketClientProtocolHandler.class);
+                            WsProxyControlCodec.select(ctx.channel(), protocolHandler.handshaker().actualSubprotocol());
                             ctx.pipeline()
                                     .addLast(new WsProxyControlCodec())
-                                    .addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUid))
+                                    .addLast(new WsClientHandler(mContext.channel(), mDstAddress, mDstPort, mConfig.proxyUid)
+                                            .coalesce(mConfig.coalesceBytes, mConfig.coalesceDelayMicros)
+                                            .optimistic(mConfig.optimistic))
                                     .remove(this);
                             //sLogger.trace("channel:{} pipeline:{}", ctx.channel(), ctx.pipeline());
                             ctx.channel()
@@ -95,6 +95,10 @@ public class WsClientInitializer extends ChannelInitializer<SocketChannel> {
                                         @Override
                                         public void operationComplete(ChannelFuture future) throws Exception {
                                             sLogger.warn("Local connection lost {}", future.channel().remoteAddress());
+                                            WsProxyRawToWs relay = mContext.pipeline().get(WsProxyRawToWs.class);
+                                            if (relay != null) {
+                                                relay.flushCoalesced();
+                                            }
                                             if (ctx.channel().isActive()) {
                                                 ctx.writeAndFlush(Unpooled.EMPTY_BUFFER)
                                                         .addListener(ChannelFutureListener.CLOSE);
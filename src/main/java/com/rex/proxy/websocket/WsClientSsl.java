@@ -0,0 +1,162 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.common.TlsProvider;
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client SslContext shared by all the WebSocket connections to the same upstream
+ *
+ * The TLS session cache lives in the SslContext, a context built per connection never resumes and every
+ * connection pays a full handshake. Pooled, direct and multiplexed connections of an upstream share one context,
+ * reconnects resume by session ID or ticket, and the resumed handshakes are counted per upstream.
+ */
+public class WsClientSsl {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsClientSsl.class);
+
+    private static final long SESSION_CACHE_SIZE = 1024;
+    private static final long SESSION_TIMEOUT_SECONDS = 3600;
+
+    private static final Map<String, WsClientSsl> sInstances = new ConcurrentHashMap<>();
+
+    private final String mHost;
+    private final int mPort;
+    private final SslContext mContext;
+    private final AtomicLong mHandshakes = new AtomicLong();
+    private final AtomicLong mResumed = new AtomicLong();
+
+    /**
+     * @param uri Upstream server
+     * @param verify Verify server certificate, null not verify
+     * @param provider jdk | openssl, null use jdk
+     * @return Shared instance of the upstream, null if not wss or failed to init
+     */
+    public static WsClientSsl of(URI uri, Boolean verify, String provider) {
+        if (!"wss".equalsIgnoreCase(uri.getScheme())) {
+            return null;
+        }
+        return create(uri, Boolean.TRUE.equals(verify), provider);
+    }
+
+    private static WsClientSsl create(URI uri, boolean verify, String provider) {
+        final String host = uri.getHost();
+        final int port = (uri.getPort() != -1) ? uri.getPort() : 443;
+        String key = String.valueOf(host).toLowerCase() + ":" + port + (verify ? "" : " insecure") +
+                ((provider != null) ? " " + provider.toLowerCase() : "");
+        return sInstances.computeIfAbsent(key, k -> {
+            try {
+                SslContextBuilder builder = SslContextBuilder.forClient()
+                        .sslProvider(TlsProvider.select(provider))
+                        .sessionCacheSize(SESSION_CACHE_SIZE)
+                        .sessionTimeout(SESSION_TIMEOUT_SECONDS);
+                if (!verify) {
+                    builder.trustManager(InsecureTrustManagerFactory.INSTANCE);
+                }
+                sLogger.info("Create ssl context for {}", k);
+                return new WsClientSsl(host, port, builder.build());
+            } catch (SSLException ex) {
+                sLogger.warn("Failed to init ssl\n", ex);
+                return null; // Not cached, retry next connection
+            }
+        });
+    }
+
+    /**
+     * Handshakes of all the upstreams since started
+     */
+    public static List<SessionGauge> gauges() {
+        List<SessionGauge> gauges = new ArrayList<>(sInstances.size());
+        for (WsClientSsl ssl : sInstances.values()) {
+            gauges.add(ssl.gauge());
+        }
+        return gauges;
+    }
+
+    private WsClientSsl(String host, int port, SslContext context) {
+        mHost = host;
+        mPort = port;
+        mContext = context;
+    }
+
+    public SslContext context() {
+        return mContext;
+    }
+
+    /**
+     * New handler with SNI of the upstream, counts its handshake
+     */
+    public SslHandler newHandler(Channel ch) {
+        // TLS-SNI: https://www.cloudflare.com/learning/ssl/what-is-sni/
+        // Host and port also key the client session cache
+        final SslHandler handler = mContext.newHandler(ch.alloc(), mHost, mPort);
+        long now = System.currentTimeMillis();
+        // OpenSSL session time is in seconds
+        final long start = (mContext instanceof JdkSslContext) ? now : now / 1000 * 1000;
+        handler.handshakeFuture().addListener(new FutureListener<Channel>() {
+            @Override
+            public void operationComplete(Future<Channel> future) throws Exception {
+                if (future.isSuccess()) {
+                    // Resumed session keeps the creation time of its full handshake
+                    SSLSession session = handler.engine().getSession();
+                    boolean resumed = session.getCreationTime() < start;
+                    sLogger.debug("Handshake {} {}", future.getNow(), resumed ? "resumed" : "full");
+                    mHandshakes.incrementAndGet();
+                    if (resumed) {
+                        mResumed.incrementAndGet();
+                    }
+                }
+            }
+        });
+        return handler;
+    }
+
+    public SessionGauge gauge() {
+        return new SessionGauge(mHost + ":" + mPort, mHandshakes.get(), mResumed.get());
+    }
+
+    /**
+     * TLS handshakes of one upstream
+     */
+    public static final class SessionGauge {
+
+        public final String upstream;
+        public final long handshakes; // Completed handshakes, full or resumed
+        public final long resumed; // Handshakes resumed a cached session
+
+        SessionGauge(String upstream, long handshakes, long resumed) {
+            this.upstream = upstream;
+            this.handshakes = handshakes;
+            this.resumed = resumed;
+        }
+
+        /**
+         * Resumed in percentage of handshakes, 0 if none
+         */
+        public int hitRate() {
+            return (handshakes > 0) ? (int) (resumed * 100 / handshakes) : 0;
+        }
+
+        @Override
+        public String toString() {
+            return upstream + " handshakes:" + handshakes + " resumed:" + resumed + " hit:" + hitRate() + "%";
+        }
+    }
+}
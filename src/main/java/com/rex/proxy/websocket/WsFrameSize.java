@@ -0,0 +1,118 @@
+package com.rex.proxy.websocket;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Negotiate the max WebSocket frame payload during handshake
+ *
+ * Client sends its max in request header, server replies the smaller one of both sides in response header.
+ * Peer without the header (older version) always get 65536, the negotiated size is stored in channel attribute,
+ * WsProxyRawToWs will split data into frames not larger than it.
+ */
+public final class WsFrameSize {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(WsFrameSize.class);
+
+    public static final String HEADER = "X-Wsl-Frame-Size";
+    public static final int DEFAULT = 1 << 16; // 65536, the Netty default before negotiation supported
+    public static final int MAX = 1 << 24; // 16MB
+
+    private static final AttributeKey<Integer> ATTR_FRAME_SIZE = AttributeKey.valueOf("ws.frameSize");
+
+    private WsFrameSize() {
+    }
+
+    /**
+     * Max frame payload accepted by this side, never smaller than the legacy 65536
+     */
+    public static int limit(Integer config) {
+        if (config == null) {
+            return DEFAULT;
+        }
+        return Math.min(Math.max(config, DEFAULT), MAX);
+    }
+
+    /**
+     * Negotiate with the header value from peer, missing or invalid header fallback to 65536
+     */
+    public static int negotiate(String header, int local) {
+        if (header == null) {
+            return DEFAULT;
+        }
+        try {
+            return Math.min(limit(Integer.parseInt(header.trim())), local);
+        } catch (NumberFormatException ex) {
+            sLogger.warn("Invalid frame size header <{}>", header);
+            return DEFAULT;
+        }
+    }
+
+    /**
+     * Negotiated frame size of WebSocket channel
+     */
+    public static int of(Channel ch) {
+        Integer size = ch.attr(ATTR_FRAME_SIZE).get();
+        return (size != null) ? size : DEFAULT;
+    }
+
+    public static void set(Channel ch, int size) {
+        ch.attr(ATTR_FRAME_SIZE).set(size);
+    }
+
+    /**
+     * Client side, read the negotiated size from handshake response
+     * Must be added before WebSocketClientProtocolHandler
+     */
+    public static final class ClientHandler extends ChannelInboundHandlerAdapter {
+
+        private final int mLocal;
+
+        public ClientHandler(int local) {
+            mLocal = local;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof HttpResponse) {
+                HttpHeaders headers = ((HttpResponse) msg).headers();
+                int size = negotiate(headers.get(HEADER), mLocal);
+                sLogger.debug("channel {} frame size {}", ctx.channel(), size);
+                set(ctx.channel(), size);
+                ctx.pipeline().remove(this);
+            }
+            super.channelRead(ctx, msg);
+        }
+    }
+
+    /**
+     * Server side, reply the negotiated size in handshake response
+     * Must be added before WebSocketServerProtocolHandler
+     */
+    public static final class ServerHandler extends ChannelOutboundHandlerAdapter {
+
+        private final int mSize;
+
+        public ServerHandler(int size) {
+            mSize = size;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg instanceof HttpResponse && HttpResponseStatus.SWITCHING_PROTOCOLS.equals(((HttpResponse) msg).status())) {
+                ((HttpResponse) msg).headers().set(HEADER, mSize);
+                ctx.pipeline().remove(this);
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
+}
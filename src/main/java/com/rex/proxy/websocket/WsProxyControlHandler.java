@@ -1,14 +1,19 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.HappyEyeballs;
+import com.rex.proxy.common.Transport;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
 import com.rex.proxy.websocket.control.ControlMessage;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,6 +43,13 @@ public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMe
         mConfig = config;
     }
 
+    /**
+     * Whether the WebSocket passed the authorization, e.g. for multiplexed streams
+     */
+    public static boolean isAuthorized(Channel ch) {
+        return Boolean.TRUE.equals(ch.attr(ATTR_AUTHORIZED).get());
+    }
+
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, ControlMessage msg) throws Exception {
         // sLogger.trace("ctx={} msg={}", ctx, new Gson().toJson(msg));
@@ -81,64 +93,88 @@ public class WsProxyControlHandler extends SimpleChannelInboundHandler<ControlMe
 
             sLogger.debug("proxy to address=<{}> port={}", msg.address, msg.port);
 
-            // Support connection reuse: remove old handler if exists
-            // This allows the same WebSocket connection to be reused for different requests
-            if (ctx.pipeline().get(WsProxyWsToRaw.class) != null) {
+            // Support connection reuse: end the previous tunnel before this one starts
+            // The raw socket of previous tunnel is closed, its data never go into this tunnel
+            WsProxyWsToRaw previous = ctx.pipeline().get(WsProxyWsToRaw.class);
+            if (previous != null) {
                 sLogger.debug("Remove old WsProxyWsToRaw handler for connection reuse");
-                ctx.pipeline().remove(WsProxyWsToRaw.class);
+                ctx.pipeline().remove(previous);
+                previous.closeOutput();
             }
+            final WsProxyWsToRaw wsToRaw = new WsProxyWsToRaw();
 
-            new Bootstrap()
-                    .group(mWorkerGroup)
-                    .channel(NioSocketChannel.class)
+            // Same event loop with WebSocket by default, relayed frames never cross threads
+            EventLoopGroup group = mWorkerGroup;
+            EventLoop loop = ctx.channel().eventLoop();
+            if (!Boolean.FALSE.equals(mConfig.loopAffinity) && loop.parent() != null) { // Embedded loop of test has no group
+                group = loop;
+            }
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(group)
+                    .channel(Transport.of(group).socketChannel())
                     .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000) // Add connection timeout
                     .option(ChannelOption.SO_KEEPALIVE, true) // Enable TCP keepalive
-                    .handler(new ChannelInitializer<SocketChannel>() {
+                    .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
+            // Race the addresses of destination, handler added to the connected one only
+            Future<Channel> connectFuture = HappyEyeballs.connect(bootstrap, DnsResolver.of(ctx.channel()), msg.address, msg.port,
+                    new ChannelInitializer<SocketChannel>() {
                         @Override
                         protected void initChannel(SocketChannel ch) throws Exception {
-                            // XXX: ch.remoteAddress always null here
-                            // connect future will get valid remote address
                             sLogger.info("proxy {} - {}", ctx.channel().remoteAddress(), ch.remoteAddress());
                             //ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG)); // Print data in tunnel
-                            ch.pipeline().addLast(new WsProxyRawToWs(ctx.channel()));
-                            ctx.pipeline().addLast(new WsProxyWsToRaw(ch));
+                            ch.pipeline().addLast(new WsProxyRawToWs(ctx.channel(),
+                                    (mConfig.coalesceBytes != null) ? mConfig.coalesceBytes : 0,
+                                    (mConfig.coalesceDelayMicros != null) ? mConfig.coalesceDelayMicros : 0));
 
                             // Monitor remote socket closure to clean up handlers
                             ch.closeFuture().addListener(new ChannelFutureListener() {
                                 @Override
                                 public void operationComplete(ChannelFuture future) throws Exception {
                                     sLogger.debug("Remote socket closed {}, cleaning up handlers", future.channel());
-                                    // Remove the handler from WebSocket pipeline when remote closes
-                                    if (ctx.pipeline().get(WsProxyWsToRaw.class) != null) {
-                                        ctx.pipeline().remove(WsProxyWsToRaw.class);
+                                    // Tunnel replaced by the next one on the same WebSocket, drop the rest
+                                    if (ctx.pipeline().context(wsToRaw) == null) {
+                                        return;
+                                    }
+                                    WsProxyRawToWs relay = ch.pipeline().get(WsProxyRawToWs.class);
+                                    if (relay != null) {
+                                        relay.flushCoalesced();
                                     }
+                                    // Remove the handler from WebSocket pipeline when remote closes
+                                    ctx.pipeline().remove(wsToRaw);
                                 }
                             });
                         }
-                    })
-                    .connect(msg.address, msg.port)
-                    .addListener(new ChannelFutureListener() {
-                        @Override
-                        public void operationComplete(ChannelFuture future) throws Exception {
-                            // sLogger.trace("future={} channel={}", future, future.channel());
-                            sLogger.debug("proxy connect {} {}", future.channel().remoteAddress(), future.isSuccess() ? "success" : "failure");
-                            if (! ctx.channel().isActive()) {
-                                return;
-                            }
-
-                            if (future.isSuccess()) {
-                                ControlMessage msg = new ControlMessage();
-                                msg.type = "response";
-                                msg.action = "success";
-                                ctx.writeAndFlush(msg);
-                            } else {
-                                ControlMessage msg = new ControlMessage();
-                                msg.type = "response";
-                                msg.action = "failure";
-                                ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
-                            }
-                        }
                     });
+
+            // Add before return, optimistic client send early data right after the connect request
+            ctx.pipeline().addLast(wsToRaw);
+            connectFuture.addListener(new FutureListener<Channel>() {
+                @Override
+                public void operationComplete(Future<Channel> future) throws Exception {
+                    sLogger.debug("proxy connect {} {}", future.isSuccess() ? future.getNow().remoteAddress() : msg.address,
+                            future.isSuccess() ? "success" : "failure");
+                    // WebSocket closed, or taken by the next tunnel before connected
+                    if (! ctx.channel().isActive() || ctx.pipeline().context(wsToRaw) == null) {
+                        if (future.isSuccess()) {
+                            future.getNow().close();
+                        }
+                        return;
+                    }
+
+                    if (future.isSuccess()) {
+                        wsToRaw.connected(future.getNow());
+                        ControlMessage msg = new ControlMessage();
+                        msg.type = "response";
+                        msg.action = "success";
+                        ctx.writeAndFlush(msg);
+                    } else {
+                        ControlMessage msg = new ControlMessage();
+                        msg.type = "response";
+                        msg.action = "failure";
+                        ctx.writeAndFlush(msg).addListener(ChannelFutureListener.CLOSE);
+                    }
+                }
+            });
         } else if ("request".equalsIgnoreCase(msg.type) && "echo".equalsIgnoreCase(msg.action)) {
             msg.type = "response";
             ctx.writeAndFlush(msg);
@@ -1,40 +1,101 @@
 package com.rex.proxy.websocket;
 
+import com.rex.proxy.common.Backpressure;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.concurrent.ScheduledFuture;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Receive ByteBuf from raw socket channel, write to websocket as BinaryWebSocketFrame
+ * Large data split into frames not larger than the size negotiated in handshake, see WsFrameSize
+ * Frames written in a read loop will flush together when the read loop completed
+ *
+ * Optional coalescing, small reads accumulate until reach the byte threshold or the deadline,
+ * then write as one frame. Save frame header and TLS record overhead for interactive traffics.
  */
-@ChannelHandler.Sharable
 public class WsProxyRawToWs extends SimpleChannelInboundHandler<ByteBuf> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsProxyRawToWs.class);
-    private static final int FRAME_LIMIT = (1 << 16) - 1; // 65535
 
     private final Channel mOutput; // WebSocket channel
+    private final int mFrameLimit; // Negotiated max frame payload
+    private final int mCoalesceBytes; // 0 to disable coalescing
+    private final long mCoalesceDelayMicros; // 0 to emit when read loop completed
+    private boolean mPendingFlush;
+    private CompositeByteBuf mCoalesced;
+    private ScheduledFuture<?> mCoalesceTimer;
 
     public WsProxyRawToWs(Channel outbound) {
+        this(outbound, 0, 0);
+    }
+
+    public WsProxyRawToWs(Channel outbound, int coalesceBytes, long coalesceDelayMicros) {
         //sLogger.trace("<init>");
         mOutput = outbound;
+        mFrameLimit = WsFrameSize.of(outbound);
+        mCoalesceBytes = Math.min(Math.max(coalesceBytes, 0), mFrameLimit);
+        mCoalesceDelayMicros = Math.max(coalesceDelayMicros, 0);
     }
 
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, ByteBuf data) throws Exception {
         sLogger.trace("RawToWs read data:{}", data.readableBytes());
-        int start = 0;
-        do {
-            int length = Math.min(FRAME_LIMIT, data.readableBytes() - start);
-            sLogger.trace("RawToWs write {}-{}/{}", start, (start + length - 1), data.readableBytes());
-            mOutput.writeAndFlush(new BinaryWebSocketFrame(data.retainedSlice(start, length)));
-            start += length;
-        } while (start < data.readableBytes());
+        if (!mOutput.isActive()) {
+            return;
+        }
+        if (mCoalesceBytes > 0 && (mCoalesced != null || data.readableBytes() < mCoalesceBytes)) {
+            if (mCoalesced == null) {
+                mCoalesced = ctx.alloc().compositeBuffer();
+            }
+            mCoalesced.addComponent(true, data.retain());
+            if (mCoalesced.readableBytes() >= mCoalesceBytes) {
+                emitCoalesced();
+            }
+        } else {
+            writeFrames(data);
+        }
+        Backpressure.throttle(ctx.channel(), mOutput);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (mCoalesced != null) {
+            if (mCoalesceDelayMicros == 0) {
+                emitCoalesced();
+            } else if (mCoalesceTimer == null) {
+                mCoalesceTimer = ctx.executor().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCoalesceTimer = null;
+                        flushCoalesced();
+                    }
+                }, mCoalesceDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        flushIfNeeded();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // Raw socket drained, resume reading from websocket
+        Backpressure.resume(ctx.channel(), mOutput);
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushCoalesced();
+        Backpressure.release(ctx.channel());
+        super.handlerRemoved(ctx);
     }
 
     @Override // SimpleChannelInboundHandler
@@ -52,4 +113,66 @@ public class WsProxyRawToWs extends SimpleChannelInboundHandler<ByteBuf> {
             mOutput.pipeline().remove(WsProxyWsToRaw.class);
         }
     }
+
+    /**
+     * Write out all the coalesced data immediately
+     * Must call in raw socket event loop before the tunnel detached, e.g. raw socket closed
+     */
+    public void flushCoalesced() {
+        if (mCoalesced != null) {
+            if (mOutput.isActive()) {
+                emitCoalesced();
+            } else {
+                cancelCoalesce();
+            }
+        }
+        flushIfNeeded();
+    }
+
+    private void emitCoalesced() {
+        ByteBuf data = mCoalesced;
+        mCoalesced = null;
+        cancelTimer();
+        if (data != null) {
+            sLogger.trace("RawToWs coalesced data:{}", data.readableBytes());
+            try {
+                writeFrames(data);
+            } finally {
+                data.release();
+            }
+        }
+    }
+
+    private void cancelCoalesce() {
+        cancelTimer();
+        if (mCoalesced != null) {
+            mCoalesced.release();
+            mCoalesced = null;
+        }
+    }
+
+    private void cancelTimer() {
+        if (mCoalesceTimer != null) {
+            mCoalesceTimer.cancel(false);
+            mCoalesceTimer = null;
+        }
+    }
+
+    private void writeFrames(ByteBuf data) {
+        int start = 0;
+        do {
+            int length = Math.min(mFrameLimit, data.readableBytes() - start);
+            sLogger.trace("RawToWs write {}-{}/{}", start, (start + length - 1), data.readableBytes());
+            mOutput.write(new BinaryWebSocketFrame(data.retainedSlice(data.readerIndex() + start, length)), mOutput.voidPromise());
+            start += length;
+        } while (start < data.readableBytes());
+        mPendingFlush = true;
+    }
+
+    private void flushIfNeeded() {
+        if (mPendingFlush) {
+            mPendingFlush = false;
+            mOutput.flush();
+        }
+    }
 }
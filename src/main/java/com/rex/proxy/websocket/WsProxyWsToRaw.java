@@ -1,5 +1,7 @@
 package com.rex.proxy.websocket;
 
+import com.rex.proxy.common.Backpressure;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
@@ -9,33 +11,160 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Receive BinaryWebSocketFrame from websocket channel, write to raw socket channel as ByteBuf
+ * Data written in a read loop will flush together when the read loop completed
+ *
+ * Frames received before the raw socket connected are held as early data, written out by connected(),
+ * WebSocket stop reading if the early data exceed write buffer high water mark.
+ * The raw socket may be unknown until connected, e.g. racing connects to several addresses.
  */
-@ChannelHandler.Sharable
 public class WsProxyWsToRaw extends SimpleChannelInboundHandler<BinaryWebSocketFrame> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsProxyWsToRaw.class);
 
-    private final Channel mOutput; // Raw socket channel
+    private Channel mOutput; // Raw socket channel, null until connected if unknown
+    private boolean mPendingFlush;
+    private ChannelHandlerContext mContext;
+    private CompositeByteBuf mEarly;
 
     public WsProxyWsToRaw(Channel channel) {
         //sLogger.trace("<init>");
         mOutput = channel;
     }
 
+    /**
+     * Raw socket set by connected(Channel)
+     */
+    public WsProxyWsToRaw() {
+        this(null);
+    }
+
     @Override // SimpleChannelInboundHandler
     protected void channelRead0(ChannelHandlerContext ctx, BinaryWebSocketFrame msg) throws Exception {
         sLogger.trace("WsToRaw forward msg:{}", msg.content().readableBytes());
+        if (mEarly != null || mOutput == null || (mOutput.isOpen() && !mOutput.isActive())) {
+            // Keep order, early data must write out before later frames
+            if (mEarly == null) {
+                mEarly = ctx.alloc().compositeBuffer();
+            }
+            mEarly.addComponent(true, msg.content().retain());
+            Channel sink = (mOutput != null) ? mOutput : ctx.channel();
+            if (mEarly.readableBytes() > sink.config().getWriteBufferHighWaterMark()) {
+                ctx.channel().config().setAutoRead(false);
+            }
+            return;
+        }
+        if (!mOutput.isActive()) {
+            return;
+        }
         ReferenceCountUtil.retain(msg);
-        mOutput.writeAndFlush(msg.content());
+        mOutput.write(msg.content(), mOutput.voidPromise());
+        mPendingFlush = true;
+        Backpressure.throttle(ctx.channel(), mOutput);
+    }
+
+    /**
+     * Raw socket connected, set it and write out the early data, safe to call from any thread
+     */
+    public void connected(final Channel channel) {
+        if (!mContext.executor().inEventLoop()) {
+            mContext.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connected(channel);
+                }
+            });
+            return;
+        }
+        mOutput = channel;
+        connected();
+    }
+
+    /**
+     * Raw socket connected, write out the early data, safe to call from any thread
+     */
+    public void connected() {
+        if (!mContext.executor().inEventLoop()) {
+            mContext.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connected();
+                }
+            });
+            return;
+        }
+        if (mEarly == null) {
+            return;
+        }
+        sLogger.trace("WsToRaw write early data {}", mEarly.readableBytes());
+        CompositeByteBuf early = mEarly;
+        mEarly = null;
+        if (mOutput.isActive()) {
+            mOutput.writeAndFlush(early, mOutput.voidPromise());
+            Backpressure.throttle(mContext.channel(), mOutput);
+        } else {
+            early.release();
+        }
+        // Resume if early data paused the WebSocket
+        Backpressure.resume(mOutput, mContext.channel());
+    }
+
+    /**
+     * Close the raw socket, e.g. the WebSocket is taken by the next tunnel, safe to call from any thread
+     */
+    public void closeOutput() {
+        Channel output = mOutput;
+        if (output != null) {
+            output.close();
+        }
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mContext = ctx;
+        super.handlerAdded(ctx);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // WebSocket drained, resume reading from raw socket
+        if (mOutput != null) {
+            Backpressure.resume(ctx.channel(), mOutput);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override // SimpleChannelInboundHandler
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        // WebSocket may reuse for next tunnel, never leave it stop reading
+        flushIfNeeded();
+        if (mEarly != null) {
+            mEarly.release();
+            mEarly = null;
+        }
+        Backpressure.release(ctx.channel());
+        super.handlerRemoved(ctx);
     }
 
     @Override // SimpleChannelInboundHandler
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
         //sLogger.warn("WsToRaw caught exception\n", cause);
         sLogger.warn("{}", cause.toString());
-        if (mOutput.isActive()) {
+        if (mOutput != null && mOutput.isActive()) {
             mOutput.writeAndFlush(Unpooled.EMPTY_BUFFER)
                     .addListener(ChannelFutureListener.CLOSE);
         }
     }
+
+    private void flushIfNeeded() {
+        if (mPendingFlush) {
+            mPendingFlush = false;
+            mOutput.flush();
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
+import com.rex.proxy.common.TlsHandshakes;
+import com.rex.proxy.common.TlsRecordSizer;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.EventLoopGroup;
@@ -8,6 +10,7 @@ import io.netty.channel.socket.SocketChannel;
 import io.netty.handler.codec.http.HttpObjectAggregator;
 import io.netty.handler.codec.http.HttpServerCodec;
 import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
 import org.slf4j.Logger;
@@ -20,23 +23,48 @@ public class WsServerInitializer extends ChannelInitializer<SocketChannel> {
 
     private static final Logger sLogger = LoggerFactory.getLogger(WsServerInitializer.class);
 
-    private final SslContext mSslContext;
+    private volatile SslContext mSslContext; // Swapped by reload, used by new connections
     private final EventLoopGroup mWorkerGroup;
     private final WslServer.Configuration mConfig;
+    private final TlsHandshakes mHandshakes;
 
     public WsServerInitializer(EventLoopGroup group, WslServer.Configuration config , SslContext sslContext) {
+        this(group, config, sslContext, null);
+    }
+
+    /**
+     * @param handshakes Run TLS handshakes off the event loops, null run in event loop
+     */
+    public WsServerInitializer(EventLoopGroup group, WslServer.Configuration config , SslContext sslContext, TlsHandshakes handshakes) {
         sLogger.trace("<init>");
         mWorkerGroup = group;
         mConfig = config;
         mSslContext = sslContext;
+        mHandshakes = handshakes;
+    }
+
+    /**
+     * Replace the SslContext of new connections
+     */
+    public void sslContext(SslContext sslContext) {
+        sLogger.trace("sslContext");
+        mSslContext = sslContext;
     }
 
     @Override // ChannelInitializer
     protected void initChannel(SocketChannel ch) throws Exception {
         sLogger.trace("initChannel");
-        if (mSslContext != null) {
+        SslContext sslContext = mSslContext;
+        if (sslContext != null) {
             sLogger.debug("Init SSL");
-            ch.pipeline().addLast(mSslContext.newHandler(ch.alloc()));
+            if (mHandshakes != null) {
+                mHandshakes.addLast(ch, sslContext);
+            } else {
+                ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+            }
+            if (!Boolean.FALSE.equals(mConfig.sslDynamicRecord)) {
+                ch.pipeline().addLast(new TlsRecordSizer(ch.pipeline().get(SslHandler.class)));
+            }
         }
 
         // Add idle timeout handler (15 minutes) to close inactive WebSocket connections
@@ -2,6 +2,8 @@ package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslServer;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import com.rex.proxy.websocket.mux.MuxClientInitializer;
+import com.rex.proxy.websocket.mux.MuxSession;
 import io.netty.channel.*;
 import io.netty.handler.codec.http.DefaultFullHttpResponse;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -20,6 +22,7 @@ public class WsServerPathInterceptor extends SimpleChannelInboundHandler<FullHtt
     private static final Logger sLogger = LoggerFactory.getLogger(WsServerPathInterceptor.class);
 
     private static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy2";
+    private static final String WS_SUBPROTOCOL_MUX = MuxClientInitializer.WS_SUBPROTOCOL;
 
     private final EventLoopGroup mWorkerGroup;
     private final WslServer.Configuration mConfig;
@@ -36,17 +39,29 @@ public class WsServerPathInterceptor extends SimpleChannelInboundHandler<FullHtt
         if (mConfig.proxyPath == null || request.uri().startsWith(mConfig.proxyPath)) {
             sLogger.debug("channel {} handshaker websocket", ctx.channel().remoteAddress());
 
+            // Older client not send the header, will keep 65536
+            int maxFrameSize = WsFrameSize.limit(mConfig.maxFrameSize);
+            int frameSize = WsFrameSize.negotiate(request.headers().get(WsFrameSize.HEADER), maxFrameSize);
+            WsFrameSize.set(ctx.channel(), frameSize);
+            sLogger.debug("channel {} frame size {}", ctx.channel().remoteAddress(), frameSize);
+
             ctx.pipeline()
-                    .addLast(new WebSocketServerProtocolHandler(request.uri(), WS_SUBPROTOCOL, true))
+                    .addLast(new WsFrameSize.ServerHandler(frameSize))
+                    .addLast(new WebSocketServerProtocolHandler(request.uri(), WsProxyControlCodec.SUBPROTOCOL_BINARY + "," + WS_SUBPROTOCOL + "," + WS_SUBPROTOCOL_MUX, true, maxFrameSize))
                     .addLast(new SimpleUserEventChannelHandler<WebSocketServerProtocolHandler.HandshakeComplete>() {
                         @Override
                         protected void eventReceived(ChannelHandlerContext ctx, WebSocketServerProtocolHandler.HandshakeComplete evt) throws Exception {
                             sLogger.info("channel {} handshake <{}> complete", ctx.channel().remoteAddress(), evt.selectedSubprotocol());
+                            WsProxyControlCodec.select(ctx.channel(), evt.selectedSubprotocol());
                             ctx.pipeline()
                                     .addLast(new WsProxyControlCodec())
                                     .addLast(new WsProxyControlHandler(mWorkerGroup, mConfig))
                                     .remove(WsServerPathInterceptor.this)
                                     .remove(this);
+                            if (WS_SUBPROTOCOL_MUX.equals(evt.selectedSubprotocol())) {
+                                // Control handler authorize the connection, streams handled by session
+                                ctx.pipeline().addLast(new MuxSession(mConfig));
+                            }
                             sLogger.trace("pipeline:{}", ctx.pipeline());
                         }
                     });
@@ -0,0 +1,188 @@
+package com.rex.proxy.websocket.control;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary encoding of ControlMessage, used by subprotocol proxy2b
+ *
+ * +--------+--------+-------+------------------+--------------------+---------+
+ * | opcode | action | flags | token (optional) | address (optional) | port    |
+ * |   1    |   1    |   1   | u16 len + bytes  | u8 len + bytes     | u16 opt |
+ * +--------+--------+-------+------------------+--------------------+---------+
+ *
+ * Opcode DATA means the rest of the frame is tunnel data, control messages never use it.
+ * Decoded type and action are the constant strings, handlers comparing them will hit the identity fast path.
+ */
+public final class ControlBinaryFormat {
+
+    public enum Opcode {
+        DATA(null),
+        HELLO("hello"),
+        AUTHORIZATION("authorization"),
+        AUTHORIZED("authorized"),
+        REQUEST("request"),
+        RESPONSE("response");
+
+        final String mName;
+
+        Opcode(String name) {
+            mName = name;
+        }
+
+        static Opcode of(String name) {
+            for (Opcode op : values()) {
+                if (op.mName != null && op.mName.equalsIgnoreCase(name)) {
+                    return op;
+                }
+            }
+            return null;
+        }
+    }
+
+    public enum Action {
+        NONE(null),
+        CONNECT("connect"),
+        ECHO("echo"),
+        SUCCESS("success"),
+        FAILURE("failure"),
+        REJECT("reject"),
+        HS256("hs256");
+
+        final String mName;
+
+        Action(String name) {
+            mName = name;
+        }
+
+        static Action of(String name) {
+            if (name == null) {
+                return NONE;
+            }
+            for (Action action : values()) {
+                if (action.mName != null && action.mName.equalsIgnoreCase(name)) {
+                    return action;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final int FLAG_TOKEN = 0x01;
+    private static final int FLAG_ADDRESS = 0x02;
+    private static final int FLAG_PORT = 0x04;
+
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final Action[] ACTIONS = Action.values();
+
+    private ControlBinaryFormat() {
+    }
+
+    public static ByteBuf encode(ByteBufAllocator alloc, ControlMessage msg) {
+        Opcode opcode = Opcode.of(msg.type);
+        Action action = Action.of(msg.action);
+        if (opcode == null || action == null) {
+            throw new EncoderException("Not supported message type:" + msg.type + " action:" + msg.action);
+        }
+        byte[] token = (msg.token != null) ? msg.token.getBytes(StandardCharsets.US_ASCII) : null;
+        byte[] address = (msg.address != null) ? msg.address.getBytes(StandardCharsets.UTF_8) : null;
+        if ((token != null && token.length > 0xFFFF) || (address != null && address.length > 0xFF)) {
+            throw new EncoderException("Message field too long");
+        }
+
+        int flags = 0;
+        int length = 3;
+        if (token != null) {
+            flags |= FLAG_TOKEN;
+            length += 2 + token.length;
+        }
+        if (address != null) {
+            flags |= FLAG_ADDRESS;
+            length += 1 + address.length;
+        }
+        if (msg.port != null) {
+            flags |= FLAG_PORT;
+            length += 2;
+        }
+
+        ByteBuf buf = alloc.buffer(length);
+        buf.writeByte(opcode.ordinal());
+        buf.writeByte(action.ordinal());
+        buf.writeByte(flags);
+        if (token != null) {
+            buf.writeShort(token.length);
+            buf.writeBytes(token);
+        }
+        if (address != null) {
+            buf.writeByte(address.length);
+            buf.writeBytes(address);
+        }
+        if (msg.port != null) {
+            buf.writeShort(msg.port);
+        }
+        return buf;
+    }
+
+    /**
+     * Opcode of the frame, DATA frame should not pass to decode
+     */
+    public static Opcode opcode(ByteBuf buf) {
+        if (!buf.isReadable()) {
+            throw new CorruptedFrameException("Empty control message");
+        }
+        int op = buf.getUnsignedByte(buf.readerIndex());
+        if (op >= OPCODES.length) {
+            throw new CorruptedFrameException("Unknown opcode " + op);
+        }
+        return OPCODES[op];
+    }
+
+    public static ControlMessage decode(ByteBuf buf) {
+        if (buf.readableBytes() < 3) {
+            throw new CorruptedFrameException("Control message too short " + buf.readableBytes());
+        }
+        Opcode opcode = opcode(buf);
+        int act = buf.getUnsignedByte(buf.readerIndex() + 1);
+        if (act >= ACTIONS.length) {
+            throw new CorruptedFrameException("Unknown action " + act);
+        }
+        int flags = buf.getUnsignedByte(buf.readerIndex() + 2);
+
+        ControlMessage msg = new ControlMessage();
+        msg.type = opcode.mName;
+        msg.action = ACTIONS[act].mName;
+
+        int idx = buf.readerIndex() + 3;
+        if ((flags & FLAG_TOKEN) != 0) {
+            ensure(buf, idx, 2, "token");
+            int len = buf.getUnsignedShort(idx);
+            ensure(buf, idx + 2, len, "token");
+            msg.token = buf.toString(idx + 2, len, StandardCharsets.US_ASCII);
+            idx += 2 + len;
+        }
+        if ((flags & FLAG_ADDRESS) != 0) {
+            ensure(buf, idx, 1, "address");
+            int len = buf.getUnsignedByte(idx);
+            ensure(buf, idx + 1, len, "address");
+            msg.address = buf.toString(idx + 1, len, StandardCharsets.UTF_8);
+            idx += 1 + len;
+        }
+        if ((flags & FLAG_PORT) != 0) {
+            ensure(buf, idx, 2, "port");
+            msg.port = buf.getUnsignedShort(idx);
+        }
+        return msg;
+    }
+
+    // Field of length bytes at index must be inside the frame
+    private static void ensure(ByteBuf buf, int index, int length, String field) {
+        if (buf.writerIndex() - index < length) {
+            throw new CorruptedFrameException("Truncated " + field + " need " + length + " bytes at " +
+                    (index - buf.readerIndex()) + " of " + buf.readableBytes());
+        }
+    }
+}
@@ -41,6 +41,10 @@ package com.rex.proxy.websocket.control;
  *
  * If token auth failed, server will send reject response, and force shutdown the socket after 3 seconds
  * S -> C {'type':'response', 'action':'reject'}
+ *
+ * 4. Binary encoding
+ * If both sides support subprotocol proxy2b, the same messages are encoded as BinaryWebSocketFrame by ControlBinaryFormat,
+ * and tunnel data frames are prefixed with the DATA opcode. Older peers keep the JSON TextWebSocketFrame.
  */
 public class ControlMessage {
     public String type;
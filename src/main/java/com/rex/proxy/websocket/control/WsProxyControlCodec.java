@@ -1,27 +1,94 @@
 package com.rex.proxy.websocket.control;
 
 import com.google.gson.Gson;
+import com.rex.proxy.websocket.WsFrameSize;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToMessageCodec;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketFrame;
+import io.netty.util.AttributeKey;
 
 import java.util.List;
 
 /**
  * Codec to convert inbound TextWebSocketFrame as ControlMessage
  * And convert outbound ControlMessage as TextWebSocketFrame
+ *
+ * If subprotocol proxy2b negotiated, ControlMessage encoded as BinaryWebSocketFrame by ControlBinaryFormat,
+ * tunnel data frames are prefixed with opcode DATA to distinguish from control messages.
  */
-public class WsProxyControlCodec extends MessageToMessageCodec<TextWebSocketFrame, ControlMessage> {
+public class WsProxyControlCodec extends MessageToMessageCodec<WebSocketFrame, Object> {
 
-    private final Gson mCodec = new Gson();
+    public static final String SUBPROTOCOL_BINARY = "com.rex.websocket.protocol.proxy2b";
+
+    private static final Gson sCodec = new Gson(); // Thread safe, share by all pipelines
+    private static final AttributeKey<Boolean> ATTR_BINARY = AttributeKey.valueOf("ws.binaryControl");
+    private static final ByteBuf DATA_HEADER = Unpooled.unreleasableBuffer(
+            Unpooled.directBuffer(1).writeByte(ControlBinaryFormat.Opcode.DATA.ordinal()));
+
+    private Channel mChannel;
+
+    /**
+     * Select the control encoding of WebSocket by negotiated subprotocol
+     * Must call when handshake completed, before any control message
+     */
+    public static void select(Channel ch, String subprotocol) {
+        boolean binary = SUBPROTOCOL_BINARY.equals(subprotocol);
+        ch.attr(ATTR_BINARY).set(binary);
+        if (binary) {
+            // Leave room for the DATA opcode, frames never exceed the negotiated size
+            WsFrameSize.set(ch, WsFrameSize.of(ch) - 1);
+        }
+    }
+
+    public static boolean isBinary(Channel ch) {
+        return Boolean.TRUE.equals(ch.attr(ATTR_BINARY).get());
+    }
+
+    @Override // MessageToMessageCodec
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        // Codec may be added before handshake completed, check the encoding for each message
+        mChannel = ctx.channel();
+        super.handlerAdded(ctx);
+    }
+
+    @Override // MessageToMessageCodec
+    public boolean acceptInboundMessage(Object msg) throws Exception {
+        return (msg instanceof TextWebSocketFrame) || (msg instanceof BinaryWebSocketFrame && isBinary(mChannel));
+    }
+
+    @Override // MessageToMessageCodec
+    public boolean acceptOutboundMessage(Object msg) throws Exception {
+        return (msg instanceof ControlMessage) || (msg instanceof BinaryWebSocketFrame && isBinary(mChannel));
+    }
 
     @Override
-    protected void encode(ChannelHandlerContext ctx, ControlMessage msg, List<Object> out) throws Exception {
-        out.add(new TextWebSocketFrame(mCodec.toJson(msg)));
+    protected void encode(ChannelHandlerContext ctx, Object msg, List<Object> out) throws Exception {
+        if (msg instanceof BinaryWebSocketFrame) {
+            ByteBuf data = ((BinaryWebSocketFrame) msg).content();
+            out.add(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(DATA_HEADER.duplicate(), data.retain())));
+        } else if (isBinary(ctx.channel())) {
+            out.add(new BinaryWebSocketFrame(ControlBinaryFormat.encode(ctx.alloc(), (ControlMessage) msg)));
+        } else {
+            out.add(new TextWebSocketFrame(sCodec.toJson(msg)));
+        }
     }
 
     @Override
-    protected void decode(ChannelHandlerContext ctx, TextWebSocketFrame msg, List<Object> out) throws Exception {
-        out.add(mCodec.fromJson(msg.text(), ControlMessage.class));
+    protected void decode(ChannelHandlerContext ctx, WebSocketFrame msg, List<Object> out) throws Exception {
+        if (msg instanceof TextWebSocketFrame) {
+            out.add(sCodec.fromJson(((TextWebSocketFrame) msg).text(), ControlMessage.class));
+            return;
+        }
+        ByteBuf content = msg.content();
+        if (ControlBinaryFormat.opcode(content) == ControlBinaryFormat.Opcode.DATA) {
+            out.add(new BinaryWebSocketFrame(content.retainedSlice(content.readerIndex() + 1, content.readableBytes() - 1)));
+        } else {
+            out.add(ControlBinaryFormat.decode(content));
+        }
     }
 }
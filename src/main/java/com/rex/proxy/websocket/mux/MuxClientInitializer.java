@@ -0,0 +1,72 @@
+package com.rex.proxy.websocket.mux;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.TlsRecordSizer;
+import com.rex.proxy.websocket.WsClientSsl;
+import com.rex.proxy.websocket.WsFrameSize;
+import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.SimpleUserEventChannelHandler;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.handler.codec.http.DefaultHttpHeaders;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.websocketx.WebSocketClientProtocolHandler;
+import io.netty.handler.codec.http.websocketx.WebSocketVersion;
+import io.netty.handler.ssl.SslHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initialize the multiplexed WebSocket client channel
+ * Session is added at the end of pipeline to observe handshake failures, control codec inserted before it when handshake completed
+ */
+public class MuxClientInitializer extends ChannelInitializer<SocketChannel> {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(MuxClientInitializer.class);
+
+    public static final String WS_SUBPROTOCOL = "com.rex.websocket.protocol.proxy3";
+
+    private final WslLocal.Configuration mConfig;
+    private final MuxSession mSession;
+    private final WsClientSsl mSsl;
+
+    public MuxClientInitializer(WslLocal.Configuration config, MuxSession session) {
+        sLogger.trace("<init>");
+        mConfig = config;
+        mSession = session;
+
+        // Shared by the connections to the same upstream, reconnects resume the TLS session
+        mSsl = WsClientSsl.of(mConfig.proxyUri, mConfig.proxyCertVerify, mConfig.sslProvider);
+    }
+
+    @Override // ChannelInitializer
+    protected void initChannel(SocketChannel ch) throws Exception {
+        sLogger.trace("ch:{}", ch);
+        if (mSsl != null) {
+            SslHandler sslHandler = mSsl.newHandler(ch);
+            ch.pipeline().addLast(sslHandler);
+            if (!Boolean.FALSE.equals(mConfig.sslDynamicRecord)) {
+                ch.pipeline().addLast(new TlsRecordSizer(sslHandler));
+            }
+        }
+        int maxFrameSize = WsFrameSize.limit(mConfig.maxFrameSize);
+        ch.pipeline()
+                .addLast(new HttpClientCodec())
+                .addLast(new HttpObjectAggregator(1 << 16)) // 65536
+                .addLast(new WsFrameSize.ClientHandler(maxFrameSize))
+                .addLast(new WebSocketClientProtocolHandler(mConfig.proxyUri, WebSocketVersion.V13, WS_SUBPROTOCOL, false,
+                        new DefaultHttpHeaders().set(WsFrameSize.HEADER, maxFrameSize), maxFrameSize))
+                .addLast(new SimpleUserEventChannelHandler<WebSocketClientProtocolHandler.ClientHandshakeStateEvent>() {
+                    @Override
+                    protected void eventReceived(ChannelHandlerContext ctx, WebSocketClientProtocolHandler.ClientHandshakeStateEvent evt) throws Exception {
+                        sLogger.info("channel:{} event:{}", ctx.channel(), evt);
+                        if (WebSocketClientProtocolHandler.ClientHandshakeStateEvent.HANDSHAKE_COMPLETE.equals(evt)) {
+                            ctx.pipeline().replace(this, null, new WsProxyControlCodec());
+                        }
+                    }
+                })
+                .addLast(mSession);
+    }
+}
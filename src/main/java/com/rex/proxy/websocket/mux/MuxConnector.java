@@ -0,0 +1,227 @@
+package com.rex.proxy.websocket.mux;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.Transport;
+import com.rex.proxy.websocket.PooledWebSocketConnector;
+import com.rex.proxy.websocket.WebSocketChannelPoolManager;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.SimpleUserEventChannelHandler;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakeException;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Open tunnels as streams of multiplexed WebSocket sessions
+ *
+ * Each event loop keeps one session per server, local sockets share the session of their own event loop,
+ * so the streams never cross threads.
+ * Server answered the handshake without proxy3 will fallback to PooledWebSocketConnector for a while.
+ * Each WebSocketChannelPoolManager owns a connector, sessions are closed when the manager shutdown.
+ */
+public class MuxConnector {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(MuxConnector.class);
+
+    private static final long UNSUPPORTED_EXPIRE_MILLIS = 600000; // Retry proxy3 after the server upgraded
+
+    private final Map<SessionKey, Future<MuxSession>> mSessions = new ConcurrentHashMap<>();
+    private final Map<URI, Long> mUnsupported = new ConcurrentHashMap<>(); // Server to expire time in nanos
+
+    /**
+     * Connect to target address through a multiplexed WebSocket session of the WslLocal accepted the local socket.
+     *
+     * @param dstAddr Destination address
+     * @param dstPort Destination port
+     * @param localCtx Local socket context (SOCKS or HTTP)
+     * @param config WslLocal configuration
+     * @param stateHandler Handler to receive remote state events, will be added to local socket pipeline
+     */
+    public static void connect(
+            String dstAddr,
+            int dstPort,
+            ChannelHandlerContext localCtx,
+            WslLocal.Configuration config,
+            SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> stateHandler) {
+        WebSocketChannelPoolManager.of(localCtx.channel()).muxConnector().open(dstAddr, dstPort, localCtx, config, stateHandler);
+    }
+
+    private void open(
+            String dstAddr,
+            int dstPort,
+            ChannelHandlerContext localCtx,
+            WslLocal.Configuration config,
+            SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent> stateHandler) {
+
+        if (isUnsupported(config.proxyUri)) {
+            PooledWebSocketConnector.connect(dstAddr, dstPort, localCtx, config, stateHandler);
+            return;
+        }
+
+        sLogger.debug("Connect to {}:{} using multiplexed WebSocket", dstAddr, dstPort);
+        session(localCtx.channel().eventLoop(), DnsResolver.of(localCtx.channel()), config).addListener(new GenericFutureListener<Future<MuxSession>>() {
+            @Override
+            public void operationComplete(Future<MuxSession> future) throws Exception {
+                if (!future.isSuccess() && lacksSubprotocol(future.cause())) {
+                    sLogger.warn("Server not support multiplexing, fallback to pooled WebSocket - {}", future.cause().getMessage());
+                    mUnsupported.put(config.proxyUri, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(UNSUPPORTED_EXPIRE_MILLIS));
+                    PooledWebSocketConnector.connect(dstAddr, dstPort, localCtx, config, stateHandler);
+                    return;
+                }
+
+                // Stream fires the state from the pipeline head, handlers like the idle one may not pass it on
+                localCtx.pipeline().addFirst(stateHandler);
+                if (!future.isSuccess()) {
+                    sLogger.warn("Failed to open multiplexed WebSocket: {}", future.cause().toString());
+                    localCtx.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+                    return;
+                }
+                if (!localCtx.channel().isActive()) {
+                    sLogger.debug("Local socket closed before stream open");
+                    return;
+                }
+                future.getNow().open(dstAddr, dstPort, localCtx.channel(), Boolean.TRUE.equals(config.optimistic));
+            }
+        });
+    }
+
+    /**
+     * Close all the sessions, streams inside are closed with them
+     */
+    public void shutdown() {
+        sLogger.debug("Closing {} multiplexed WebSocket sessions", mSessions.size());
+        for (Future<MuxSession> future : mSessions.values()) {
+            future.addListener(new GenericFutureListener<Future<MuxSession>>() {
+                @Override
+                public void operationComplete(Future<MuxSession> f) throws Exception {
+                    if (f.isSuccess()) {
+                        f.getNow().channel().close();
+                    }
+                }
+            });
+        }
+        mSessions.clear();
+        mUnsupported.clear();
+    }
+
+    private boolean isUnsupported(URI uri) {
+        Long expire = mUnsupported.get(uri);
+        if (expire == null) {
+            return false;
+        }
+        if (expire - System.nanoTime() > 0) {
+            return true;
+        }
+        mUnsupported.remove(uri, expire);
+        return false;
+    }
+
+    /**
+     * Server upgraded the connection but selected no proxy3, e.g. an older version
+     * Other handshake failures like a proxy or server error response are not about multiplexing
+     */
+    static boolean lacksSubprotocol(Throwable cause) {
+        if (!(cause instanceof WebSocketClientHandshakeException)) {
+            return false;
+        }
+        HttpResponse response = ((WebSocketClientHandshakeException) cause).response();
+        return response != null
+                && HttpResponseStatus.SWITCHING_PROTOCOLS.equals(response.status())
+                && !response.headers().containsValue(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, MuxClientInitializer.WS_SUBPROTOCOL, true);
+    }
+
+    // Must call in the event loop
+    private Future<MuxSession> session(EventLoop loop, AddressResolverGroup<InetSocketAddress> resolver, WslLocal.Configuration config) {
+        final SessionKey key = new SessionKey(loop, config.proxyUri);
+        Future<MuxSession> current = mSessions.get(key);
+        if (current != null && (!current.isDone() || (current.isSuccess() && current.getNow().isActive()))) {
+            return current;
+        }
+
+        sLogger.info("Create multiplexed WebSocket session for {}", loop);
+        final Promise<MuxSession> promise = loop.newPromise();
+        mSessions.put(key, promise);
+
+        String wsHost = config.proxyUri.getHost();
+        int wsPort = config.proxyUri.getPort();
+        if (wsPort == -1) {
+            if ("wss".equalsIgnoreCase(config.proxyUri.getScheme())) {
+                wsPort = 443;
+            } else {
+                wsPort = 80;
+            }
+        }
+
+        new Bootstrap()
+                .group(loop)
+                .channel(Transport.of(loop).socketChannel())
+                .resolver(resolver)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(config.writeBufferLowWaterMark, config.writeBufferHighWaterMark))
+                .handler(new MuxClientInitializer(config, new MuxSession(config.proxyUid, promise)))
+                .connect(InetSocketAddress.createUnresolved(wsHost, wsPort))
+                .addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            promise.tryFailure(future.cause());
+                            return;
+                        }
+                        future.channel().closeFuture().addListener(new ChannelFutureListener() {
+                            @Override
+                            public void operationComplete(ChannelFuture f) throws Exception {
+                                sLogger.debug("Multiplexed WebSocket closed {}", f.channel());
+                                mSessions.remove(key, promise);
+                            }
+                        });
+                    }
+                });
+        return promise;
+    }
+
+    private static final class SessionKey {
+
+        private final EventLoop mLoop;
+        private final URI mUri;
+
+        SessionKey(EventLoop loop, URI uri) {
+            mLoop = loop;
+            mUri = uri;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) obj;
+            return mLoop == other.mLoop && Objects.equals(mUri, other.mUri);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(mLoop) * 31 + Objects.hashCode(mUri);
+        }
+    }
+}
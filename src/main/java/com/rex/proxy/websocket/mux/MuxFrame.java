@@ -0,0 +1,116 @@
+package com.rex.proxy.websocket.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Multiplexed stream frame, carried in BinaryWebSocketFrame of subprotocol proxy3
+ *
+ * +------+-----------+---------+
+ * | type | stream id | payload |
+ * |  1   |     4     |   ...   |
+ * +------+-----------+---------+
+ *
+ * OPEN      C -> S  payload: port(2) address(UTF-8)
+ * OPEN_OK   S -> C  empty
+ * OPEN_FAIL S -> C  empty
+ * DATA      C <> S  payload: tunnel data
+ * WINDOW    C <> S  payload: increment(4), receiver consumed bytes, sender can send more
+ * CLOSE     C <> S  empty, half of the stream closed, peer should close the other half
+ *
+ * Client allocate odd stream ids, each stream start with INITIAL_WINDOW bytes send window in both directions.
+ * OPEN or WINDOW with a short payload only fails its own stream, check by {@link #isValid(byte, ByteBuf)} before reading.
+ */
+public final class MuxFrame {
+
+    public static final byte OPEN = 1;
+    public static final byte OPEN_OK = 2;
+    public static final byte OPEN_FAIL = 3;
+    public static final byte DATA = 4;
+    public static final byte WINDOW = 5;
+    public static final byte CLOSE = 6;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int OPEN_MIN_PAYLOAD = 2; // Port, address may be empty
+    public static final int WINDOW_PAYLOAD = 4;
+    public static final int INITIAL_WINDOW = 1 << 18; // 256KB
+
+    private MuxFrame() {
+    }
+
+    public static BinaryWebSocketFrame open(ByteBufAllocator alloc, int streamId, String address, int port) {
+        byte[] addr = address.getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = alloc.buffer(HEADER_SIZE + 2 + addr.length);
+        buf.writeByte(OPEN).writeInt(streamId).writeShort(port).writeBytes(addr);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    public static BinaryWebSocketFrame window(ByteBufAllocator alloc, int streamId, int increment) {
+        ByteBuf buf = alloc.buffer(HEADER_SIZE + 4);
+        buf.writeByte(WINDOW).writeInt(streamId).writeInt(increment);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    /**
+     * OPEN_OK, OPEN_FAIL or CLOSE
+     */
+    public static BinaryWebSocketFrame signal(ByteBufAllocator alloc, byte type, int streamId) {
+        ByteBuf buf = alloc.buffer(HEADER_SIZE);
+        buf.writeByte(type).writeInt(streamId);
+        return new BinaryWebSocketFrame(buf);
+    }
+
+    /**
+     * Take the ownership of data, it will release after frame written
+     */
+    public static BinaryWebSocketFrame data(ByteBufAllocator alloc, int streamId, ByteBuf data) {
+        ByteBuf header = alloc.buffer(HEADER_SIZE);
+        header.writeByte(DATA).writeInt(streamId);
+        return new BinaryWebSocketFrame(Unpooled.wrappedBuffer(header, data));
+    }
+
+    public static byte type(ByteBuf frame) {
+        return frame.getByte(frame.readerIndex());
+    }
+
+    public static int streamId(ByteBuf frame) {
+        return frame.getInt(frame.readerIndex() + 1);
+    }
+
+    /**
+     * Payload after the header, shared the content of frame
+     */
+    public static ByteBuf payload(ByteBuf frame) {
+        return frame.slice(frame.readerIndex() + HEADER_SIZE, frame.readableBytes() - HEADER_SIZE);
+    }
+
+    /**
+     * Whether the payload is long enough for the fields of the type
+     */
+    public static boolean isValid(byte type, ByteBuf payload) {
+        switch (type) {
+        case OPEN:
+            return payload.readableBytes() >= OPEN_MIN_PAYLOAD;
+        case WINDOW:
+            return payload.readableBytes() >= WINDOW_PAYLOAD;
+        default:
+            return true;
+        }
+    }
+
+    public static String openAddress(ByteBuf payload) {
+        return payload.toString(payload.readerIndex() + 2, payload.readableBytes() - 2, StandardCharsets.UTF_8);
+    }
+
+    public static int openPort(ByteBuf payload) {
+        return payload.getUnsignedShort(payload.readerIndex());
+    }
+
+    public static int windowIncrement(ByteBuf payload) {
+        return payload.getInt(payload.readerIndex());
+    }
+}
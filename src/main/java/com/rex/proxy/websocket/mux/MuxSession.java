@@ -0,0 +1,348 @@
+package com.rex.proxy.websocket.mux;
+
+import com.rex.proxy.WslServer;
+import com.rex.proxy.common.Backpressure;
+import com.rex.proxy.common.DnsResolver;
+import com.rex.proxy.common.HappyEyeballs;
+import com.rex.proxy.common.Transport;
+import com.rex.proxy.websocket.WsFrameSize;
+import com.rex.proxy.websocket.WsProxyControlHandler;
+import com.rex.proxy.websocket.control.ControlAuthBuilder;
+import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.FutureListener;
+import io.netty.util.concurrent.Promise;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Multiplexed WebSocket session, subprotocol proxy3
+ * Many tunnels share one authorized WebSocket, each tunnel is a MuxStream identified by stream id.
+ *
+ * Client session handle the hello and authorization control messages by itself,
+ * server session rely on WsProxyControlHandler for authorization, and only handle binary frames.
+ * All the streams run in the event loop of the WebSocket.
+ */
+public class MuxSession extends ChannelInboundHandlerAdapter {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(MuxSession.class);
+
+    private final String mSecret; // Client only
+    private final Promise<MuxSession> mReady; // Client only, complete when authorized
+    private final WslServer.Configuration mConfig; // Server only
+    private final IntObjectMap<MuxStream> mStreams = new IntObjectHashMap<>();
+    private final List<MuxStream> mPendingFlush = new ArrayList<>();
+    private Channel mChannel;
+    private int mNextId = 1; // Client allocate odd ids
+
+    /**
+     * Client session
+     */
+    public MuxSession(String secret, Promise<MuxSession> ready) {
+        sLogger.trace("<init>");
+        mSecret = secret;
+        mReady = ready;
+        mConfig = null;
+    }
+
+    /**
+     * Server session
+     */
+    public MuxSession(WslServer.Configuration config) {
+        sLogger.trace("<init> config={}", config);
+        mSecret = null;
+        mReady = null;
+        mConfig = config;
+    }
+
+    public Channel channel() {
+        return mChannel;
+    }
+
+    /**
+     * Whether new stream can open in this session
+     */
+    public boolean isActive() {
+        return mChannel != null && mChannel.isActive() && mNextId > 0;
+    }
+
+    public int streams() {
+        return mStreams.size();
+    }
+
+    /**
+     * Client side, open a stream to address:port for local socket
+     * Will fire RemoteStateEvent on local socket pipeline when server response,
+     * or right after the OPEN frame if optimistic, server will hold the early data until target connected
+     */
+    public void open(String address, int port, Channel local, boolean optimistic) {
+        int id = mNextId;
+        mNextId += 2; // Overflow to negative will stop the session accepting new stream
+        sLogger.debug("Open stream {} to {}:{} for {}", id, address, port, local);
+
+        MuxStream stream = new MuxStream(this, id);
+        mStreams.put(id, stream);
+        stream.attach(local);
+        mChannel.writeAndFlush(MuxFrame.open(mChannel.alloc(), id, address, port));
+        if (optimistic) {
+            stream.opened();
+        }
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        mChannel = ctx.channel();
+        super.handlerAdded(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (mReady != null && msg instanceof ControlMessage) {
+            handleControl(ctx, (ControlMessage) msg);
+            return;
+        }
+        if (!(msg instanceof BinaryWebSocketFrame)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        try {
+            ByteBuf frame = ((BinaryWebSocketFrame) msg).content();
+            if (frame.readableBytes() < MuxFrame.HEADER_SIZE) {
+                sLogger.warn("Invalid frame length {}", frame.readableBytes());
+                return;
+            }
+            handleFrame(ctx, MuxFrame.type(frame), MuxFrame.streamId(frame), MuxFrame.payload(frame));
+        } finally {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        for (MuxStream stream : mPendingFlush) {
+            stream.flushRaw();
+        }
+        mPendingFlush.clear();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            for (MuxStream stream : new ArrayList<>(mStreams.values())) {
+                stream.resume();
+            }
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        sLogger.debug("Session {} closed with {} streams", ctx.channel(), mStreams.size());
+        if (mReady != null) {
+            mReady.tryFailure(new ClosedChannelException());
+        }
+        List<MuxStream> streams = new ArrayList<>(mStreams.values());
+        mStreams.clear();
+        for (MuxStream stream : streams) {
+            stream.remoteClosed();
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        sLogger.warn("Session {} - {}", ctx.channel(), cause.toString());
+        if (mReady != null) {
+            mReady.tryFailure(cause);
+        }
+        ctx.close();
+    }
+
+    boolean remove(int id, MuxStream stream) {
+        if (mStreams.get(id) != stream) {
+            return false;
+        }
+        mStreams.remove(id);
+        return true;
+    }
+
+    /**
+     * Split data into frames not larger than the negotiated frame size, take the ownership of data
+     */
+    void writeData(int id, ByteBuf data) {
+        int limit = WsFrameSize.of(mChannel) - MuxFrame.HEADER_SIZE;
+        while (data.readableBytes() > limit) {
+            mChannel.write(MuxFrame.data(mChannel.alloc(), id, data.readRetainedSlice(limit)), mChannel.voidPromise());
+        }
+        mChannel.write(MuxFrame.data(mChannel.alloc(), id, data), mChannel.voidPromise());
+    }
+
+    void writeWindow(int id, int increment) {
+        if (mChannel.isActive()) {
+            mChannel.writeAndFlush(MuxFrame.window(mChannel.alloc(), id, increment), mChannel.voidPromise());
+        }
+    }
+
+    void writeSignal(byte type, int id) {
+        if (mChannel.isActive()) {
+            mChannel.writeAndFlush(MuxFrame.signal(mChannel.alloc(), type, id), mChannel.voidPromise());
+        }
+    }
+
+    private void handleControl(ChannelHandlerContext ctx, ControlMessage msg) {
+        sLogger.trace("read msg:{}", msg);
+        if ("hello".equalsIgnoreCase(msg.type)) {
+            if (mSecret == null) {
+                mReady.trySuccess(this);
+                return;
+            }
+            ControlMessage authMsg = new ControlMessage();
+            authMsg.type = "authorization";
+            authMsg.token = new ControlAuthBuilder()
+                    .setSecret(mSecret)
+                    .setNonce((msg.token != null) ? Base64.getDecoder().decode(msg.token) : null)
+                    .build();
+            ctx.writeAndFlush(authMsg);
+        } else if ("authorized".equalsIgnoreCase(msg.type)) {
+            sLogger.debug("Session {} authorized", ctx.channel());
+            mReady.trySuccess(this);
+        } else if ("response".equalsIgnoreCase(msg.type) && "reject".equalsIgnoreCase(msg.action)) {
+            sLogger.warn("Session {} authorization rejected", ctx.channel());
+            mReady.tryFailure(new IllegalStateException("Authorization rejected"));
+            ctx.close();
+        } else {
+            sLogger.warn("Not supported message:{}", msg);
+        }
+    }
+
+    private void handleFrame(ChannelHandlerContext ctx, byte type, int id, ByteBuf payload) {
+        MuxStream stream = mStreams.get(id);
+        if (!MuxFrame.isValid(type, payload)) {
+            // Fail the stream only, the others sharing the WebSocket go on
+            sLogger.warn("Invalid frame type {} stream {} payload length {}", type, id, payload.readableBytes());
+            if (type == MuxFrame.OPEN) {
+                if (!mStreams.containsKey(id)) {
+                    writeSignal(MuxFrame.OPEN_FAIL, id);
+                }
+            } else if (stream != null) {
+                mStreams.remove(id);
+                stream.remoteClosed();
+                writeSignal(MuxFrame.CLOSE, id);
+            }
+            return;
+        }
+        switch (type) {
+        case MuxFrame.OPEN:
+            handleOpen(ctx, id, payload);
+            break;
+        case MuxFrame.OPEN_OK:
+            if (stream != null) {
+                stream.opened();
+            } else {
+                writeSignal(MuxFrame.CLOSE, id);
+            }
+            break;
+        case MuxFrame.OPEN_FAIL:
+            if (stream != null) {
+                mStreams.remove(id);
+                stream.failed();
+            }
+            break;
+        case MuxFrame.DATA:
+            if (stream != null) {
+                if (stream.receive(payload.retain())) {
+                    mPendingFlush.add(stream);
+                }
+            } else {
+                sLogger.trace("Drop data of closed stream {}", id);
+            }
+            break;
+        case MuxFrame.WINDOW:
+            if (stream != null) {
+                stream.grant(MuxFrame.windowIncrement(payload));
+            }
+            break;
+        case MuxFrame.CLOSE:
+            if (stream != null) {
+                mStreams.remove(id);
+                stream.remoteClosed();
+            }
+            break;
+        default:
+            sLogger.warn("Unknown frame type {} stream {}", type, id);
+            break;
+        }
+    }
+
+    // Server side, connect the target and bind with the new stream
+    private void handleOpen(ChannelHandlerContext ctx, final int id, ByteBuf payload) {
+        if (mConfig == null || (id & 1) == 0 || mStreams.containsKey(id)) {
+            sLogger.warn("Invalid open stream {}", id);
+            writeSignal(MuxFrame.OPEN_FAIL, id);
+            return;
+        }
+        if (mConfig.proxyUid != null && !WsProxyControlHandler.isAuthorized(ctx.channel())) {
+            sLogger.debug("reject stream {} from {}, not authorized", id, ctx.channel().remoteAddress());
+            writeSignal(MuxFrame.OPEN_FAIL, id);
+            return;
+        }
+
+        String address = MuxFrame.openAddress(payload);
+        int port = MuxFrame.openPort(payload);
+        sLogger.debug("Stream {} proxy to address=<{}> port={}", id, address, port);
+
+        final MuxStream stream = new MuxStream(this, id);
+        mStreams.put(id, stream);
+
+        // Same event loop with WebSocket, streams never cross threads
+        EventLoop loop = ctx.channel().eventLoop();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(loop)
+                .channel(Transport.of(loop).socketChannel())
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000)
+                .option(ChannelOption.SO_KEEPALIVE, true)
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, Backpressure.waterMark(mConfig.writeBufferLowWaterMark, mConfig.writeBufferHighWaterMark));
+        // Stream attached to the raw socket won the race, DATA frames before that are held as early data
+        HappyEyeballs.connect(bootstrap, DnsResolver.of(ctx.channel()), address, port, stream)
+                .addListener(new FutureListener<Channel>() {
+                    @Override
+                    public void operationComplete(Future<Channel> future) throws Exception {
+                        sLogger.debug("Stream {} connect {} {}", id, future.isSuccess() ? future.getNow().remoteAddress() : address,
+                                future.isSuccess() ? "success" : "failure");
+                        if (mStreams.get(id) != stream) {
+                            // Client closed the stream while connecting
+                            if (future.isSuccess()) {
+                                future.getNow().close();
+                            }
+                            return;
+                        }
+                        if (future.isSuccess()) {
+                            stream.connected();
+                            writeSignal(MuxFrame.OPEN_OK, id);
+                        } else {
+                            mStreams.remove(id);
+                            stream.remoteClosed(); // Release the early data
+                            writeSignal(MuxFrame.OPEN_FAIL, id);
+                        }
+                    }
+                });
+    }
+}
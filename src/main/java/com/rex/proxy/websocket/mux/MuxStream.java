@@ -0,0 +1,265 @@
+package com.rex.proxy.websocket.mux;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.common.Backpressure;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One tunnel inside a multiplexed WebSocket
+ * Relay data between the raw socket and the stream, the handler is added to the raw socket pipeline.
+ *
+ * The raw socket stop reading when send window exhausted, peer will grant more window after the data written out,
+ * so a slow stream never block other streams sharing the same WebSocket.
+ * Must run in the event loop of the WebSocket, the raw socket is registered on the same event loop.
+ */
+public class MuxStream extends ChannelInboundHandlerAdapter {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(MuxStream.class);
+
+    private final MuxSession mSession;
+    private final int mId;
+    private Channel mRaw;
+    private int mSendWindow = MuxFrame.INITIAL_WINDOW;
+    private int mConsumed; // Bytes written to raw socket but not granted to peer yet
+    private boolean mOpened;
+    private boolean mClosed;
+    private boolean mPendingFlush; // Data written to WebSocket
+    private boolean mRawPendingFlush; // Data written to raw socket
+    private List<ByteBuf> mEarly; // Server side, data received before target connected
+
+    MuxStream(MuxSession session, int id) {
+        sLogger.trace("<init> id={}", id);
+        mSession = session;
+        mId = id;
+    }
+
+    public int id() {
+        return mId;
+    }
+
+    /**
+     * Bind with raw socket, close the stream when raw socket closed
+     */
+    void attach(Channel raw) {
+        mRaw = raw;
+        mRaw.closeFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                sLogger.debug("Stream {} raw socket closed {}", mId, future.channel());
+                flushIfNeeded();
+                releaseEarly();
+                if (mSession.remove(mId, MuxStream.this)) {
+                    mClosed = true;
+                    mSession.writeSignal(MuxFrame.CLOSE, mId);
+                }
+            }
+        });
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        if (mRaw == null) {
+            attach(ctx.channel());
+        }
+        super.handlerAdded(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (!(msg instanceof ByteBuf)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+        ByteBuf data = (ByteBuf) msg;
+        if (mClosed) {
+            data.release();
+            return;
+        }
+        mSendWindow -= data.readableBytes();
+        mSession.writeData(mId, data);
+        mPendingFlush = true;
+        if (mSendWindow <= 0) {
+            sLogger.trace("Stream {} window exhausted", mId);
+            ctx.channel().config().setAutoRead(false);
+        }
+        Backpressure.throttle(ctx.channel(), mSession.channel());
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        super.channelReadComplete(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfNeeded();
+        super.handlerRemoved(ctx);
+    }
+
+    @Override // ChannelInboundHandlerAdapter
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        sLogger.warn("Stream {} - {}", mId, cause.toString());
+        ctx.close();
+    }
+
+    /**
+     * Client side, server connected the target
+     */
+    void opened() {
+        if (mOpened) {
+            return; // Already opened optimistically
+        }
+        sLogger.debug("Stream {} opened", mId);
+        mOpened = true;
+        mRaw.pipeline().addLast(this);
+        mRaw.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_READY);
+    }
+
+    /**
+     * Client side, server failed to connect the target
+     */
+    void failed() {
+        sLogger.debug("Stream {} failed", mId);
+        mClosed = true;
+        if (mOpened) {
+            // Local socket already told success, close it instead
+            flushRaw();
+            if (mRaw.isActive()) {
+                mRaw.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                        .addListener(ChannelFutureListener.CLOSE);
+            }
+            return;
+        }
+        mRaw.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+    }
+
+    /**
+     * Server side, connected the target
+     */
+    void connected() {
+        mOpened = true;
+        if (mEarly != null) {
+            List<ByteBuf> early = mEarly;
+            mEarly = null;
+            sLogger.trace("Stream {} write {} early frames", mId, early.size());
+            for (ByteBuf data : early) {
+                receive(data);
+            }
+            flushRaw();
+        }
+    }
+
+    /**
+     * Data from peer, write to raw socket
+     * @return true if raw socket need flush
+     */
+    boolean receive(ByteBuf data) {
+        if (mClosed || (mRaw != null && !mRaw.isOpen())) {
+            data.release();
+            return false;
+        }
+        if (mRaw == null || !mRaw.isActive()) {
+            // Optimistic client send data right after OPEN, hold until target connected, bounded by the window
+            if (mEarly == null) {
+                mEarly = new ArrayList<>(2);
+            }
+            mEarly.add(data);
+            return false;
+        }
+        final int length = data.readableBytes();
+        mRaw.write(data).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    consumed(length);
+                }
+            }
+        });
+        if (mRawPendingFlush) {
+            return false;
+        }
+        mRawPendingFlush = true;
+        return true;
+    }
+
+    void flushRaw() {
+        if (mRawPendingFlush) {
+            mRawPendingFlush = false;
+            mRaw.flush();
+        }
+    }
+
+    /**
+     * Peer granted more send window
+     */
+    void grant(int increment) {
+        mSendWindow += increment;
+        resume();
+    }
+
+    /**
+     * Resume reading raw socket if both window and WebSocket available
+     */
+    void resume() {
+        if (mSendWindow > 0 && mRaw != null && mOpened) {
+            Backpressure.resume(mSession.channel(), mRaw);
+        }
+    }
+
+    /**
+     * Peer closed the stream, or the whole WebSocket lost
+     */
+    void remoteClosed() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        releaseEarly();
+        if (!mOpened && mRaw != null) {
+            // Closed before open completed, treat as failure
+            mRaw.pipeline().fireUserEventTriggered(WslLocal.RemoteStateEvent.REMOTE_FAILED);
+            return;
+        }
+        flushRaw();
+        if (mRaw != null && mRaw.isActive()) {
+            mRaw.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                    .addListener(ChannelFutureListener.CLOSE);
+        }
+    }
+
+    private void consumed(int length) {
+        mConsumed += length;
+        if (!mClosed && mConsumed >= MuxFrame.INITIAL_WINDOW / 2) {
+            mSession.writeWindow(mId, mConsumed);
+            mConsumed = 0;
+        }
+    }
+
+    private void releaseEarly() {
+        if (mEarly != null) {
+            for (ByteBuf data : mEarly) {
+                data.release();
+            }
+            mEarly = null;
+        }
+    }
+
+    private void flushIfNeeded() {
+        if (mPendingFlush) {
+            mPendingFlush = false;
+            mSession.channel().flush();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.rex.proxy;
+
+import com.rex.proxy.utils.TunnelLoad;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upstream throughput of concurrent tunnels through wsl-local and wsl-server,
+ * destination connected in the event loop of WebSocket or in any loop of the worker group.
+ *
+ * Skipped by default, run with
+ * > ./gradlew test --tests '*LoopAffinityBenchmark' -Dbenchmark=true
+ */
+public class LoopAffinityBenchmark {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(LoopAffinityBenchmark.class);
+
+    private static final int TUNNELS = 8;
+    private static final long BYTES_PER_TUNNEL = 256L * 1024 * 1024;
+    private static final int ROUNDS = 3;
+
+    @Test
+    public void benchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        // Warm up the JIT with both modes before measuring
+        run(true);
+        run(false);
+
+        double affinity = 0;
+        double handoff = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            affinity = Math.max(affinity, run(true));
+            handoff = Math.max(handoff, run(false));
+        }
+        sLogger.info("Best of {} rounds, {} tunnels: loopAffinity=true {} MB/s, loopAffinity=false {} MB/s",
+                ROUNDS, TUNNELS, String.format("%.1f", affinity), String.format("%.1f", handoff));
+        assertTrue(affinity > 0 && handoff > 0);
+    }
+
+    /**
+     * @return Total throughput in MB/s
+     */
+    private double run(boolean loopAffinity) throws Exception {
+        WslServer.Configuration serverConfig = new WslServer.Configuration("127.0.0.1", 0);
+        serverConfig.loopAffinity = loopAffinity;
+        WslServer server = new WslServer().config(serverConfig).start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0,
+                new URI("ws://127.0.0.1:" + server.port()), null);
+        WslLocal local = new WslLocal().config(localConfig).start();
+
+        double mbps = TunnelLoad.run(local.port(), TUNNELS, BYTES_PER_TUNNEL);
+        local.stop();
+        server.stop();
+        sLogger.info("loopAffinity={} {} MB/s", loopAffinity, String.format("%.1f", mbps));
+        return mbps;
+    }
+}
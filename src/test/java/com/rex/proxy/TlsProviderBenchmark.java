@@ -0,0 +1,133 @@
+package com.rex.proxy;
+
+import com.rex.proxy.common.TlsProvider;
+import com.rex.proxy.utils.TunnelLoad;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.junit.Assume;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TLS throughput of tunnels through wss and full handshake rate of wsl-server, with each ssl provider.
+ * Provider openssl falls back to jdk unless netty-tcnative is on the test classpath.
+ *
+ * Skipped by default, run with
+ * > ./gradlew test --tests '*TlsProviderBenchmark' -Dbenchmark=true
+ */
+public class TlsProviderBenchmark {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TlsProviderBenchmark.class);
+
+    private static final int TUNNELS = 8;
+    private static final long BYTES_PER_TUNNEL = 128L * 1024 * 1024;
+    private static final int HANDSHAKE_THREADS = 4;
+    private static final int HANDSHAKES_PER_THREAD = 250;
+
+    @Test
+    public void benchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+
+        // Warm up the JIT with both providers before measuring
+        run("jdk");
+        run("openssl");
+
+        double[] jdk = run("jdk");
+        double[] openssl = run("openssl");
+        sLogger.info("jdk {} MB/s {} handshakes/s", String.format("%.1f", jdk[0]), String.format("%.0f", jdk[1]));
+        sLogger.info("openssl({}) {} MB/s {} handshakes/s", TlsProvider.select("openssl"),
+                String.format("%.1f", openssl[0]), String.format("%.0f", openssl[1]));
+        assertTrue(jdk[0] > 0 && openssl[0] > 0);
+    }
+
+    /**
+     * @return MB/s of tunnels and full handshakes per second
+     */
+    private double[] run(String provider) throws Exception {
+        WslServer.Configuration serverConfig = new WslServer.Configuration("127.0.0.1", 0);
+        serverConfig.ssl = true; // Self-signed
+        serverConfig.sslProvider = provider;
+        WslServer server = new WslServer().config(serverConfig).start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration("127.0.0.1", 0,
+                new URI("wss://127.0.0.1:" + server.port()), null);
+        localConfig.sslProvider = provider;
+        WslLocal local = new WslLocal().config(localConfig).start();
+
+        double mbps = TunnelLoad.run(local.port(), TUNNELS, BYTES_PER_TUNNEL);
+        double rate = handshakes(TlsProvider.select(provider), server.port());
+        local.stop();
+        server.stop();
+        sLogger.info("sslProvider={} {} MB/s {} handshakes/s", provider, String.format("%.1f", mbps), String.format("%.0f", rate));
+        return new double[] { mbps, rate };
+    }
+
+    // Full handshakes only, the handler without peer host never resumes a session
+    private double handshakes(SslProvider provider, int port) throws Exception {
+        final SslContext context = SslContextBuilder.forClient()
+                .sslProvider(provider)
+                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                .build();
+        final EventLoopGroup group = new NioEventLoopGroup(HANDSHAKE_THREADS);
+        final InetSocketAddress address = new InetSocketAddress("127.0.0.1", port);
+        final AtomicInteger completed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < HANDSHAKE_THREADS; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int n = 0; n < HANDSHAKES_PER_THREAD; n++) {
+                            Channel ch = new Bootstrap()
+                                    .group(group)
+                                    .channel(NioSocketChannel.class)
+                                    .handler(new ChannelInitializer<SocketChannel>() {
+                                        @Override
+                                        protected void initChannel(SocketChannel ch) throws Exception {
+                                            ch.pipeline().addLast(context.newHandler(ch.alloc()));
+                                        }
+                                    })
+                                    .connect(address)
+                                    .sync()
+                                    .channel();
+                            if (ch.pipeline().get(SslHandler.class).handshakeFuture().await().isSuccess()) {
+                                completed.incrementAndGet();
+                            }
+                            ch.close().sync();
+                        }
+                    } catch (InterruptedException ex) {
+                        sLogger.warn("Handshake interrupted");
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        group.shutdownGracefully().sync();
+        return completed.get() / (elapsed / 1e9);
+    }
+}
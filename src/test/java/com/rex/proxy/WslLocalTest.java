@@ -3,11 +3,13 @@ package com.rex.proxy;
 import com.google.gson.Gson;
 import com.rex.proxy.utils.EchoServer;
 import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.channel.epoll.Epoll;
 import io.netty.handler.codec.socksx.v5.Socks5AddressType;
 import okhttp3.*;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okio.ByteString;
+import org.junit.Assume;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -617,6 +619,55 @@ public class WslLocalTest {
         server.close();
     }
 
+    // Test works as socks proxy with splice relay, only run on platform support epoll
+    @Test
+    public void testSocksProxySplice() throws Exception {
+        Assume.assumeTrue(Epoll.isAvailable());
+
+        StringBuffer sb = new StringBuffer();
+        int total = 65536 * 16;
+        for (int i = 0; i < total; i++) {
+            sb.append((char) ((i % 26) + 'A'));
+        }
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody(sb.toString()));
+        server.start();
+
+        WslLocal.Configuration conf = new WslLocal.Configuration(0);
+        conf.transport = "epoll";
+        conf.splice = true;
+        WslLocal local = new WslLocal()
+                .config(conf)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+
+        Request request = new Request.Builder()
+                .url(new URL("http://127.0.0.1:" + server.getPort()))
+                .build();
+        Response response = client
+                .newCall(request)
+                .execute();
+        assertTrue(response.isSuccessful());
+        assertEquals(200, response.code());
+
+        byte[] body = response.body().bytes();
+        assertEquals(total, body.length);
+
+        Random rand = new Random();
+        for (int i = 0; i < 9; i++) {
+            int idx = rand.nextInt(total);
+            assertEquals((idx % 26) + 'A', body[idx]);
+        }
+
+        // Shutdown everything
+        local.stop();
+        server.close();
+    }
+
     // Test WsProxyLocal with real WsProxyServer by URLConnection without auth
     @Test
     public void testWsProxy() throws Exception {
@@ -653,6 +704,62 @@ public class WslLocalTest {
         server.close();
     }
 
+    // Test WsProxyLocal with real WsProxyServer, tunnels multiplexed in one WebSocket with auth
+    @Test
+    public void testWsProxyMultiplex() throws Exception {
+        StringBuffer sb = new StringBuffer();
+        int total = 65536 * 16; // Larger than the stream window
+        for (int i = 0; i < total; i++) {
+            sb.append((char) ((i % 26) + 'A'));
+        }
+
+        MockWebServer server = new MockWebServer();
+        server.enqueue(new MockResponse().setResponseCode(200).setBody(sb.toString()));
+        server.enqueue(new MockResponse().setResponseCode(200).setBody("HelloWorld!"));
+        server.start();
+
+        WslServer.Configuration remoteConfig = new WslServer.Configuration(0);
+        remoteConfig.proxyUid = "TestUid";
+        WslServer remote = new WslServer()
+                .config(remoteConfig)
+                .start();
+
+        WslLocal.Configuration localConfig = new WslLocal.Configuration(0);
+        localConfig.proxyUri = new URI("ws://127.0.0.1:" + remote.port() + "/");
+        localConfig.proxyUid = "TestUid";
+        localConfig.multiplex = true;
+        WslLocal local = new WslLocal()
+                .config(localConfig)
+                .start();
+
+        OkHttpClient client = new OkHttpClient.Builder()
+                .proxy(new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", local.port())))
+                .build();
+
+        Response response = client
+                .newCall(new Request.Builder().url(new URL("http://127.0.0.1:" + server.getPort())).build())
+                .execute();
+        assertEquals(200, response.code());
+        byte[] body = response.body().bytes();
+        assertEquals(total, body.length);
+        Random rand = new Random();
+        for (int i = 0; i < 9; i++) {
+            int idx = rand.nextInt(total);
+            assertEquals((idx % 26) + 'A', body[idx]);
+        }
+
+        response = client
+                .newCall(new Request.Builder().url(new URL("http://127.0.0.1:" + server.getPort())).build())
+                .execute();
+        assertEquals(200, response.code());
+        assertEquals("HelloWorld!", response.body().string());
+
+        // Shutdown everything
+        local.stop();
+        remote.stop();
+        server.close();
+    }
+
     // Test WsProxyLocal connect TLS WsProxyServer with self-signed certificate
     @Test
     public void testWssProxyIgnoreCert() throws Exception {
@@ -6,6 +6,7 @@ import com.rex.proxy.utils.EchoServer;
 import com.rex.proxy.utils.X509TrustAllManager;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
 import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
 import okhttp3.*;
 import okhttp3.logging.HttpLoggingInterceptor;
 import okhttp3.mockwebserver.MockResponse;
@@ -20,15 +21,21 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.cert.X509Certificate;
 import java.time.Duration;
 import java.util.*;
 
@@ -194,6 +201,87 @@ public class WslServerTest {
         server.stop();
     }
 
+    // New TLS connection trusting any certificate
+    private static SSLSocket connectSSL(int port) throws Exception {
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, new X509TrustManager[] { new X509TrustAllManager() }, null);
+        SSLSocket socket = (SSLSocket) ctx.getSocketFactory().createSocket("127.0.0.1", port);
+        socket.startHandshake();
+        return socket;
+    }
+
+    private static String request(SSLSocket socket) throws Exception {
+        socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+        byte[] buffer = new byte[12];
+        int read = 0;
+        while (read < buffer.length) {
+            int n = socket.getInputStream().read(buffer, read, buffer.length - read);
+            if (n < 0) {
+                break;
+            }
+            read += n;
+        }
+        return new String(buffer, 0, read, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testSSLReload() throws Exception {
+        File dir = Files.createTempDirectory("wsl-ssl").toFile();
+        File certFile = new File(dir, "cert.pem");
+        File keyFile = new File(dir, "key.pem");
+        Files.copy(new File(ClassLoader.getSystemResource("test.cert.pem").getFile()).toPath(), certFile.toPath());
+        Files.copy(new File(ClassLoader.getSystemResource("test.key.p8.pem").getFile()).toPath(), keyFile.toPath());
+
+        WslServer.Configuration conf = new WslServer.Configuration("127.0.0.1", 0, certFile.getPath(), keyFile.getPath());
+        conf.sslReloadIntervalSeconds = 1;
+        WslServer server = new WslServer()
+                .config(conf)
+                .start();
+        SSLSocket before = connectSSL(server.port());
+        X509Certificate oldCert = (X509Certificate) before.getSession().getPeerCertificates()[0];
+
+        // Renew with another certificate, picked up by the file check
+        SelfSignedCertificate ssc = new SelfSignedCertificate("renewed.test");
+        Files.copy(ssc.certificate().toPath(), certFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(ssc.privateKey().toPath(), keyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        certFile.setLastModified(System.currentTimeMillis() + 2000); // Coarse mtime of some file systems
+        X509Certificate newCert = null;
+        for (int i = 0; i < 50; i++) {
+            Thread.sleep(100);
+            SSLSocket after = connectSSL(server.port());
+            newCert = (X509Certificate) after.getSession().getPeerCertificates()[0];
+            after.close();
+            if (!newCert.equals(oldCert)) {
+                break;
+            }
+        }
+        assertEquals(ssc.cert(), newCert);
+
+        // Established connection keeps working
+        assertEquals("HTTP/1.1 400", request(before));
+        before.close();
+
+        // Certificate written before its key, never pair it with the old key
+        SelfSignedCertificate next = new SelfSignedCertificate("next.test");
+        Files.copy(next.certificate().toPath(), certFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertFalse(server.reloadSsl());
+        SSLSocket mismatched = connectSSL(server.port());
+        assertEquals(ssc.cert(), mismatched.getSession().getPeerCertificates()[0]);
+        mismatched.close();
+        next.delete();
+
+        // Broken files keep the current certificate
+        Files.write(keyFile.toPath(), "broken".getBytes(StandardCharsets.US_ASCII));
+        assertFalse(server.reloadSsl());
+        SSLSocket after = connectSSL(server.port());
+        assertEquals(ssc.cert(), after.getSession().getPeerCertificates()[0]);
+        after.close();
+
+        server.stop();
+        ssc.delete();
+    }
+
     @Test
     public void testWebsocket() throws Exception {
         Gson gson = new Gson();
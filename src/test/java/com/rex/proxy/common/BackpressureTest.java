@@ -0,0 +1,72 @@
+package com.rex.proxy.common;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackpressureTest {
+
+    @Test
+    public void testWaterMark() throws Exception {
+        WriteBufferWaterMark mark = Backpressure.waterMark(null, null);
+        assertEquals(WriteBufferWaterMark.DEFAULT.low(), mark.low());
+        assertEquals(WriteBufferWaterMark.DEFAULT.high(), mark.high());
+
+        mark = Backpressure.waterMark(1024, 4096);
+        assertEquals(1024, mark.low());
+        assertEquals(4096, mark.high());
+
+        mark = Backpressure.waterMark(128 * 1024, null); // High mark never below low mark
+        assertEquals(128 * 1024, mark.low());
+        assertEquals(128 * 1024, mark.high());
+
+        mark = Backpressure.waterMark(null, 16 * 1024); // Default low mark above the high mark
+        assertEquals(16 * 1024, mark.low());
+        assertEquals(16 * 1024, mark.high());
+
+        mark = Backpressure.waterMark(8192, 4096);
+        assertEquals(4096, mark.low());
+        assertEquals(4096, mark.high());
+    }
+
+    @Test
+    public void testThrottleAndResume() throws Exception {
+        EmbeddedChannel source = new EmbeddedChannel();
+        EmbeddedChannel sink = new EmbeddedChannel(new BridgeChannelHandler(source));
+        sink.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+
+        long throttled = Backpressure.throttleCount();
+        Backpressure.throttle(source, sink);
+        assertTrue(source.config().isAutoRead());
+
+        sink.write(Unpooled.wrappedBuffer(new byte[32])); // Pending without flush
+        assertFalse(sink.isWritable());
+
+        Backpressure.throttle(source, sink);
+        assertFalse(source.config().isAutoRead());
+        assertEquals(throttled + 1, Backpressure.throttleCount());
+
+        sink.flush(); // Drained, BridgeChannelHandler on sink will resume source
+        assertTrue(sink.isWritable());
+        assertTrue(source.config().isAutoRead());
+
+        ReferenceCountUtil.release(sink.readOutbound());
+        source.close();
+        sink.close();
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        EmbeddedChannel source = new EmbeddedChannel();
+        source.config().setAutoRead(false);
+        Backpressure.release(source);
+        assertTrue(source.config().isAutoRead());
+        source.close();
+    }
+}
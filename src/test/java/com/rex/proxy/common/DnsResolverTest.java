@@ -0,0 +1,161 @@
+package com.rex.proxy.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.dns.DatagramDnsQuery;
+import io.netty.handler.codec.dns.DatagramDnsQueryDecoder;
+import io.netty.handler.codec.dns.DatagramDnsResponse;
+import io.netty.handler.codec.dns.DatagramDnsResponseEncoder;
+import io.netty.handler.codec.dns.DefaultDnsRawRecord;
+import io.netty.handler.codec.dns.DnsQuestion;
+import io.netty.handler.codec.dns.DnsRecordType;
+import io.netty.handler.codec.dns.DnsResponseCode;
+import io.netty.handler.codec.dns.DnsSection;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsResolverTest {
+
+    private EventLoopGroup mGroup;
+    private Channel mServer;
+    private final Map<String, AtomicInteger> mQueries = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mGroup = new NioEventLoopGroup(1);
+        // Stand-in DNS server, answer A records of *.test with 10.0.0.1 except missing.test
+        mServer = new Bootstrap()
+                .group(mGroup)
+                .channel(NioDatagramChannel.class)
+                .handler(new ChannelInitializer<DatagramChannel>() {
+                    @Override
+                    protected void initChannel(DatagramChannel ch) throws Exception {
+                        ch.pipeline().addLast(new DatagramDnsQueryDecoder(), new DatagramDnsResponseEncoder(),
+                                new SimpleChannelInboundHandler<DatagramDnsQuery>() {
+                                    @Override
+                                    protected void channelRead0(ChannelHandlerContext ctx, DatagramDnsQuery query) throws Exception {
+                                        DnsQuestion question = query.recordAt(DnsSection.QUESTION);
+                                        String name = question.name();
+                                        DatagramDnsResponse response = new DatagramDnsResponse(query.recipient(), query.sender(), query.id());
+                                        response.addRecord(DnsSection.QUESTION, question);
+                                        if (name.startsWith("missing.")) {
+                                            response.setCode(DnsResponseCode.NXDOMAIN);
+                                        } else if (question.type() == DnsRecordType.A && name.endsWith(".test.")) {
+                                            response.addRecord(DnsSection.ANSWER, new DefaultDnsRawRecord(name, DnsRecordType.A, 60,
+                                                    Unpooled.wrappedBuffer(new byte[] { 10, 0, 0, 1 })));
+                                        }
+                                        if (question.type() == DnsRecordType.A) {
+                                            mQueries.computeIfAbsent(name, k -> new AtomicInteger()).incrementAndGet();
+                                        }
+                                        ctx.writeAndFlush(response);
+                                    }
+                                });
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+    }
+
+    private AddressResolverGroup<InetSocketAddress> newGroup(int cacheSize) {
+        int port = ((InetSocketAddress) mServer.localAddress()).getPort();
+        return DnsResolver.newGroup(Transport.NIO, "127.0.0.1:" + port, cacheSize, 10);
+    }
+
+    private int queries(String name) {
+        AtomicInteger count = mQueries.get(name);
+        return (count != null) ? count.get() : 0;
+    }
+
+    @Test
+    public void testResolveCached() throws Exception {
+        AddressResolverGroup<InetSocketAddress> group = newGroup(16);
+        AddressResolver<InetSocketAddress> resolver = group.getResolver(mGroup.next());
+
+        // Concurrent lookups of the same host share one query
+        Future<InetSocketAddress> first = resolver.resolve(InetSocketAddress.createUnresolved("host.test", 80));
+        Future<InetSocketAddress> second = resolver.resolve(InetSocketAddress.createUnresolved("host.test", 443));
+        assertEquals("10.0.0.1", first.sync().getNow().getAddress().getHostAddress());
+        assertEquals(80, first.getNow().getPort());
+        assertEquals(443, second.sync().getNow().getPort());
+
+        // Answered from cache within TTL
+        resolver.resolve(InetSocketAddress.createUnresolved("host.test", 80)).sync();
+        assertEquals(1, queries("host.test."));
+        group.close();
+    }
+
+    @Test
+    public void testNegativeCached() throws Exception {
+        AddressResolverGroup<InetSocketAddress> group = newGroup(16);
+        AddressResolver<InetSocketAddress> resolver = group.getResolver(mGroup.next());
+
+        assertFalse(resolver.resolve(InetSocketAddress.createUnresolved("missing.test", 80)).await().isSuccess());
+        int count = queries("missing.test.");
+        assertTrue(count > 0);
+        assertFalse(resolver.resolve(InetSocketAddress.createUnresolved("missing.test", 80)).await().isSuccess());
+        assertEquals(count, queries("missing.test."));
+        group.close();
+    }
+
+    @Test
+    public void testBoundedCache() throws Exception {
+        EventLoop loop = new DefaultEventLoop();
+        BoundedDnsCache cache = new BoundedDnsCache(new DefaultDnsCache(), 2);
+        for (String host : new String[] { "a.test", "b.test" }) {
+            cache.cache(host, null, InetAddress.getByAddress(host, new byte[] { 10, 0, 0, 1 }), 60, loop);
+        }
+        // Touch a, b becomes the least recently used
+        assertNotNull(cache.get("a.test", null));
+        cache.cache("c.test", null, InetAddress.getByAddress("c.test", new byte[] { 10, 0, 0, 3 }), 60, loop);
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a.test", null));
+        assertNull(cache.get("b.test", null));
+        assertNotNull(cache.get("c.test", null));
+        loop.shutdownGracefully().sync();
+    }
+
+    @Test
+    public void testNameServers() throws Exception {
+        assertEquals(new InetSocketAddress("127.0.0.1", 5353),
+                DnsResolver.nameServers("127.0.0.1:5353, 10.0.0.1").nameServerAddressStream("example.com").next());
+        assertEquals(new InetSocketAddress("::1", 53),
+                DnsResolver.nameServers("[::1]").nameServerAddressStream("example.com").next());
+        assertEquals(new InetSocketAddress("::1", 5353),
+                DnsResolver.nameServers("[::1]:5353").nameServerAddressStream("example.com").next());
+    }
+}
@@ -0,0 +1,142 @@
+package com.rex.proxy.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.resolver.AbstractAddressResolver;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HappyEyeballsTest {
+
+    private EventLoopGroup mGroup;
+    private Channel mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mGroup = new NioEventLoopGroup(1);
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter())
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+    }
+
+    private Bootstrap bootstrap() {
+        return new Bootstrap()
+                .group(mGroup)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 15000);
+    }
+
+    // Resolve any host to the given addresses
+    private static AddressResolverGroup<InetSocketAddress> resolver(final InetSocketAddress... addresses) {
+        return new AddressResolverGroup<InetSocketAddress>() {
+            @Override
+            protected AddressResolver<InetSocketAddress> newResolver(EventExecutor executor) throws Exception {
+                return new AbstractAddressResolver<InetSocketAddress>(executor) {
+                    @Override
+                    protected boolean doIsResolved(InetSocketAddress address) {
+                        return !address.isUnresolved();
+                    }
+
+                    @Override
+                    protected void doResolve(InetSocketAddress unresolved, Promise<InetSocketAddress> promise) throws Exception {
+                        promise.setSuccess(addresses[0]);
+                    }
+
+                    @Override
+                    protected void doResolveAll(InetSocketAddress unresolved, Promise<List<InetSocketAddress>> promise) throws Exception {
+                        promise.setSuccess(Arrays.asList(addresses));
+                    }
+                };
+            }
+        };
+    }
+
+    private static int closedPort() throws Exception {
+        java.net.ServerSocket socket = new java.net.ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test
+    public void testInterleave() throws Exception {
+        InetSocketAddress v6a = new InetSocketAddress(InetAddress.getByName("2001:db8::1"), 80);
+        InetSocketAddress v6b = new InetSocketAddress(InetAddress.getByName("2001:db8::2"), 80);
+        InetSocketAddress v4a = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), 80);
+        InetSocketAddress v4b = new InetSocketAddress(InetAddress.getByName("192.0.2.2"), 80);
+        assertEquals(Arrays.asList(v6a, v4a, v6b, v4b), HappyEyeballs.interleave(Arrays.asList(v6a, v6b, v4a, v4b)));
+        assertEquals(Arrays.asList(v4a, v6a, v4b), HappyEyeballs.interleave(Arrays.asList(v4a, v4b, v6a)));
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        int port = ((InetSocketAddress) mServer.localAddress()).getPort();
+        // First address refused, or blackholed for longer than the attempt delay
+        InetSocketAddress dead = new InetSocketAddress(InetAddress.getByName("192.0.2.1"), port);
+        InetSocketAddress alive = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port);
+
+        final CountDownLatch active = new CountDownLatch(1);
+        long start = System.nanoTime();
+        Future<Channel> future = HappyEyeballs.connect(bootstrap(), resolver(dead, alive), "example.com", port,
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                        active.countDown();
+                        super.channelActive(ctx);
+                    }
+                });
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertTrue(future.isSuccess());
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(alive, future.getNow().remoteAddress());
+
+        // Handler of the winner sees channelActive
+        assertTrue(active.await(1, TimeUnit.SECONDS));
+        future.getNow().close().sync();
+    }
+
+    @Test
+    public void testAllFailed() throws Exception {
+        InetSocketAddress first = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), closedPort());
+        InetSocketAddress second = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), closedPort());
+        Future<Channel> future = HappyEyeballs.connect(bootstrap(), resolver(first, second), "example.com", 80,
+                new ChannelInboundHandlerAdapter());
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertFalse(future.isSuccess());
+    }
+}
@@ -0,0 +1,23 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SpliceBridgeTest {
+
+    @Test
+    public void testNotEpollChannel() throws Exception {
+        EmbeddedChannel local = new EmbeddedChannel();
+        EmbeddedChannel remote = new EmbeddedChannel();
+
+        assertFalse(SpliceBridge.splice(local, remote));
+        assertTrue(local.isActive());
+        assertTrue(remote.isActive());
+
+        local.close();
+        remote.close();
+    }
+}
@@ -0,0 +1,125 @@
+package com.rex.proxy.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TlsHandshakesTest {
+
+    private EventLoopGroup mGroup;
+    private Channel mServer;
+    private TlsHandshakes mHandshakes;
+    private SslContext mClientContext;
+
+    @Before
+    public void setUp() throws Exception {
+        SelfSignedCertificate ssc = new SelfSignedCertificate();
+        final SslContext serverContext = SslContextBuilder.forServer(ssc.key(), ssc.cert()).build();
+        mClientContext = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+        mHandshakes = new TlsHandshakes(2, 1);
+        mGroup = new NioEventLoopGroup(1); // One loop, one handshake at a time
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        mHandshakes.addLast(ch, serverContext);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+        mHandshakes.shutdown();
+    }
+
+    private Future<Channel> handshake() throws Exception {
+        Channel ch = new Bootstrap()
+                .group(mGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(mClientContext.newHandler(ch.alloc()));
+                    }
+                })
+                .connect(mServer.localAddress())
+                .sync()
+                .channel();
+        return ch.pipeline().get(SslHandler.class).handshakeFuture();
+    }
+
+    @Test
+    public void testQueued() throws Exception {
+        List<Future<Channel>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(handshake());
+        }
+        for (Future<Channel> future : futures) {
+            assertTrue(future.await(10, TimeUnit.SECONDS));
+            assertTrue(future.isSuccess());
+            future.getNow().close().sync();
+        }
+        Thread.sleep(100); // Server side completion
+        TlsHandshakes.HandshakeGauge gauge = mHandshakes.gauge();
+        assertEquals(4, gauge.completed);
+        assertEquals(0, gauge.running);
+        assertEquals(0, gauge.waiting);
+        assertTrue(gauge.maxMicros >= gauge.avgMicros);
+    }
+
+    @Test
+    public void testWaitSlot() throws Exception {
+        InetSocketAddress address = (InetSocketAddress) mServer.localAddress();
+        // Plain socket never sends ClientHello, holds the only slot
+        Socket blocker = new Socket(address.getAddress(), address.getPort());
+        Thread.sleep(100);
+        assertEquals(1, mHandshakes.gauge().running);
+
+        Future<Channel> future = handshake();
+        assertFalse(future.await(500, TimeUnit.MILLISECONDS));
+        assertEquals(1, mHandshakes.gauge().waiting);
+
+        // Slot released by close, the waiting one proceeds
+        blocker.close();
+        assertTrue(future.await(10, TimeUnit.SECONDS));
+        assertTrue(future.isSuccess());
+        future.getNow().close().sync();
+        Thread.sleep(100);
+        TlsHandshakes.HandshakeGauge gauge = mHandshakes.gauge();
+        assertEquals(1, gauge.completed);
+        assertEquals(1, gauge.failed);
+        assertEquals(0, gauge.waiting);
+    }
+}
@@ -0,0 +1,22 @@
+package com.rex.proxy.common;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.netty.handler.ssl.SslProvider;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TlsProviderTest {
+
+    @Test
+    public void testSelect() throws Exception {
+        assertEquals(SslProvider.JDK, TlsProvider.select(null));
+        assertEquals(SslProvider.JDK, TlsProvider.select("jdk"));
+        assertEquals(SslProvider.JDK, TlsProvider.select("JDK"));
+        assertEquals(SslProvider.JDK, TlsProvider.select("unknown"));
+
+        SslProvider openssl = OpenSsl.isAvailable() ? SslProvider.OPENSSL : SslProvider.JDK;
+        assertEquals(openssl, TlsProvider.select("openssl"));
+        assertEquals(openssl, TlsProvider.select("OpenSSL"));
+    }
+}
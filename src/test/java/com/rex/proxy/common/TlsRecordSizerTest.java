@@ -0,0 +1,122 @@
+package com.rex.proxy.common;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.assertTrue;
+
+public class TlsRecordSizerTest {
+
+    private static final int OVERHEAD = 64; // Ample for header, nonce and tag of any cipher
+
+    private EmbeddedChannel mClient;
+    private EmbeddedChannel mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        SelfSignedCertificate ssc = new SelfSignedCertificate();
+        SslContext serverContext = SslContextBuilder.forServer(ssc.key(), ssc.cert()).build();
+        SslContext clientContext = SslContextBuilder.forClient().trustManager(InsecureTrustManagerFactory.INSTANCE).build();
+
+        mServer = new EmbeddedChannel(serverContext.newHandler(ByteBufAllocator.DEFAULT));
+        SslHandler clientSsl = clientContext.newHandler(ByteBufAllocator.DEFAULT);
+        mClient = new EmbeddedChannel(clientSsl, new TlsRecordSizer(clientSsl));
+
+        // Pump the handshake between the channels
+        for (int i = 0; i < 100 && !(clientSsl.handshakeFuture().isDone() && drained()); i++) {
+            transfer(mClient, mServer);
+            transfer(mServer, mClient);
+        }
+        assertTrue(clientSsl.handshakeFuture().isSuccess());
+        releaseAll(mServer.inboundMessages());
+        releaseAll(mClient.inboundMessages());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mClient.finishAndReleaseAll();
+        mServer.finishAndReleaseAll();
+    }
+
+    private boolean drained() {
+        return mClient.outboundMessages().isEmpty() && mServer.outboundMessages().isEmpty();
+    }
+
+    private static void transfer(EmbeddedChannel from, EmbeddedChannel to) {
+        ByteBuf buf;
+        while ((buf = from.readOutbound()) != null) {
+            to.writeInbound(buf);
+        }
+    }
+
+    private static void releaseAll(Queue<Object> queue) {
+        Object msg;
+        while ((msg = queue.poll()) != null) {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    // Write bytes in 64KB chunks, return the lengths of the records sent
+    private List<Integer> send(int bytes) {
+        for (int sent = 0; sent < bytes; sent += 65536) {
+            mClient.writeOutbound(Unpooled.wrappedBuffer(new byte[Math.min(65536, bytes - sent)]));
+        }
+        ByteBuf out = Unpooled.buffer();
+        ByteBuf buf;
+        while ((buf = mClient.readOutbound()) != null) {
+            out.writeBytes(buf);
+            buf.release();
+        }
+        List<Integer> records = new ArrayList<>();
+        while (out.readableBytes() >= 5) {
+            int length = out.getUnsignedShort(out.readerIndex() + 3);
+            records.add(length);
+            out.skipBytes(5 + length);
+        }
+        out.release();
+        return records;
+    }
+
+    private static int max(List<Integer> records) {
+        int max = 0;
+        for (int length : records) {
+            max = Math.max(max, length);
+        }
+        return max;
+    }
+
+    @Test
+    public void testGrowAfterThreshold() throws Exception {
+        List<Integer> burst = send((int) TlsRecordSizer.THRESHOLD_BYTES);
+        assertTrue(burst.size() > 1);
+        assertTrue(max(burst) <= TlsRecordSizer.SMALL_RECORD + OVERHEAD);
+
+        List<Integer> bulk = send(1024 * 1024);
+        assertTrue(max(bulk) > TlsRecordSizer.SMALL_RECORD + OVERHEAD);
+        assertTrue(max(bulk) <= TlsRecordSizer.LARGE_RECORD + OVERHEAD);
+    }
+
+    @Test
+    public void testResetAfterIdle() throws Exception {
+        send((int) TlsRecordSizer.THRESHOLD_BYTES + 65536);
+        assertTrue(max(send(65536)) > TlsRecordSizer.SMALL_RECORD + OVERHEAD);
+
+        Thread.sleep(TlsRecordSizer.IDLE_TIMEOUT_NANOS / 1000_000 + 100);
+        assertTrue(max(send(65536)) <= TlsRecordSizer.SMALL_RECORD + OVERHEAD);
+    }
+}
@@ -0,0 +1,48 @@
+package com.rex.proxy.common;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TransportTest {
+
+    @Test
+    public void testSelect() throws Exception {
+        assertEquals(Transport.NIO, Transport.select("nio"));
+        assertEquals(Transport.NIO, Transport.select("NIO"));
+        assertEquals(Transport.NIO, Transport.select("unknown"));
+
+        Transport preferred = Epoll.isAvailable() ? Transport.EPOLL : Transport.NIO;
+        assertEquals(preferred, Transport.select(null));
+        assertEquals(preferred, Transport.select("auto"));
+        assertEquals(preferred, Transport.select("epoll"));
+    }
+
+    @Test
+    public void testOfGroup() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(1);
+        assertEquals(Transport.NIO, Transport.of(group));
+        assertEquals(Transport.NIO, Transport.of(group.next()));
+        assertEquals(NioSocketChannel.class, Transport.of(group.next()).socketChannel());
+        group.shutdownGracefully();
+
+        if (Epoll.isAvailable()) {
+            group = Transport.EPOLL.newEventLoopGroup(1);
+            assertEquals(Transport.EPOLL, Transport.of(group));
+            assertEquals(Transport.EPOLL, Transport.of(group.next()));
+            group.shutdownGracefully();
+        }
+    }
+
+    @Test
+    public void testOfEmbeddedLoop() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        assertEquals(Transport.NIO, Transport.of(channel.eventLoop()));
+        channel.close();
+    }
+}
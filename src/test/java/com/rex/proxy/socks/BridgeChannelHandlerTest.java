@@ -3,12 +3,15 @@ package com.rex.proxy.socks;
 import com.rex.proxy.common.BridgeChannelHandler;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.embedded.EmbeddedChannel;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -69,6 +72,70 @@ public class BridgeChannelHandlerTest {
         outbound.close();
     }
 
+    @Test
+    public void testRefCount() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new BridgeChannelHandler(outbound));
+
+        ByteBuf data = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        assertEquals(1, data.refCnt());
+        inbound.writeInbound(data);
+
+        ByteBuf buf = outbound.readOutbound();
+        assertEquals(1, buf.refCnt());
+        buf.release();
+        assertEquals(0, data.refCnt());
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testOutputInactive() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        inbound.pipeline().addLast(new BridgeChannelHandler(outbound));
+        outbound.close();
+
+        ByteBuf data = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        inbound.writeInbound(data);
+        assertEquals(0, data.refCnt()); // Dropped and released
+
+        inbound.close();
+    }
+
+    @Test
+    public void testFlushOnReadComplete() throws Exception {
+        final AtomicInteger flushCount = new AtomicInteger();
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) throws Exception {
+                flushCount.incrementAndGet();
+                super.flush(ctx);
+            }
+        });
+        inbound.pipeline().addLast(new BridgeChannelHandler(outbound));
+
+        // Three reads in one read loop, only flush once
+        inbound.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()),
+                Unpooled.wrappedBuffer("World".getBytes()),
+                Unpooled.wrappedBuffer("!".getBytes()));
+        assertEquals(1, flushCount.get());
+
+        ByteBuf buf;
+        int count = 0;
+        while ((buf = outbound.readOutbound()) != null) {
+            count++;
+            buf.release();
+        }
+        assertEquals(3, count);
+
+        inbound.close();
+        outbound.close();
+    }
+
     @Test
     public void testCaughtException() throws Exception {
         EmbeddedChannel inbound = new EmbeddedChannel(); // ByteBuf
@@ -0,0 +1,112 @@
+package com.rex.proxy.utils;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upstream load of benchmarks, concurrent tunnels through a SOCKS proxy writing into a discarding sink
+ */
+public class TunnelLoad {
+
+    private static final Logger sLogger = LoggerFactory.getLogger(TunnelLoad.class);
+
+    /**
+     * @param socksPort Port of WslLocal on 127.0.0.1
+     * @return Total throughput in MB/s, 0 if not all the bytes received in time
+     */
+    public static double run(int socksPort, int tunnels, final long bytesPerTunnel) throws Exception {
+        final long total = tunnels * bytesPerTunnel;
+        final AtomicLong received = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(1);
+        EventLoopGroup sinkGroup = new NioEventLoopGroup(1);
+        Channel sink = new ServerBootstrap()
+                .group(sinkGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new Sink(received, total, done))
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+
+        final InetSocketAddress target = (InetSocketAddress) sink.localAddress();
+        final Proxy proxy = new Proxy(Proxy.Type.SOCKS, new InetSocketAddress("127.0.0.1", socksPort));
+        List<Thread> writers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < tunnels; i++) {
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[64 * 1024];
+                    try (Socket socket = new Socket(proxy)) {
+                        socket.connect(target);
+                        OutputStream os = socket.getOutputStream();
+                        for (long sent = 0; sent < bytesPerTunnel; sent += buffer.length) {
+                            os.write(buffer);
+                        }
+                        os.flush();
+                        // Keep open until all received, closing early may drop relayed data
+                        done.await(60, TimeUnit.SECONDS);
+                    } catch (Exception ex) {
+                        sLogger.warn("Writer failed - {}", ex.toString());
+                    }
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        boolean completed = done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - start;
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        sink.close().sync();
+        sinkGroup.shutdownGracefully().sync();
+
+        if (!completed) {
+            sLogger.warn("Timeout, received {} of {} bytes", received.get(), total);
+            return 0;
+        }
+        return received.get() / (1024.0 * 1024.0) / (elapsed / 1e9);
+    }
+
+    @ChannelHandler.Sharable
+    private static class Sink extends ChannelInboundHandlerAdapter {
+
+        private final AtomicLong mReceived;
+        private final long mTotal;
+        private final CountDownLatch mDone;
+
+        Sink(AtomicLong received, long total, CountDownLatch done) {
+            mReceived = received;
+            mTotal = total;
+            mDone = done;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (mReceived.addAndGet(((ByteBuf) msg).readableBytes()) >= mTotal) {
+                mDone.countDown();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -170,7 +170,7 @@ public class ConnectionPoolIntegrationTest {
 
                 if (firstChannel[0] != null && firstChannel[0].isActive()) {
                     // Release first connection
-                    poolManager.release(firstChannel[0], "reuse.example.com", 443);
+                    poolManager.release(firstChannel[0]);
 
                     // Wait a bit for release to complete
                     Thread.sleep(100);
@@ -0,0 +1,100 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PoolProbeHandlerTest {
+
+    private EmbeddedChannel mChannel;
+    private UpstreamChannelPool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mChannel = new EmbeddedChannel();
+        mPool = new UpstreamChannelPool(new WebSocketChannelPoolManager.UpstreamKey(new URI("ws://localhost/proxy"), null),
+                new Bootstrap().group(mChannel.eventLoop()), new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel ch) throws Exception {
+                    }
+                }, ChannelHealthChecker.ACTIVE, 10, 10, 1000, false);
+    }
+
+    @Test
+    public void testPingPong() throws Exception {
+        UpstreamBalancer.Upstream upstream = new UpstreamBalancer.Upstream(
+                new WebSocketChannelPoolManager.UpstreamKey(new URI("ws://localhost/proxy"), null));
+        mPool.balance(upstream);
+        PoolProbeHandler probe = new PoolProbeHandler(mPool, 1000, 100, 60000);
+        mChannel.pipeline().addLast(probe);
+        probe.pooled();
+
+        mChannel.advanceTimeBy(1, TimeUnit.SECONDS);
+        mChannel.runScheduledPendingTasks();
+        PingWebSocketFrame ping = mChannel.readOutbound();
+        assertTrue(ping != null);
+        ping.release();
+
+        // Pong consumed by probe, other frames pass through
+        assertFalse(mChannel.writeInbound(new PongWebSocketFrame()));
+        assertTrue(probe.rttNanos() > 0);
+        assertEquals(probe.rttNanos(), mPool.rttNanos());
+        assertEquals(probe.rttNanos(), upstream.rttNanos()); // Balancer fed by the probe
+        assertTrue(probe.isHealthy());
+        assertTrue(mChannel.writeInbound(new TextWebSocketFrame("data")));
+        TextWebSocketFrame data = mChannel.readInbound();
+        data.release();
+
+        // Leased connection is not probed
+        probe.leased();
+        mChannel.advanceTimeBy(1, TimeUnit.SECONDS);
+        mChannel.runScheduledPendingTasks();
+        assertNull(mChannel.readOutbound());
+        assertTrue(mChannel.isActive());
+        mChannel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testMissedProbe() throws Exception {
+        PoolProbeHandler probe = new PoolProbeHandler(mPool, 1000, 100, 60000);
+        mChannel.pipeline().addLast(probe);
+        probe.pooled();
+
+        mChannel.advanceTimeBy(1, TimeUnit.SECONDS);
+        mChannel.runScheduledPendingTasks();
+        PingWebSocketFrame ping = mChannel.readOutbound();
+        ping.release();
+        assertTrue(mChannel.isActive());
+
+        mChannel.advanceTimeBy(100, TimeUnit.MILLISECONDS);
+        mChannel.runScheduledPendingTasks();
+        assertFalse(mChannel.isActive());
+    }
+
+    @Test
+    public void testIdleTimeout() throws Exception {
+        PoolProbeHandler probe = new PoolProbeHandler(mPool, 1000, 100, 0);
+        mChannel.pipeline().addLast(probe);
+        probe.pooled();
+        assertFalse(probe.isHealthy());
+
+        mChannel.advanceTimeBy(1, TimeUnit.SECONDS);
+        mChannel.runScheduledPendingTasks();
+        assertFalse(mChannel.isActive());
+    }
+}
@@ -0,0 +1,116 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoop;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PoolWarmerTest {
+
+    private DefaultEventLoopGroup mGroup;
+    private Channel mServer;
+    private UpstreamChannelPool mPool;
+
+    @Before
+    public void setUp() throws Exception {
+        mGroup = new DefaultEventLoopGroup(1);
+        LocalAddress address = new LocalAddress("PoolWarmerTest");
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    protected void initChannel(LocalChannel ch) throws Exception {
+                        ch.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) throws Exception {
+                                ctx.writeAndFlush(new TextWebSocketFrame("{\"type\":\"hello\"}"));
+                            }
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+                                ReferenceCountUtil.release(msg);
+                            }
+                        });
+                    }
+                })
+                .bind(address)
+                .sync()
+                .channel();
+        Bootstrap bootstrap = new Bootstrap()
+                .group(mGroup)
+                .channel(LocalChannel.class)
+                .remoteAddress(address);
+        mPool = new UpstreamChannelPool(new WebSocketChannelPoolManager.UpstreamKey(new URI("ws://localhost/proxy"), null),
+                bootstrap, new AbstractChannelPoolHandler() {
+                    @Override
+                    public void channelCreated(Channel ch) throws Exception {
+                    }
+                }, ChannelHealthChecker.ACTIVE, 10, 10, 1000, false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPool.close();
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+    }
+
+    private void waitIdle(int idle) throws Exception {
+        for (int i = 0; i < 50 && mPool.gauge().idle != idle; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(idle, mPool.gauge().idle);
+    }
+
+    @Test
+    public void testWarmMin() throws Exception {
+        EventLoop loop = mGroup.next();
+        mPool.warm(loop, null, 2, 4);
+        waitIdle(2);
+        assertEquals(2, mPool.gauge().created);
+
+        // Warm connection passed hello, ready for tunnel
+        Channel ch = mPool.acquire(loop).sync().getNow();
+        assertFalse(UpstreamChannelPool.isFresh(ch));
+        assertTrue(ch.isActive());
+        mPool.release(ch);
+    }
+
+    @Test
+    public void testWarmByDemand() throws Exception {
+        EventLoop loop = mGroup.next();
+        mPool.warm(loop, null, 0, 4);
+
+        // Three concurrent leases, warmer keep the same number idle
+        Channel[] leased = new Channel[3];
+        for (int i = 0; i < leased.length; i++) {
+            leased[i] = mPool.acquire(loop).sync().getNow();
+        }
+        waitIdle(3);
+
+        for (Channel ch : leased) {
+            mPool.release(ch);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.rex.proxy.websocket;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamBalancerTest {
+
+    private UpstreamBalancer mBalancer;
+    private WslLocal.Configuration mConfig;
+
+    @Before
+    public void setUp() throws Exception {
+        mBalancer = new UpstreamBalancer();
+        mConfig = new WslLocal.Configuration();
+        mConfig.proxyUri = new URI("ws://node1/proxy");
+        mConfig.proxyUris = Arrays.asList(new URI("ws://node2/proxy"), new URI("ws://node3/proxy"));
+        mConfig.proxyUid = "secret";
+    }
+
+    @Test
+    public void testSingleUpstream() throws Exception {
+        WslLocal.Configuration config = new WslLocal.Configuration();
+        config.proxyUri = new URI("ws://node1/proxy");
+        assertEquals(1, mBalancer.upstreams(config).size());
+        assertSame(mBalancer.select(config, "a.example.com"), mBalancer.select(config, "b.example.com"));
+    }
+
+    @Test
+    public void testLeastOutstanding() throws Exception {
+        assertEquals(3, mBalancer.upstreams(mConfig).size());
+
+        // Each tunnel goes to the upstream with least outstanding
+        for (int i = 0; i < 6; i++) {
+            mBalancer.select(mConfig, "example.com").started();
+        }
+        for (UpstreamBalancer.Upstream upstream : mBalancer.upstreams(mConfig)) {
+            assertEquals(2, upstream.outstanding());
+        }
+
+        UpstreamBalancer.Upstream node2 = mBalancer.upstreams(mConfig).get(1);
+        node2.finished();
+        assertSame(node2, mBalancer.select(mConfig, "example.com"));
+    }
+
+    @Test
+    public void testLowestRtt() throws Exception {
+        mConfig.balancePolicy = "rtt";
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        UpstreamBalancer.Upstream node2 = mBalancer.upstreams(mConfig).get(1);
+        UpstreamBalancer.Upstream node3 = mBalancer.upstreams(mConfig).get(2);
+        node1.recordRtt(30000000);
+        node2.recordRtt(10000000);
+        node3.recordRtt(20000000);
+        assertSame(node2, mBalancer.select(mConfig, "example.com"));
+
+        // Loaded fast node weighted by outstanding tunnels
+        node2.started();
+        node2.started();
+        assertSame(node3, mBalancer.select(mConfig, "example.com"));
+    }
+
+    @Test
+    public void testEject() throws Exception {
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        for (int i = 0; i < 3; i++) {
+            node1.failed();
+        }
+        assertFalse(node1.isAvailable(System.currentTimeMillis()));
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(node1, mBalancer.select(mConfig, "example.com"));
+        }
+
+        // Success after re-probe restores
+        node1.succeeded();
+        assertTrue(node1.isAvailable(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testAllOpen() throws Exception {
+        for (UpstreamBalancer.Upstream upstream : mBalancer.upstreams(mConfig)) {
+            for (int i = 0; i < 3; i++) {
+                upstream.failed();
+            }
+            assertTrue(upstream.isOpen());
+        }
+        assertFalse(mBalancer.isAvailable(mConfig));
+        assertNull(mBalancer.select(mConfig, "example.com"));
+    }
+
+    @Test
+    public void testHalfOpen() throws Exception {
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        for (int i = 0; i < 3; i++) {
+            node1.failed();
+        }
+
+        // After backoff only one trial tunnel admitted
+        long later = System.currentTimeMillis() + 10 * 60 * 1000;
+        assertTrue(node1.admit(later));
+        assertFalse(node1.admit(later));
+        assertFalse(node1.isAvailable(later));
+
+        // Failed trial opens the breaker again
+        node1.failed();
+        assertTrue(node1.isOpen());
+        assertFalse(node1.isAvailable(System.currentTimeMillis()));
+        assertTrue(node1.admit(later));
+
+        // Abandoned trial lets another one try
+        node1.abandoned();
+        assertTrue(node1.admit(later));
+    }
+
+    @Test
+    public void testConnectTimeout() throws Exception {
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        assertEquals(15000, node1.connectTimeoutMillis(15000));
+
+        // Fast upstream clamped by the floor
+        node1.recordRtt(1000000);
+        assertEquals(2000, node1.connectTimeoutMillis(15000));
+
+        // Slow upstream clamped by the max
+        UpstreamBalancer.Upstream node2 = mBalancer.upstreams(mConfig).get(1);
+        node2.recordRtt(10000000000L);
+        assertEquals(15000, node2.connectTimeoutMillis(15000));
+    }
+
+    @Test
+    public void testConsistentHash() throws Exception {
+        mConfig.balanceHash = true;
+        UpstreamBalancer.Upstream upstream = mBalancer.select(mConfig, "cache.example.com");
+        for (int i = 0; i < 10; i++) {
+            assertSame(upstream, mBalancer.select(mConfig, "cache.example.com"));
+        }
+
+        // Move to another upstream only when ejected
+        for (int i = 0; i < 3; i++) {
+            upstream.failed();
+        }
+        UpstreamBalancer.Upstream fallback = mBalancer.select(mConfig, "cache.example.com");
+        assertNotSame(upstream, fallback);
+        assertSame(fallback, mBalancer.select(mConfig, "cache.example.com"));
+    }
+
+    @Test
+    public void testConnectLatency() throws Exception {
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        EmbeddedChannel channel = new EmbeddedChannel();
+        ControlMessage response = new ControlMessage();
+        response.type = "response";
+        response.action = "success";
+
+        // Too few samples to hedge
+        channel.pipeline().addLast(mBalancer.newTracker(node1));
+        channel.writeInbound(response);
+        assertNull(channel.pipeline().get(UpstreamBalancer.Tracker.class));
+        assertEquals(0, mBalancer.connectLatency(95));
+
+        for (int i = 0; i < 100; i++) {
+            channel.pipeline().addLast(mBalancer.newTracker(node1));
+            channel.writeInbound(response);
+        }
+        assertTrue(mBalancer.connectLatency(95) > 0);
+        assertTrue(mBalancer.connectLatency(50) <= mBalancer.connectLatency(95));
+        // Connect time includes the target, never taken as the round trip to upstream
+        assertEquals(0, node1.rttNanos());
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testTrackerFailure() throws Exception {
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        for (int i = 0; i < 3; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(mBalancer.newTracker(node1));
+            channel.close();
+        }
+        assertFalse(node1.isAvailable(System.currentTimeMillis()));
+
+        // Cancelled tunnel is not a failure
+        UpstreamBalancer.Upstream node2 = mBalancer.upstreams(mConfig).get(1);
+        for (int i = 0; i < 3; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(mBalancer.newTracker(node2));
+            UpstreamBalancer.Tracker.cancel(channel);
+            channel.close();
+        }
+        assertTrue(node2.isAvailable(System.currentTimeMillis()));
+    }
+
+    @Test
+    public void testTrackerResponse() throws Exception {
+        // Upstream rejecting every tunnel opens the breaker
+        UpstreamBalancer.Upstream node1 = mBalancer.upstreams(mConfig).get(0);
+        ControlMessage reject = new ControlMessage();
+        reject.type = "response";
+        reject.action = "reject";
+        for (int i = 0; i < 3; i++) {
+            EmbeddedChannel channel = new EmbeddedChannel(mBalancer.newTracker(node1));
+            channel.writeInbound(reject);
+            channel.finishAndReleaseAll();
+        }
+        assertTrue(node1.isOpen());
+
+        // Unreachable target neither fails nor closes the breaker
+        UpstreamBalancer.Upstream node2 = mBalancer.upstreams(mConfig).get(1);
+        for (int i = 0; i < 3; i++) {
+            node2.failed();
+        }
+        long later = System.currentTimeMillis() + 10 * 60 * 1000;
+        assertTrue(node2.admit(later));
+        ControlMessage failure = new ControlMessage();
+        failure.type = "response";
+        failure.action = "failure";
+        EmbeddedChannel channel = new EmbeddedChannel(mBalancer.newTracker(node2));
+        channel.writeInbound(failure);
+        channel.finishAndReleaseAll();
+        assertTrue(node2.isOpen());
+        assertTrue(node2.admit(later)); // Trial released for the next tunnel
+        assertEquals(0, mBalancer.connectLatency(50));
+    }
+}
@@ -0,0 +1,134 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.ChannelHealthChecker;
+import io.netty.util.concurrent.Future;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamChannelPoolTest {
+
+    private EventLoopGroup mGroup;
+    private Channel mServer;
+    private Bootstrap mBootstrap;
+    private WebSocketChannelPoolManager.UpstreamKey mKey;
+
+    @Before
+    public void setUp() throws Exception {
+        mGroup = new DefaultEventLoopGroup(1);
+        LocalAddress address = new LocalAddress("UpstreamChannelPoolTest");
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(LocalServerChannel.class)
+                .childHandler(new ChannelInboundHandlerAdapter())
+                .bind(address)
+                .sync()
+                .channel();
+        mBootstrap = new Bootstrap()
+                .group(mGroup)
+                .channel(LocalChannel.class)
+                .remoteAddress(address);
+        mKey = new WebSocketChannelPoolManager.UpstreamKey(new URI("ws://localhost/proxy"), null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+    }
+
+    private UpstreamChannelPool newPool(int maxConnections, long acquireTimeoutMillis, boolean failFast) {
+        return new UpstreamChannelPool(mKey, mBootstrap, new AbstractChannelPoolHandler() {
+            @Override
+            public void channelCreated(Channel ch) throws Exception {
+            }
+        }, ChannelHealthChecker.ACTIVE, maxConnections, 10, acquireTimeoutMillis, failFast);
+    }
+
+    // Gauges are updated by the acquire listener of the pool, may run after the waiter woke up
+    private static void waitPending(UpstreamChannelPool pool, int pending) throws Exception {
+        for (int i = 0; i < 50 && pool.gauge().pending != pending; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(pending, pool.gauge().pending);
+    }
+
+    @Test
+    public void testFailFast() throws Exception {
+        UpstreamChannelPool pool = newPool(1, 1000, true);
+
+        Future<Channel> first = pool.acquire(mGroup.next()).sync();
+        Future<Channel> second = pool.acquire(mGroup.next());
+        assertTrue(second.isDone());
+        assertFalse(second.isSuccess());
+
+        waitPending(pool, 0);
+        WebSocketChannelPoolManager.PoolGauge gauge = pool.gauge();
+        assertEquals(1, gauge.leased);
+        assertEquals(0, gauge.pending);
+        assertEquals(1, gauge.created);
+        assertEquals(1, gauge.failed);
+
+        // Reuse the released channel
+        pool.release(first.getNow());
+        for (int i = 0; i < 50 && pool.gauge().leased != 0; i++) {
+            Thread.sleep(10);
+        }
+        Future<Channel> third = pool.acquire(mGroup.next()).sync();
+        assertSame(first.getNow(), third.getNow());
+        assertEquals(1, pool.gauge().created);
+
+        pool.close();
+    }
+
+    @Test
+    public void testWaitTimeout() throws Exception {
+        UpstreamChannelPool pool = newPool(1, 100, false);
+
+        pool.acquire(mGroup.next()).sync();
+        Future<Channel> second = pool.acquire(mGroup.next());
+        assertFalse(second.isDone());
+        waitPending(pool, 1);
+
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertTrue(second.cause() instanceof TimeoutException);
+        waitPending(pool, 0);
+        assertEquals(1, pool.gauge().failed);
+
+        pool.close();
+    }
+
+    @Test
+    public void testWaitRelease() throws Exception {
+        UpstreamChannelPool pool = newPool(1, 5000, false);
+
+        Future<Channel> first = pool.acquire(mGroup.next()).sync();
+        Future<Channel> second = pool.acquire(mGroup.next());
+        pool.release(first.getNow());
+
+        assertTrue(second.await(5, TimeUnit.SECONDS));
+        assertSame(first.getNow(), second.getNow());
+        assertEquals(1, pool.gauge().leased);
+
+        pool.close();
+    }
+}
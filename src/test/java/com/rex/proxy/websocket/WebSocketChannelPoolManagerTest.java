@@ -1,14 +1,25 @@
 package com.rex.proxy.websocket;
 
 import com.rex.proxy.WslLocal;
+import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.Future;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -49,7 +60,7 @@ public class WebSocketChannelPoolManagerTest {
     public void testSingletonInstance() {
         WebSocketChannelPoolManager instance1 = WebSocketChannelPoolManager.getInstance();
         WebSocketChannelPoolManager instance2 = WebSocketChannelPoolManager.getInstance();
-        assertSame("Should return same singleton instance", instance1, instance2);
+        assertSame("Should return same default instance", instance1, instance2);
     }
 
     @Test
@@ -126,7 +137,7 @@ public class WebSocketChannelPoolManagerTest {
     public void testReleaseNullChannel() {
         // Should not throw exception when releasing null channel
         try {
-            poolManager.release(null, "example.com", 443);
+            poolManager.release(null);
         } catch (Exception e) {
             fail("Should handle null channel gracefully: " + e.getMessage());
         }
@@ -139,7 +150,7 @@ public class WebSocketChannelPoolManagerTest {
 
         // Should handle inactive channel gracefully
         try {
-            poolManager.release(inactiveChannel, "example.com", 443);
+            poolManager.release(inactiveChannel);
         } catch (Exception e) {
             fail("Should handle inactive channel gracefully: " + e.getMessage());
         }
@@ -192,4 +203,142 @@ public class WebSocketChannelPoolManagerTest {
             fail("Shutdown should complete without exception: " + e.getMessage());
         }
     }
+
+    @Test
+    public void testPoolPerUpstream() throws Exception {
+        WebSocketChannelPoolManager manager = new WebSocketChannelPoolManager();
+        localChannel.pipeline().addLast(new ChannelInboundHandlerAdapter());
+
+        // Any destination through the same upstream share one pool
+        manager.acquire("host1.example.com", 443, localChannel.pipeline().firstContext(), config);
+        manager.acquire("host2.example.com", 80, localChannel.pipeline().firstContext(), config);
+        assertEquals(1, manager.poolCount());
+
+        // Default port is the same upstream
+        WslLocal.Configuration defaultPort = new WslLocal.Configuration();
+        defaultPort.proxyUri = new URI("ws://localhost/proxy");
+        defaultPort.proxyUid = config.proxyUid;
+        WslLocal.Configuration explicitPort = new WslLocal.Configuration();
+        explicitPort.proxyUri = new URI("ws://localhost:80/proxy");
+        explicitPort.proxyUid = config.proxyUid;
+        manager.acquire("host1.example.com", 443, localChannel.pipeline().firstContext(), defaultPort);
+        manager.acquire("host1.example.com", 443, localChannel.pipeline().firstContext(), explicitPort);
+        assertEquals(2, manager.poolCount());
+
+        // Different credential never share connections
+        WslLocal.Configuration otherUid = new WslLocal.Configuration();
+        otherUid.proxyUri = config.proxyUri;
+        otherUid.proxyUid = "other-secret";
+        manager.acquire("host1.example.com", 443, localChannel.pipeline().firstContext(), otherUid);
+        assertEquals(3, manager.poolCount());
+
+        manager.shutdown();
+        assertEquals(0, manager.poolCount());
+    }
+
+    @Test
+    public void testShardPerEventLoop() throws Exception {
+        WebSocketChannelPoolManager manager = new WebSocketChannelPoolManager();
+        localChannel.pipeline().addLast(new ChannelInboundHandlerAdapter());
+
+        // Local channels on the same event loop share the shard
+        manager.acquire("host1.example.com", 443, localChannel.pipeline().firstContext(), config);
+        manager.acquire("host2.example.com", 443, localChannel.pipeline().firstContext(), config);
+        assertEquals(1, manager.shardCount(config));
+
+        // Local channel on another event loop gets its own shard of the same upstream
+        EmbeddedChannel otherLoop = new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+        manager.acquire("host1.example.com", 443, otherLoop.pipeline().firstContext(), config);
+        assertEquals(2, manager.shardCount(config));
+        assertEquals(1, manager.poolCount());
+        assertEquals(1, manager.gauges().size());
+
+        otherLoop.finishAndReleaseAll();
+        manager.shutdown();
+        assertEquals(0, manager.shardCount(config));
+    }
+
+    @Test
+    public void testShare() {
+        int total = 0;
+        for (int i = 0; i < 16; i++) {
+            int share = WebSocketChannelPoolManager.share(10, 16, i);
+            assertEquals((i < 10) ? 1 : 0, share);
+            total += share;
+        }
+        assertEquals(10, total);
+        assertEquals(3, WebSocketChannelPoolManager.share(10, 4, 1));
+        assertEquals(2, WebSocketChannelPoolManager.share(10, 4, 2));
+    }
+
+    @Test
+    public void testMaxConnectionsAcrossShards() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        Channel server = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        // Accept only, never answer the WebSocket handshake
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+        WslLocal.Configuration limited = new WslLocal.Configuration();
+        limited.proxyUri = new URI("ws://127.0.0.1:" + ((InetSocketAddress) server.localAddress()).getPort() + "/proxy");
+        limited.poolMaxConnections = 2;
+        WebSocketChannelPoolManager manager = new WebSocketChannelPoolManager();
+
+        // More event loops than connections, tunnels on every loop
+        List<Channel> locals = new ArrayList<>();
+        List<Future<Channel>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Channel local = new NioSocketChannel();
+            local.pipeline().addLast(new ChannelInboundHandlerAdapter());
+            group.next().register(local).sync();
+            locals.add(local);
+            futures.add(manager.acquire("host" + i + ".example.com", 443, local.pipeline().firstContext(), limited));
+        }
+        Thread.sleep(500);
+
+        int acquired = 0;
+        for (Future<Channel> future : futures) {
+            acquired += (future.isSuccess()) ? 1 : 0;
+        }
+        WebSocketChannelPoolManager.PoolGauge gauge = manager.gauges().get(0);
+        assertEquals(2, acquired);
+        assertEquals(2, gauge.created);
+        assertEquals(2, gauge.leased);
+        assertEquals(6, gauge.pending);
+        assertEquals(2, manager.shardCount(limited));
+
+        // Released connection is reused by a waiting tunnel, never a new one
+        for (Future<Channel> future : futures) {
+            if (future.isSuccess()) {
+                manager.release(future.getNow());
+            }
+        }
+        Thread.sleep(500);
+        gauge = manager.gauges().get(0);
+        assertEquals(2, gauge.created);
+        assertEquals(2, gauge.leased);
+
+        manager.shutdown();
+        for (Channel local : locals) {
+            local.close();
+        }
+        server.close().sync();
+        group.shutdownGracefully().sync();
+    }
+
+    @Test
+    public void testManagerOfLocalChannel() {
+        assertSame(WebSocketChannelPoolManager.getInstance(), WebSocketChannelPoolManager.of(localChannel));
+
+        WebSocketChannelPoolManager manager = new WebSocketChannelPoolManager();
+        localChannel.attr(WebSocketChannelPoolManager.ATTR_MANAGER).set(manager);
+        assertSame(manager, WebSocketChannelPoolManager.of(localChannel));
+    }
 }
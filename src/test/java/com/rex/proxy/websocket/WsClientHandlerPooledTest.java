@@ -2,18 +2,22 @@ package com.rex.proxy.websocket;
 
 import com.google.gson.Gson;
 import com.rex.proxy.WslLocal;
+import com.rex.proxy.websocket.control.ControlBinaryFormat;
 import com.rex.proxy.websocket.control.ControlMessage;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.net.URI;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
@@ -248,4 +252,113 @@ public class WsClientHandlerPooledTest {
 
         testChannel.close();
     }
+
+    @Test
+    public void testOptimisticRelay() {
+        WsClientHandler handler = new WsClientHandler(
+                localChannel,
+                "www.example.com",
+                443,
+                null,
+                true  // isPooled
+        ).optimistic(true);
+
+        EmbeddedChannel testChannel = new EmbeddedChannel();
+        WsProxyControlCodec.select(testChannel, WsProxyControlCodec.SUBPROTOCOL_BINARY);
+        testChannel.pipeline().addLast(new WsProxyControlCodec(), handler);
+
+        BinaryWebSocketFrame frame = testChannel.readOutbound();
+        assertNotNull("Should send connect", frame);
+        assertEquals("connect", ControlBinaryFormat.decode(frame.content()).action);
+        frame.release();
+
+        // Relay ready before server response
+        assertNotNull(testChannel.pipeline().get(WsProxyWsToRaw.class));
+        assertNotNull(localChannel.pipeline().get(WsProxyRawToWs.class));
+
+        // Early data follow the connect request
+        localChannel.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()));
+        frame = testChannel.readOutbound();
+        assertNotNull("Should send early data", frame);
+        assertEquals(ControlBinaryFormat.Opcode.DATA, ControlBinaryFormat.opcode(frame.content()));
+        frame.release();
+
+        ControlMessage response = new ControlMessage();
+        response.type = "response";
+        response.action = "success";
+        testChannel.writeInbound(new BinaryWebSocketFrame(ControlBinaryFormat.encode(testChannel.alloc(), response)));
+        assertNull("Handler should remove itself", testChannel.pipeline().get(WsClientHandler.class));
+        assertTrue(localChannel.isActive());
+
+        testChannel.close();
+    }
+
+    @Test
+    public void testOptimisticFailureClosesLocal() {
+        WsClientHandler handler = new WsClientHandler(
+                localChannel,
+                "www.example.com",
+                443,
+                null,
+                true  // isPooled
+        ).optimistic(true);
+
+        EmbeddedChannel testChannel = new EmbeddedChannel();
+        WsProxyControlCodec.select(testChannel, WsProxyControlCodec.SUBPROTOCOL_BINARY);
+        testChannel.pipeline().addLast(new WsProxyControlCodec(), handler);
+        ((BinaryWebSocketFrame) testChannel.readOutbound()).release();
+
+        ControlMessage response = new ControlMessage();
+        response.type = "response";
+        response.action = "failure";
+        testChannel.writeInbound(new BinaryWebSocketFrame(ControlBinaryFormat.encode(testChannel.alloc(), response)));
+        assertFalse("Local socket should close", localChannel.isActive());
+
+        testChannel.close();
+    }
+
+    @Test
+    public void testOptimisticNeedsBinaryControl() {
+        WsClientHandler handler = new WsClientHandler(
+                localChannel,
+                "www.example.com",
+                443,
+                null,
+                true  // isPooled
+        ).optimistic(true);
+
+        // Server without proxy2b may drop the early data, wait for the response
+        EmbeddedChannel testChannel = new EmbeddedChannel(new WsProxyControlCodec(), handler);
+        readOutbound(testChannel);
+        assertNull(testChannel.pipeline().get(WsProxyWsToRaw.class));
+
+        testChannel.close();
+    }
+
+    @Test
+    public void testHedgeGate() {
+        AtomicBoolean gate = new AtomicBoolean();
+        ControlMessage response = new ControlMessage();
+        response.type = "response";
+        response.action = "success";
+
+        // First success passes the gate and relays
+        EmbeddedChannel first = new EmbeddedChannel(new WsProxyControlCodec(),
+                new WsClientHandler(localChannel, "www.example.com", 443, null, true).gate(gate));
+        readOutbound(first);
+        first.writeInbound(new TextWebSocketFrame(new Gson().toJson(response)));
+        assertTrue(gate.get());
+        assertNotNull(first.pipeline().get(WsProxyWsToRaw.class));
+        assertTrue(first.isActive());
+
+        // Later success of the other attempt closes its WebSocket
+        EmbeddedChannel second = new EmbeddedChannel(new WsProxyControlCodec(),
+                new WsClientHandler(localChannel, "www.example.com", 443, null, true).gate(gate));
+        readOutbound(second);
+        second.writeInbound(new TextWebSocketFrame(new Gson().toJson(response)));
+        assertNull(second.pipeline().get(WsProxyWsToRaw.class));
+        assertFalse(second.isActive());
+
+        first.close();
+    }
 }
@@ -0,0 +1,108 @@
+package com.rex.proxy.websocket;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class WsClientSslTest {
+
+    private EventLoopGroup mGroup;
+    private Channel mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        SelfSignedCertificate ssc = new SelfSignedCertificate();
+        // Session ID resumption of TLS 1.2 is settled once the handshake completes
+        final SslContext serverContext = SslContextBuilder.forServer(ssc.key(), ssc.cert())
+                .protocols("TLSv1.2")
+                .build();
+        mGroup = new NioEventLoopGroup(1);
+        mServer = new ServerBootstrap()
+                .group(mGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        ch.pipeline().addLast(serverContext.newHandler(ch.alloc()));
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close().sync();
+        mGroup.shutdownGracefully().sync();
+    }
+
+    private void handshake(final WsClientSsl ssl) throws Exception {
+        final SslHandler[] handler = new SslHandler[1];
+        Channel ch = new Bootstrap()
+                .group(mGroup)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        handler[0] = ssl.newHandler(ch);
+                        ch.pipeline().addLast(handler[0], new ChannelInboundHandlerAdapter());
+                    }
+                })
+                .connect(mServer.localAddress())
+                .sync()
+                .channel();
+        handler[0].handshakeFuture().sync();
+        ch.close().sync();
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        URI uri = new URI("wss://shared.test:8443/path");
+        WsClientSsl ssl = WsClientSsl.of(uri, false, null);
+        assertSame(ssl, WsClientSsl.of(new URI("wss://SHARED.test:8443/other"), false, null));
+        assertNotSame(ssl, WsClientSsl.of(uri, true, null));
+        assertNotSame(ssl, WsClientSsl.of(new URI("wss://shared.test:9443"), false, null));
+        assertNull(WsClientSsl.of(new URI("ws://shared.test:8443"), false, null));
+    }
+
+    @Test
+    public void testResumed() throws Exception {
+        int port = ((InetSocketAddress) mServer.localAddress()).getPort();
+        WsClientSsl ssl = WsClientSsl.of(new URI("wss://127.0.0.1:" + port), false, null);
+
+        handshake(ssl);
+        Thread.sleep(10); // Creation time of a full handshake session is never earlier than its start
+        handshake(ssl);
+        handshake(ssl);
+
+        WsClientSsl.SessionGauge gauge = ssl.gauge();
+        assertEquals(3, gauge.handshakes);
+        assertEquals(2, gauge.resumed);
+        assertEquals(66, gauge.hitRate());
+        assertTrue(WsClientSsl.gauges().toString().contains("127.0.0.1:" + port));
+    }
+}
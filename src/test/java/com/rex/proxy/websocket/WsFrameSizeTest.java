@@ -0,0 +1,68 @@
+package com.rex.proxy.websocket;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WsFrameSizeTest {
+
+    @Test
+    public void testLimit() throws Exception {
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.limit(null));
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.limit(1024));
+        assertEquals(1 << 20, WsFrameSize.limit(1 << 20));
+        assertEquals(WsFrameSize.MAX, WsFrameSize.limit(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testNegotiate() throws Exception {
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.negotiate(null, 1 << 20));
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.negotiate("invalid", 1 << 20));
+        assertEquals(1 << 18, WsFrameSize.negotiate(String.valueOf(1 << 18), 1 << 20));
+        assertEquals(1 << 20, WsFrameSize.negotiate(String.valueOf(1 << 22), 1 << 20));
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.negotiate(String.valueOf(1 << 22), WsFrameSize.DEFAULT));
+    }
+
+    @Test
+    public void testServerHandler() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new WsFrameSize.ServerHandler(1 << 20));
+        channel.writeOutbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS));
+
+        FullHttpResponse response = channel.readOutbound();
+        assertEquals(String.valueOf(1 << 20), response.headers().get(WsFrameSize.HEADER));
+        assertNull(channel.pipeline().get(WsFrameSize.ServerHandler.class));
+        response.release();
+        channel.close();
+    }
+
+    @Test
+    public void testClientHandler() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new WsFrameSize.ClientHandler(1 << 20));
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.of(channel));
+
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS);
+        response.headers().set(WsFrameSize.HEADER, 1 << 18);
+        channel.writeInbound(response);
+
+        assertEquals(1 << 18, WsFrameSize.of(channel));
+        assertNull(channel.pipeline().get(WsFrameSize.ClientHandler.class));
+        ((FullHttpResponse) channel.readInbound()).release();
+        channel.close();
+    }
+
+    @Test
+    public void testClientHandlerLegacyServer() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new WsFrameSize.ClientHandler(1 << 20));
+        channel.writeInbound(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS));
+
+        assertEquals(WsFrameSize.DEFAULT, WsFrameSize.of(channel));
+        ((FullHttpResponse) channel.readInbound()).release();
+        channel.close();
+    }
+}
@@ -5,15 +5,24 @@ import com.rex.proxy.WslServer;
 import com.rex.proxy.websocket.control.ControlAuthBuilder;
 import com.rex.proxy.websocket.control.ControlMessage;
 import com.rex.proxy.websocket.control.WsProxyControlCodec;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import io.netty.util.AttributeKey;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.net.InetSocketAddress;
 import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -70,6 +79,33 @@ public class WsProxyControlHandlerAuthTest {
         channel.writeInbound(new TextWebSocketFrame(gson.toJson(msg)));
     }
 
+    /**
+     * Helper: Wait for the response written by the connect listener from the worker thread
+     */
+    private ControlMessage awaitOutbound() throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            channel.runPendingTasks();
+            ControlMessage msg = readOutbound();
+            if (msg != null) {
+                return msg;
+            }
+            Thread.sleep(10);
+        }
+        return null;
+    }
+
+    private void authorize() {
+        ControlMessage hello = readOutbound();
+        ControlMessage authMsg = new ControlMessage();
+        authMsg.type = "authorization";
+        authMsg.token = new ControlAuthBuilder()
+                .setSecret(config.proxyUid)
+                .setNonce(Base64.getDecoder().decode(hello.token))
+                .build();
+        writeInbound(authMsg);
+        readOutbound(); // Read authorized response
+    }
+
     @Test
     public void testHelloMessageSentOnConnection() {
         // When handler is added, it should send hello message
@@ -263,7 +299,20 @@ public class WsProxyControlHandlerAuthTest {
     }
 
     @Test
-    public void testMultipleConnectsOnSameAuthorizedConnection() {
+    public void testMultipleConnectsOnSameAuthorizedConnection() throws Exception {
+        // Reachable destination, a failed connect closes the WebSocket
+        Channel server = new ServerBootstrap()
+                .group(workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+
         // Authorize once
         ControlMessage hello = readOutbound();
         byte[] nonce = Base64.getDecoder().decode(hello.token);
@@ -285,14 +334,57 @@ public class WsProxyControlHandlerAuthTest {
             ControlMessage connectMsg = new ControlMessage();
             connectMsg.type = "request";
             connectMsg.action = "connect";
-            connectMsg.address = "host" + i + ".example.com";
-            connectMsg.port = 443;
+            connectMsg.address = "127.0.0.1";
+            connectMsg.port = ((InetSocketAddress) server.localAddress()).getPort();
 
             writeInbound(connectMsg);
+            assertEquals("success", awaitOutbound().action);
 
             // Should all be accepted (authorized connection)
             Boolean stillAuthorized = channel.attr(ATTR_AUTHORIZED).get();
             assertTrue("Should remain authorized for request " + i, stillAuthorized);
         }
+        server.close().sync();
+    }
+
+    @Test
+    public void testReuseClosesPreviousTunnel() throws Exception {
+        final List<Channel> accepted = new CopyOnWriteArrayList<>();
+        Channel server = new ServerBootstrap()
+                .group(workerGroup)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) throws Exception {
+                        accepted.add(ch);
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+        try {
+            authorize();
+            ControlMessage connectMsg = new ControlMessage();
+            connectMsg.type = "request";
+            connectMsg.action = "connect";
+            connectMsg.address = "127.0.0.1";
+            connectMsg.port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            writeInbound(connectMsg);
+            assertEquals("success", awaitOutbound().action);
+
+            // Next tunnel on the same WebSocket, the raw socket of previous one must not feed it
+            writeInbound(connectMsg);
+            assertEquals("success", awaitOutbound().action);
+            for (int i = 0; i < 100 && accepted.size() < 2; i++) {
+                Thread.sleep(10); // Accepted after client connected
+            }
+            assertEquals(2, accepted.size());
+            assertTrue("Previous tunnel closed", accepted.get(0).closeFuture().await(5, TimeUnit.SECONDS));
+            assertTrue("Current tunnel kept", accepted.get(1).isActive());
+            assertNotNull(channel.pipeline().get(WsProxyWsToRaw.class));
+        } finally {
+            server.close().sync();
+        }
     }
 }
@@ -9,6 +9,7 @@ import org.junit.Test;
 import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -71,6 +72,28 @@ public class WsProxyRawToWsTest {
         outbound.close();
     }
 
+    @Test
+    public void testNegotiatedFrameSize() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        WsFrameSize.set(outbound, 1 << 20);
+        WsProxyRawToWs proxy = new WsProxyRawToWs(outbound);
+
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(Unpooled.wrappedBuffer(new byte[(1 << 20) + 1]));
+
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals(1 << 20, frame.content().readableBytes());
+        frame.release();
+        frame = outbound.readOutbound();
+        assertEquals(1, frame.content().readableBytes());
+        frame.release();
+        assertNull(outbound.readOutbound());
+
+        inbound.close();
+        outbound.close();
+    }
+
     @Test
     public void testRefCount() throws Exception {
         EmbeddedChannel inbound = new EmbeddedChannel();
@@ -91,6 +114,99 @@ public class WsProxyRawToWsTest {
         outbound.close();
     }
 
+    @Test
+    public void testCoalesceInReadLoop() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        WsProxyRawToWs proxy = new WsProxyRawToWs(outbound, 1024, 0);
+
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(
+                Unpooled.wrappedBuffer("Hello".getBytes()),
+                Unpooled.wrappedBuffer("World".getBytes()),
+                Unpooled.wrappedBuffer("!".getBytes()));
+
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals("HelloWorld!", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertNull(outbound.readOutbound());
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testCoalesceThreshold() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        WsProxyRawToWs proxy = new WsProxyRawToWs(outbound, 8, TimeUnit.SECONDS.toMicros(10));
+
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()));
+        assertNull(outbound.readOutbound());
+
+        inbound.writeInbound(Unpooled.wrappedBuffer("World".getBytes()));
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals("HelloWorld", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+
+        // Large read bypass the coalescing
+        inbound.writeInbound(Unpooled.wrappedBuffer("HelloWorld!".getBytes()));
+        frame = outbound.readOutbound();
+        assertEquals("HelloWorld!", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertNull(outbound.readOutbound());
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testCoalesceDelay() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        WsProxyRawToWs proxy = new WsProxyRawToWs(outbound, 1024, 500);
+
+        // Only the advanced time may expire the delay
+        inbound.freezeTime();
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()));
+        inbound.writeInbound(Unpooled.wrappedBuffer("World".getBytes()));
+        assertNull(outbound.readOutbound());
+
+        inbound.advanceTimeBy(1, TimeUnit.MILLISECONDS);
+        inbound.runScheduledPendingTasks();
+
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals("HelloWorld", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertNull(outbound.readOutbound());
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testCoalesceFlushOnRemoved() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel();
+        WsProxyRawToWs proxy = new WsProxyRawToWs(outbound, 1024, TimeUnit.SECONDS.toMicros(10));
+
+        ByteBuf data = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(data);
+        assertNull(outbound.readOutbound());
+
+        inbound.pipeline().remove(proxy);
+        BinaryWebSocketFrame frame = outbound.readOutbound();
+        assertEquals("HelloWorld!", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertEquals(0, data.refCnt());
+
+        inbound.close();
+        outbound.close();
+    }
+
     @Test
     public void testCaughtException() throws Exception {
         EmbeddedChannel inbound = new EmbeddedChannel(); // ByteBuf
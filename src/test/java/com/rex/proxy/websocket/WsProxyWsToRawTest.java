@@ -2,6 +2,7 @@ package com.rex.proxy.websocket;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
+import io.netty.channel.WriteBufferWaterMark;
 import io.netty.channel.embedded.EmbeddedChannel;
 import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import io.netty.handler.codec.http.websocketx.WebSocketFrame;
@@ -13,6 +14,8 @@ import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class WsProxyWsToRawTest {
 
@@ -100,4 +103,70 @@ public class WsProxyWsToRawTest {
                 .fireExceptionCaught(new RuntimeException("Mock"));
         assertFalse(outbound.isActive());
     }
+
+    @Test
+    public void testEarlyData() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel(false, false); // Open but not connected yet
+        WsProxyWsToRaw proxy = new WsProxyWsToRaw(outbound);
+
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer("Hello".getBytes())));
+        inbound.writeInbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer("World!".getBytes())));
+        assertNull(outbound.readOutbound());
+
+        outbound.register();
+        proxy.connected();
+        ByteBuf data = outbound.readOutbound();
+        assertEquals("HelloWorld!", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        // Later frames write directly
+        inbound.writeInbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer("Bye".getBytes())));
+        data = outbound.readOutbound();
+        assertEquals("Bye", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testEarlyDataPauseWebSocket() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel(false, false);
+        outbound.config().setWriteBufferWaterMark(new WriteBufferWaterMark(8, 16));
+        WsProxyWsToRaw proxy = new WsProxyWsToRaw(outbound);
+
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(new BinaryWebSocketFrame(Unpooled.wrappedBuffer(new byte[32])));
+        assertFalse(inbound.config().isAutoRead());
+
+        outbound.register();
+        proxy.connected();
+        assertTrue(inbound.config().isAutoRead());
+        ByteBuf data = outbound.readOutbound();
+        assertEquals(32, data.readableBytes());
+        data.release();
+
+        inbound.close();
+        outbound.close();
+    }
+
+    @Test
+    public void testEarlyDataReleasedOnRemove() throws Exception {
+        EmbeddedChannel inbound = new EmbeddedChannel();
+        EmbeddedChannel outbound = new EmbeddedChannel(false, false);
+        WsProxyWsToRaw proxy = new WsProxyWsToRaw(outbound);
+
+        ByteBuf content = Unpooled.wrappedBuffer("Hello".getBytes());
+        inbound.pipeline().addLast(proxy);
+        inbound.writeInbound(new BinaryWebSocketFrame(content));
+        assertEquals(1, content.refCnt());
+
+        inbound.pipeline().remove(proxy);
+        assertEquals(0, content.refCnt());
+
+        inbound.close();
+    }
 }
@@ -0,0 +1,88 @@
+package com.rex.proxy.websocket.control;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+import io.netty.handler.codec.EncoderException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class ControlBinaryFormatTest {
+
+    @Test
+    public void testRequest() {
+        ControlMessage msg = new ControlMessage();
+        msg.type = "request";
+        msg.action = "connect";
+        msg.address = "www.example.com";
+        msg.port = 443;
+        msg.token = "7BOmk0M59hQn210grnwI2ovh83p3NlhTq77pbvKarcg=";
+
+        ByteBuf buf = ControlBinaryFormat.encode(ByteBufAllocator.DEFAULT, msg);
+        assertEquals(ControlBinaryFormat.Opcode.REQUEST, ControlBinaryFormat.opcode(buf));
+
+        ControlMessage decoded = ControlBinaryFormat.decode(buf);
+        assertSame("request", decoded.type);
+        assertSame("connect", decoded.action);
+        assertEquals(msg.address, decoded.address);
+        assertEquals(msg.port, decoded.port);
+        assertEquals(msg.token, decoded.token);
+        buf.release();
+    }
+
+    @Test
+    public void testEmptyFields() {
+        ControlMessage msg = new ControlMessage();
+        msg.type = "authorized";
+
+        ByteBuf buf = ControlBinaryFormat.encode(ByteBufAllocator.DEFAULT, msg);
+        assertEquals(3, buf.readableBytes());
+
+        ControlMessage decoded = ControlBinaryFormat.decode(buf);
+        assertEquals("authorized", decoded.type);
+        assertNull(decoded.action);
+        assertNull(decoded.token);
+        assertNull(decoded.address);
+        assertNull(decoded.port);
+        buf.release();
+    }
+
+    @Test(expected = CorruptedFrameException.class)
+    public void testEmpty() {
+        ControlBinaryFormat.opcode(Unpooled.EMPTY_BUFFER);
+    }
+
+    @Test
+    public void testTruncated() {
+        ControlMessage msg = new ControlMessage();
+        msg.type = "request";
+        msg.action = "connect";
+        msg.address = "www.example.com";
+        msg.port = 443;
+        msg.token = "7BOmk0M59hQn210grnwI2ovh83p3NlhTq77pbvKarcg=";
+
+        ByteBuf buf = ControlBinaryFormat.encode(ByteBufAllocator.DEFAULT, msg);
+        // Every prefix cuts the header, token, address or port
+        for (int length = 0; length < buf.readableBytes(); length++) {
+            try {
+                ControlBinaryFormat.decode(buf.slice(buf.readerIndex(), length));
+                fail("Decoded truncated length " + length);
+            } catch (CorruptedFrameException ex) {
+                // Expected
+            }
+        }
+        buf.release();
+    }
+
+    @Test(expected = EncoderException.class)
+    public void testUnknownType() {
+        ControlMessage msg = new ControlMessage();
+        msg.type = "unknown";
+        ControlBinaryFormat.encode(ByteBufAllocator.DEFAULT, msg);
+    }
+}
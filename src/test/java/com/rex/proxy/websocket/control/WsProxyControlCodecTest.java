@@ -0,0 +1,75 @@
+package com.rex.proxy.websocket.control;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WsProxyControlCodecTest {
+
+    @Test
+    public void testJson() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new WsProxyControlCodec());
+        assertFalse(WsProxyControlCodec.isBinary(channel));
+
+        ControlMessage msg = new ControlMessage();
+        msg.type = "hello";
+        channel.writeOutbound(msg);
+        TextWebSocketFrame text = channel.readOutbound();
+        assertEquals("{\"type\":\"hello\"}", text.text());
+
+        channel.writeInbound(text);
+        ControlMessage decoded = channel.readInbound();
+        assertEquals("hello", decoded.type);
+
+        // Tunnel data pass through
+        BinaryWebSocketFrame data = new BinaryWebSocketFrame(Unpooled.wrappedBuffer("Hello".getBytes()));
+        channel.writeOutbound(data);
+        BinaryWebSocketFrame frame = channel.readOutbound();
+        assertEquals("Hello", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        channel.close();
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        WsProxyControlCodec.select(channel, WsProxyControlCodec.SUBPROTOCOL_BINARY);
+        channel.pipeline().addLast(new WsProxyControlCodec());
+        assertTrue(WsProxyControlCodec.isBinary(channel));
+
+        ControlMessage msg = new ControlMessage();
+        msg.type = "response";
+        msg.action = "success";
+        channel.writeOutbound(msg);
+        BinaryWebSocketFrame frame = channel.readOutbound();
+        assertEquals(ControlBinaryFormat.Opcode.RESPONSE, ControlBinaryFormat.opcode(frame.content()));
+
+        channel.writeInbound(frame);
+        ControlMessage decoded = channel.readInbound();
+        assertEquals("response", decoded.type);
+        assertEquals("success", decoded.action);
+
+        // Tunnel data prefixed with DATA opcode
+        ByteBuf data = Unpooled.wrappedBuffer("Hello".getBytes());
+        channel.writeOutbound(new BinaryWebSocketFrame(data));
+        frame = channel.readOutbound();
+        assertEquals(6, frame.content().readableBytes());
+        assertEquals(ControlBinaryFormat.Opcode.DATA, ControlBinaryFormat.opcode(frame.content()));
+
+        channel.writeInbound(frame);
+        frame = channel.readInbound();
+        assertEquals("Hello", frame.content().toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertEquals(0, data.refCnt());
+        channel.close();
+    }
+}
@@ -0,0 +1,35 @@
+package com.rex.proxy.websocket.mux;
+
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.websocketx.WebSocketClientHandshakeException;
+import io.netty.handler.codec.http.websocketx.WebSocketHandshakeException;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MuxConnectorTest {
+
+    @Test
+    public void testLacksSubprotocol() throws Exception {
+        // Older server upgraded without selecting proxy3
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.SWITCHING_PROTOCOLS);
+        assertTrue(MuxConnector.lacksSubprotocol(new WebSocketClientHandshakeException("Invalid subprotocol", response)));
+
+        response.headers().set(HttpHeaderNames.SEC_WEBSOCKET_PROTOCOL, MuxClientInitializer.WS_SUBPROTOCOL);
+        assertFalse(MuxConnector.lacksSubprotocol(new WebSocketClientHandshakeException("Invalid handshake", response)));
+
+        // Error responses and other failures are not about multiplexing
+        response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.BAD_GATEWAY);
+        assertFalse(MuxConnector.lacksSubprotocol(new WebSocketClientHandshakeException("Invalid handshake response", response)));
+        assertFalse(MuxConnector.lacksSubprotocol(new WebSocketClientHandshakeException("Invalid handshake")));
+        assertFalse(MuxConnector.lacksSubprotocol(new WebSocketHandshakeException("Handshake failed")));
+        assertFalse(MuxConnector.lacksSubprotocol(new IOException("Connection reset")));
+    }
+}
@@ -0,0 +1,52 @@
+package com.rex.proxy.websocket.mux;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class MuxFrameTest {
+
+    @Test
+    public void testOpen() throws Exception {
+        BinaryWebSocketFrame frame = MuxFrame.open(ByteBufAllocator.DEFAULT, 7, "www.example.com", 443);
+        ByteBuf content = frame.content();
+        assertEquals(MuxFrame.OPEN, MuxFrame.type(content));
+        assertEquals(7, MuxFrame.streamId(content));
+        assertEquals("www.example.com", MuxFrame.openAddress(MuxFrame.payload(content)));
+        assertEquals(443, MuxFrame.openPort(MuxFrame.payload(content)));
+        frame.release();
+    }
+
+    @Test
+    public void testData() throws Exception {
+        ByteBuf data = Unpooled.wrappedBuffer("HelloWorld!".getBytes());
+        BinaryWebSocketFrame frame = MuxFrame.data(ByteBufAllocator.DEFAULT, 3, data);
+        ByteBuf content = frame.content();
+        assertEquals(MuxFrame.DATA, MuxFrame.type(content));
+        assertEquals(3, MuxFrame.streamId(content));
+        assertEquals("HelloWorld!", MuxFrame.payload(content).toString(StandardCharsets.UTF_8));
+        frame.release();
+        assertEquals(0, data.refCnt());
+    }
+
+    @Test
+    public void testWindowAndSignal() throws Exception {
+        BinaryWebSocketFrame frame = MuxFrame.window(ByteBufAllocator.DEFAULT, 5, 65536);
+        assertEquals(MuxFrame.WINDOW, MuxFrame.type(frame.content()));
+        assertEquals(5, MuxFrame.streamId(frame.content()));
+        assertEquals(65536, MuxFrame.windowIncrement(MuxFrame.payload(frame.content())));
+        frame.release();
+
+        frame = MuxFrame.signal(ByteBufAllocator.DEFAULT, MuxFrame.CLOSE, 9);
+        assertEquals(MuxFrame.CLOSE, MuxFrame.type(frame.content()));
+        assertEquals(9, MuxFrame.streamId(frame.content()));
+        assertEquals(MuxFrame.HEADER_SIZE, frame.content().readableBytes());
+        frame.release();
+    }
+}
@@ -0,0 +1,217 @@
+package com.rex.proxy.websocket.mux;
+
+import com.rex.proxy.WslLocal;
+import com.rex.proxy.WslServer;
+import com.rex.proxy.websocket.control.ControlMessage;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleUserEventChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.util.concurrent.Promise;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class MuxSessionTest {
+
+    @Test
+    public void testClientStream() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel();
+        Promise<MuxSession> ready = ws.eventLoop().newPromise();
+        MuxSession session = new MuxSession(null, ready);
+        ws.pipeline().addLast(session);
+
+        ControlMessage hello = new ControlMessage();
+        hello.type = "hello";
+        ws.writeInbound(hello);
+        assertTrue(ready.isSuccess());
+
+        final AtomicReference<WslLocal.RemoteStateEvent> state = new AtomicReference<>();
+        EmbeddedChannel local = new EmbeddedChannel(new SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent>() {
+            @Override
+            protected void eventReceived(ChannelHandlerContext ctx, WslLocal.RemoteStateEvent evt) throws Exception {
+                state.set(evt);
+            }
+        });
+        session.open("www.example.com", 80, local, false);
+
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        assertEquals(MuxFrame.OPEN, MuxFrame.type(frame.content()));
+        int id = MuxFrame.streamId(frame.content());
+        frame.release();
+
+        // Server connected
+        ws.writeInbound(MuxFrame.signal(ws.alloc(), MuxFrame.OPEN_OK, id));
+        assertEquals(WslLocal.RemoteStateEvent.REMOTE_READY, state.get());
+        assertNotNull(local.pipeline().get(MuxStream.class));
+
+        // Local to WebSocket
+        local.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()));
+        frame = ws.readOutbound();
+        assertEquals(MuxFrame.DATA, MuxFrame.type(frame.content()));
+        assertEquals("Hello", MuxFrame.payload(frame.content()).toString(StandardCharsets.UTF_8));
+        frame.release();
+
+        // WebSocket to local
+        ws.writeInbound(MuxFrame.data(ws.alloc(), id, Unpooled.wrappedBuffer("World".getBytes())));
+        ByteBuf data = local.readOutbound();
+        assertEquals("World", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        // Server closed the stream
+        ws.writeInbound(MuxFrame.signal(ws.alloc(), MuxFrame.CLOSE, id));
+        assertFalse(local.isActive());
+        assertEquals(0, session.streams());
+
+        ws.close();
+    }
+
+    @Test
+    public void testClientStreamFailed() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel();
+        MuxSession session = new MuxSession(null, ws.eventLoop().newPromise());
+        ws.pipeline().addLast(session);
+
+        final AtomicReference<WslLocal.RemoteStateEvent> state = new AtomicReference<>();
+        EmbeddedChannel local = new EmbeddedChannel(new SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent>() {
+            @Override
+            protected void eventReceived(ChannelHandlerContext ctx, WslLocal.RemoteStateEvent evt) throws Exception {
+                state.set(evt);
+            }
+        });
+        session.open("www.example.com", 80, local, false);
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        int id = MuxFrame.streamId(frame.content());
+        frame.release();
+
+        ws.writeInbound(MuxFrame.signal(ws.alloc(), MuxFrame.OPEN_FAIL, id));
+        assertEquals(WslLocal.RemoteStateEvent.REMOTE_FAILED, state.get());
+        assertEquals(0, session.streams());
+
+        ws.close();
+        local.close();
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel();
+        MuxSession session = new MuxSession(null, ws.eventLoop().newPromise());
+        ws.pipeline().addLast(session);
+
+        EmbeddedChannel local = new EmbeddedChannel();
+        session.open("www.example.com", 80, local, false);
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        int id = MuxFrame.streamId(frame.content());
+        frame.release();
+        ws.writeInbound(MuxFrame.signal(ws.alloc(), MuxFrame.OPEN_OK, id));
+
+        // Exhaust the send window
+        local.writeInbound(Unpooled.wrappedBuffer(new byte[MuxFrame.INITIAL_WINDOW]));
+        assertFalse(local.config().isAutoRead());
+        for (Object msg = ws.readOutbound(); msg != null; msg = ws.readOutbound()) {
+            ((BinaryWebSocketFrame) msg).release();
+        }
+
+        ws.writeInbound(MuxFrame.window(ws.alloc(), id, MuxFrame.INITIAL_WINDOW));
+        assertTrue(local.config().isAutoRead());
+
+        ws.close();
+        local.close();
+    }
+
+    @Test
+    public void testOptimisticStream() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel();
+        MuxSession session = new MuxSession(null, ws.eventLoop().newPromise());
+        ws.pipeline().addLast(session);
+
+        final AtomicReference<WslLocal.RemoteStateEvent> state = new AtomicReference<>();
+        EmbeddedChannel local = new EmbeddedChannel(new SimpleUserEventChannelHandler<WslLocal.RemoteStateEvent>() {
+            @Override
+            protected void eventReceived(ChannelHandlerContext ctx, WslLocal.RemoteStateEvent evt) throws Exception {
+                state.set(evt);
+            }
+        });
+        session.open("www.example.com", 80, local, true);
+        assertEquals(WslLocal.RemoteStateEvent.REMOTE_READY, state.get());
+
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        assertEquals(MuxFrame.OPEN, MuxFrame.type(frame.content()));
+        int id = MuxFrame.streamId(frame.content());
+        frame.release();
+
+        // Early data right behind OPEN
+        local.writeInbound(Unpooled.wrappedBuffer("Hello".getBytes()));
+        frame = ws.readOutbound();
+        assertEquals(MuxFrame.DATA, MuxFrame.type(frame.content()));
+        frame.release();
+
+        // Server failed to connect, local socket already told success
+        ws.writeInbound(MuxFrame.signal(ws.alloc(), MuxFrame.OPEN_FAIL, id));
+        assertEquals(WslLocal.RemoteStateEvent.REMOTE_READY, state.get());
+        assertFalse(local.isActive());
+        assertEquals(0, session.streams());
+
+        ws.close();
+    }
+
+    @Test
+    public void testShortOpen() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel(new MuxSession(new WslServer.Configuration(0)));
+
+        // OPEN without the port, only the stream fails
+        ws.writeInbound(new BinaryWebSocketFrame(Unpooled.buffer().writeByte(MuxFrame.OPEN).writeInt(1).writeByte(0)));
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        assertEquals(MuxFrame.OPEN_FAIL, MuxFrame.type(frame.content()));
+        assertEquals(1, MuxFrame.streamId(frame.content()));
+        frame.release();
+        assertTrue(ws.isActive());
+
+        ws.close();
+    }
+
+    @Test
+    public void testShortWindow() throws Exception {
+        EmbeddedChannel ws = new EmbeddedChannel();
+        MuxSession session = new MuxSession(null, ws.eventLoop().newPromise());
+        ws.pipeline().addLast(session);
+
+        EmbeddedChannel local1 = new EmbeddedChannel();
+        EmbeddedChannel local2 = new EmbeddedChannel();
+        session.open("www.example.com", 80, local1, true);
+        session.open("www.example.com", 443, local2, true);
+        BinaryWebSocketFrame frame = ws.readOutbound();
+        int id1 = MuxFrame.streamId(frame.content());
+        frame.release();
+        frame = ws.readOutbound();
+        int id2 = MuxFrame.streamId(frame.content());
+        frame.release();
+
+        // WINDOW without the increment closes the stream only
+        ws.writeInbound(new BinaryWebSocketFrame(Unpooled.buffer().writeByte(MuxFrame.WINDOW).writeInt(id1).writeShort(1)));
+        frame = ws.readOutbound();
+        assertEquals(MuxFrame.CLOSE, MuxFrame.type(frame.content()));
+        assertEquals(id1, MuxFrame.streamId(frame.content()));
+        frame.release();
+        assertFalse(local1.isActive());
+        assertTrue(ws.isActive());
+        assertEquals(1, session.streams());
+
+        // The other stream still relays
+        ws.writeInbound(MuxFrame.data(ws.alloc(), id2, Unpooled.wrappedBuffer("World".getBytes())));
+        ByteBuf data = local2.readOutbound();
+        assertEquals("World", data.toString(StandardCharsets.UTF_8));
+        data.release();
+
+        ws.close();
+        local2.close();
+    }
+}